@@ -2,10 +2,29 @@ package com.aerotrack.common;
 
 public class Constants {
     public static final String QUERY_LAMBDA = "QueryLambda";
+    public static final String SCAN_JOB_LAMBDA = "ScanJobLambda";
     public static final String FLIGHTS_REFRESH_LAMBDA = "FlightsRefreshLambda";
     public static final String FETCH_AIRPORTS_LAMBDA = "FetchAirportsLambda";
     public static final String AIRPORTS_REFRESH_LAMBDA = "AirportsRefreshLambda";
+    public static final String PRICE_CALENDAR_LAMBDA = "PriceCalendarLambda";
+    public static final String ORIGIN_INDEX_BACKFILL_LAMBDA = "OriginIndexBackfillLambda";
+    public static final String FLIGHT_PRESENCE_BACKFILL_LAMBDA = "FlightPresenceBackfillLambda";
     public static final String GITHUB_USERNAME = "trjohnny";
     public static final String FLIGHT_TABLE_ENV_VAR = "FLIGHT_TABLE";
     public static final String AIRPORTS_BUCKET_ENV_VAR = "AIRPORTS_BUCKET";
+    public static final String MAX_IN_FLIGHT_READS_ENV_VAR = "MAX_IN_FLIGHT_READS";
+    public static final String FLIGHT_CACHE_MAX_BYTES_ENV_VAR = "FLIGHT_CACHE_MAX_BYTES";
+    public static final String FLIGHT_CACHE_TTL_MINUTES_ENV_VAR = "FLIGHT_CACHE_TTL_MINUTES";
+    public static final String QUERY_RESULTS_BUCKET_ENV_VAR = "QUERY_RESULTS_BUCKET";
+    public static final String QUERY_RESULTS_TTL_MINUTES_ENV_VAR = "QUERY_RESULTS_TTL_MINUTES";
+    public static final String SCAN_JOBS_TABLE_ENV_VAR = "SCAN_JOBS_TABLE";
+    public static final String SCAN_JOB_FUNCTION_ENV_VAR = "SCAN_JOB_FUNCTION";
+    public static final String SCAN_JOB_TIMEOUT_SECONDS_ENV_VAR = "SCAN_JOB_TIMEOUT_SECONDS";
+    public static final String MAX_SCAN_COST_UNITS_ENV_VAR = "MAX_SCAN_COST_UNITS";
+    public static final String FLIGHT_ORIGIN_INDEX_ENV_VAR = "FLIGHT_ORIGIN_INDEX";
+    public static final String FLIGHT_ORIGIN_INDEX = "FlightsByOrigin";
+    public static final String FLIGHT_PRESENCE_TABLE_ENV_VAR = "FLIGHT_PRESENCE_TABLE";
+    public static final String HEDGED_READS_BUDGET_PERCENT_ENV_VAR = "HEDGED_READS_BUDGET_PERCENT";
+    public static final String PRICE_CALENDAR_TABLE_ENV_VAR = "PRICE_CALENDAR_TABLE";
+    public static final String DEALS_TABLE_ENV_VAR = "DEALS_TABLE";
 }
@@ -13,6 +13,9 @@ import static java.util.Collections.singletonList;
 import static software.amazon.awscdk.BundlingOutput.ARCHIVED;
 
 public class InfraUtils {
+    // Module of the code shared by the lambdas, installed before any of them is packaged
+    private static final String LAMBDA_COMMON_MODULE = "LambdaCommon";
+
     public static BundlingOptions.Builder getLambdaBuilderOptions() {
         Map<String, String> environmentVariables = new HashMap<>();
         environmentVariables.put("GITHUB_TOKEN", System.getenv("GITHUB_TOKEN")); // Retrieve the token from an environment variable
@@ -36,10 +39,24 @@ public class InfraUtils {
             case Constants.AIRPORTS_REFRESH_LAMBDA -> "com.aerotrack.lambda.AirportsRefreshRequestHandler::handleRequest";
             case Constants.FETCH_AIRPORTS_LAMBDA -> "com.aerotrack.lambda.FetchAirportsRequestHandler::handleRequest";
             case Constants.QUERY_LAMBDA -> "com.aerotrack.lambda.QueryRequestHandler::handleRequest";
+            case Constants.SCAN_JOB_LAMBDA -> "com.aerotrack.lambda.ScanJobRequestHandler::handleRequest";
+            case Constants.PRICE_CALENDAR_LAMBDA -> "com.aerotrack.lambda.PriceCalendarRequestHandler::handleRequest";
+            case Constants.ORIGIN_INDEX_BACKFILL_LAMBDA -> "com.aerotrack.lambda.OriginIndexBackfillRequestHandler::handleRequest";
+            case Constants.FLIGHT_PRESENCE_BACKFILL_LAMBDA -> "com.aerotrack.lambda.FlightPresenceBackfillRequestHandler::handleRequest";
             default -> throw new IllegalStateException("Unexpected value: " + lambdaName);
         };
     }
 
+    // Lambdas that are another handler of an existing module are packaged from that module
+    public static String getLambdaModule(String lambdaName) {
+        return switch (lambdaName) {
+            case Constants.SCAN_JOB_LAMBDA -> Constants.QUERY_LAMBDA;
+            case Constants.PRICE_CALENDAR_LAMBDA, Constants.ORIGIN_INDEX_BACKFILL_LAMBDA,
+                 Constants.FLIGHT_PRESENCE_BACKFILL_LAMBDA -> Constants.FLIGHTS_REFRESH_LAMBDA;
+            default -> lambdaName;
+        };
+    }
+
     public static String getResourceName(String resource) {
         String devEnvironment = System.getenv("AEROTRACK_DEV");
         if (devEnvironment == null || devEnvironment.isEmpty()) {
@@ -57,7 +74,7 @@ public class InfraUtils {
         return Arrays.asList(
                 "/bin/sh",
                 "-c",
-                String.format("cd %s ", lambda) +
+                String.format("cd %s ", LAMBDA_COMMON_MODULE) +
                         "&& echo '<settings xmlns=\"http://maven.apache.org/SETTINGS/1.0.0\" " +
                                 "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" " +
                                 "xsi:schemaLocation=\"http://maven.apache.org/SETTINGS/1.0.0 " +
@@ -71,6 +88,8 @@ public class InfraUtils {
                                     "</servers>" +
                                 "</settings>' > ~/.m2/settings.xml " +
                         "&& mvn clean install " +
+                        String.format("&& cd ../%s ", lambda) +
+                        "&& mvn clean install " +
                         String.format("&& cp /asset-input/%s/target/%s-1.0-SNAPSHOT.jar /asset-output/", lambda, lambda)
         );
     }
@@ -18,9 +18,12 @@ public class InfraStack extends Stack {
 
         DataConstruct data = new DataConstruct(this, "DataConstruct");
 
-        new ApiConstruct(this, "ApiConstruct", data.getAirportsBucket(), data.getFlightsTable());
+        new ApiConstruct(this, "ApiConstruct", data.getAirportsBucket(), data.getFlightsTable(),
+                data.getQueryResultsBucket(), data.getScanJobsTable(), data.getFlightPresenceTable(),
+                data.getPriceCalendarTable(), data.getDealsTable());
 
-        new RefreshConstruct(this, "RefreshConstruct", data.getAirportsBucket(), data.getFlightsTable());
+        new RefreshConstruct(this, "RefreshConstruct", data.getAirportsBucket(), data.getFlightsTable(),
+                data.getFlightPresenceTable(), data.getPriceCalendarTable(), data.getDealsTable());
     }
 
 }
\ No newline at end of file
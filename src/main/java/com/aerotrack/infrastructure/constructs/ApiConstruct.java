@@ -18,6 +18,7 @@ import software.amazon.awscdk.services.iam.ManagedPolicy;
 import software.amazon.awscdk.services.iam.Role;
 import software.amazon.awscdk.services.iam.ServicePrincipal;
 import software.amazon.awscdk.services.lambda.Code;
+import software.amazon.awscdk.services.lambda.EventInvokeConfigOptions;
 import software.amazon.awscdk.services.lambda.Function;
 import software.amazon.awscdk.services.lambda.FunctionProps;
 import software.amazon.awscdk.services.lambda.Runtime;
@@ -37,10 +38,24 @@ import com.aerotrack.common.Constants;
 public class  ApiConstruct extends Construct {
 
     private static final String SCAN_RESOURCE = "scan";
+    private static final String BATCH_RESOURCE = "batch";
+    private static final String CALENDAR_RESOURCE = "calendar";
+    private static final String DEALS_RESOURCE = "deals";
     private static final Integer API_DEFAULT_MEMORY_SIZE = 2048;
     private static final Integer API_DEFAULT_TIMEOUT_SECONDS = 30;
-
-    public ApiConstruct(@NotNull Construct scope, @NotNull String id, Bucket airportsBucket, Table flightsTable) {
+    // Scan jobs are the searches that don't fit the API timeout, the worker gets the longest a lambda can run
+    private static final Integer SCAN_JOB_TIMEOUT_SECONDS = 900;
+    private static final Integer QUERY_MAX_IN_FLIGHT_READS = 16;
+    // A quarter of the query lambda memory, the rest is left to pairing
+    private static final Long QUERY_FLIGHT_CACHE_MAX_BYTES = 512L * 1024 * 1024;
+    // Scans estimated above this many cost units are handed over to the job worker
+    private static final Long QUERY_MAX_SCAN_COST_UNITS = 1_000L;
+    // Direction reads slower than the recent p95 get a second copy, within this share of extra reads
+    private static final Integer QUERY_HEDGED_READS_BUDGET_PERCENT = 5;
+
+    public ApiConstruct(@NotNull Construct scope, @NotNull String id, Bucket airportsBucket, Table flightsTable,
+                        Bucket queryResultsBucket, Table scanJobsTable, Table flightPresenceTable,
+                        Table priceCalendarTable, Table dealsTable) {
         super(scope, id);
 
         RestApi queryRestApi = RestApi.Builder.create(this, InfraUtils.getResourceName("RestApiGateway"))
@@ -48,6 +63,8 @@ public class  ApiConstruct extends Construct {
                         .allowOrigins(Cors.ALL_ORIGINS)
                         .allowMethods(Cors.ALL_METHODS)
                         .build())
+                // Lets the handlers return gzipped bodies as base64, which API Gateway decodes back to binary
+                .binaryMediaTypes(List.of("*/*"))
                 .build();
 
         ApiKey key = ApiKey.Builder.create(this, "ApiKey").build();
@@ -65,16 +82,74 @@ public class  ApiConstruct extends Construct {
 
         usagePlan.addApiKey(key);
 
+        Function scanJobFunction = getApiLambda(Constants.SCAN_JOB_LAMBDA,
+                new HashMap<>() {
+                    {
+                        put(Constants.FLIGHT_TABLE_ENV_VAR, flightsTable.getTableName());
+                        put(Constants.FLIGHT_ORIGIN_INDEX_ENV_VAR, Constants.FLIGHT_ORIGIN_INDEX);
+                        put(Constants.FLIGHT_PRESENCE_TABLE_ENV_VAR, flightPresenceTable.getTableName());
+                        put(Constants.HEDGED_READS_BUDGET_PERCENT_ENV_VAR, QUERY_HEDGED_READS_BUDGET_PERCENT.toString());
+                        put(Constants.AIRPORTS_BUCKET_ENV_VAR, airportsBucket.getBucketName());
+                        put(Constants.MAX_IN_FLIGHT_READS_ENV_VAR, QUERY_MAX_IN_FLIGHT_READS.toString());
+                        put(Constants.FLIGHT_CACHE_MAX_BYTES_ENV_VAR, QUERY_FLIGHT_CACHE_MAX_BYTES.toString());
+                        put(Constants.FLIGHT_CACHE_TTL_MINUTES_ENV_VAR,
+                                RefreshConstruct.FLIGHTS_REFRESH_EVENT_RATE_MINUTES.toString());
+                        put(Constants.QUERY_RESULTS_BUCKET_ENV_VAR, queryResultsBucket.getBucketName());
+                        put(Constants.SCAN_JOBS_TABLE_ENV_VAR, scanJobsTable.getTableName());
+                    }
+                }, SCAN_JOB_TIMEOUT_SECONDS);
+
+        // A failed job is reported through its status, retrying it would only burn another long run
+        scanJobFunction.configureAsyncInvoke(EventInvokeConfigOptions.builder()
+                .retryAttempts(0)
+                .build());
+
+        // Hedged reads are published as metrics
+        Objects.requireNonNull(scanJobFunction.getRole())
+                .addManagedPolicy(ManagedPolicy.fromAwsManagedPolicyName("CloudWatchFullAccess"));
+        airportsBucket.grantRead(Objects.requireNonNull(scanJobFunction.getRole()));
+        flightsTable.grantReadData(Objects.requireNonNull(scanJobFunction.getRole()));
+        flightPresenceTable.grantReadData(Objects.requireNonNull(scanJobFunction.getRole()));
+        queryResultsBucket.grantReadWrite(Objects.requireNonNull(scanJobFunction.getRole()));
+        scanJobsTable.grantReadWriteData(Objects.requireNonNull(scanJobFunction.getRole()));
+
         Function queryFunction = getApiLambda(Constants.QUERY_LAMBDA,
                 new HashMap<>() {
                     {
                         put(Constants.FLIGHT_TABLE_ENV_VAR, flightsTable.getTableName());
+                        put(Constants.FLIGHT_ORIGIN_INDEX_ENV_VAR, Constants.FLIGHT_ORIGIN_INDEX);
+                        put(Constants.FLIGHT_PRESENCE_TABLE_ENV_VAR, flightPresenceTable.getTableName());
+                        put(Constants.HEDGED_READS_BUDGET_PERCENT_ENV_VAR, QUERY_HEDGED_READS_BUDGET_PERCENT.toString());
                         put(Constants.AIRPORTS_BUCKET_ENV_VAR, airportsBucket.getBucketName());
+                        put(Constants.MAX_IN_FLIGHT_READS_ENV_VAR, QUERY_MAX_IN_FLIGHT_READS.toString());
+                        put(Constants.FLIGHT_CACHE_MAX_BYTES_ENV_VAR, QUERY_FLIGHT_CACHE_MAX_BYTES.toString());
+                        // Cached flights can't be older than the data the next refresh would replace them with
+                        put(Constants.FLIGHT_CACHE_TTL_MINUTES_ENV_VAR,
+                                RefreshConstruct.FLIGHTS_REFRESH_EVENT_RATE_MINUTES.toString());
+                        put(Constants.QUERY_RESULTS_BUCKET_ENV_VAR, queryResultsBucket.getBucketName());
+                        put(Constants.QUERY_RESULTS_TTL_MINUTES_ENV_VAR,
+                                RefreshConstruct.FLIGHTS_REFRESH_EVENT_RATE_MINUTES.toString());
+                        put(Constants.SCAN_JOBS_TABLE_ENV_VAR, scanJobsTable.getTableName());
+                        put(Constants.SCAN_JOB_FUNCTION_ENV_VAR, scanJobFunction.getFunctionName());
+                        // Running jobs not updated for longer than the worker can run are reported failed
+                        put(Constants.SCAN_JOB_TIMEOUT_SECONDS_ENV_VAR, SCAN_JOB_TIMEOUT_SECONDS.toString());
+                        put(Constants.MAX_SCAN_COST_UNITS_ENV_VAR, QUERY_MAX_SCAN_COST_UNITS.toString());
+                        put(Constants.PRICE_CALENDAR_TABLE_ENV_VAR, priceCalendarTable.getTableName());
+                        put(Constants.DEALS_TABLE_ENV_VAR, dealsTable.getTableName());
                     }
                 });
 
+        // Scan cost units are published per API key, along with the hedged reads
+        Objects.requireNonNull(queryFunction.getRole())
+                .addManagedPolicy(ManagedPolicy.fromAwsManagedPolicyName("CloudWatchFullAccess"));
         airportsBucket.grantRead(Objects.requireNonNull(queryFunction.getRole()));
         flightsTable.grantReadData(Objects.requireNonNull(queryFunction.getRole()));
+        flightPresenceTable.grantReadData(Objects.requireNonNull(queryFunction.getRole()));
+        priceCalendarTable.grantReadData(Objects.requireNonNull(queryFunction.getRole()));
+        dealsTable.grantReadData(Objects.requireNonNull(queryFunction.getRole()));
+        queryResultsBucket.grantReadWrite(Objects.requireNonNull(queryFunction.getRole()));
+        scanJobsTable.grantReadWriteData(Objects.requireNonNull(queryFunction.getRole()));
+        scanJobFunction.grantInvoke(Objects.requireNonNull(queryFunction.getRole()));
 
         Resource queryResource = queryRestApi.getRoot().addResource(SCAN_RESOURCE);
 
@@ -82,6 +157,32 @@ public class  ApiConstruct extends Construct {
                 .apiKeyRequired(true)
                 .build());
 
+        Resource scanJobResource = queryResource.addResource("{jobId}");
+
+        scanJobResource.addMethod("GET", new LambdaIntegration(queryFunction), MethodOptions.builder()
+                .apiKeyRequired(true)
+                .build());
+
+        // Several scans answered from the same direction reads, the literal path takes precedence over {jobId}
+        Resource batchResource = queryResource.addResource(BATCH_RESOURCE);
+
+        batchResource.addMethod("POST", new LambdaIntegration(queryFunction), MethodOptions.builder()
+                .apiKeyRequired(true)
+                .build());
+
+        // Cheapest fare per day or month of a direction, read from the aggregates the flights stream maintains
+        Resource calendarResource = queryRestApi.getRoot().addResource(CALENDAR_RESOURCE);
+
+        calendarResource.addMethod("GET", new LambdaIntegration(queryFunction), MethodOptions.builder()
+                .apiKeyRequired(true)
+                .build());
+
+        // Cheapest round trips from an origin, one precomputed item per origin
+        Resource dealsResource = queryRestApi.getRoot().addResource(DEALS_RESOURCE);
+
+        dealsResource.addMethod("GET", new LambdaIntegration(queryFunction), MethodOptions.builder()
+                .apiKeyRequired(true)
+                .build());
 
         Function fetchAirportsFunction = getApiLambda(Constants.FETCH_AIRPORTS_LAMBDA,
                 new HashMap<>() {
@@ -111,6 +212,10 @@ public class  ApiConstruct extends Construct {
     }
 
     private Function getApiLambda(String functionName, Map<String, String> env) {
+        return getApiLambda(functionName, env, API_DEFAULT_TIMEOUT_SECONDS);
+    }
+
+    private Function getApiLambda(String functionName, Map<String, String> env, Integer timeoutSeconds) {
         Role lambdaRole = Role.Builder.create(this, String.format("%sRole", InfraUtils.getResourceName(functionName)))
                 .assumedBy(new ServicePrincipal("lambda.amazonaws.com"))
                 .managedPolicies(List.of(
@@ -122,14 +227,14 @@ public class  ApiConstruct extends Construct {
                 .runtime(Runtime.JAVA_17)
                 .code(Code.fromAsset("src/main/java/com/aerotrack/infrastructure/lambda", AssetOptions.builder()
                         .bundling(InfraUtils.getLambdaBuilderOptions()
-                                .command(InfraUtils.getLambdaPackagingInstructions(functionName))
+                                .command(InfraUtils.getLambdaPackagingInstructions(InfraUtils.getLambdaModule(functionName)))
                                 .build())
                         .build()))
                 .environment(env)
                 .handler(InfraUtils.getLambdaRequestHandler(functionName))
                 .role(lambdaRole)
                 .memorySize(API_DEFAULT_MEMORY_SIZE)
-                .timeout(Duration.seconds(API_DEFAULT_TIMEOUT_SECONDS))
+                .timeout(Duration.seconds(timeoutSeconds))
                 .logRetention(RetentionDays.ONE_DAY)
                 .build());
     }
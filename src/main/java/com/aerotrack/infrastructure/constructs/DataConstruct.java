@@ -1,15 +1,21 @@
 package com.aerotrack.infrastructure.constructs;
 
+import com.aerotrack.common.Constants;
 import com.aerotrack.common.InfraUtils;
 import lombok.Getter;
 import org.jetbrains.annotations.NotNull;
+import software.amazon.awscdk.Duration;
 import software.amazon.awscdk.services.dynamodb.Attribute;
 import software.amazon.awscdk.services.dynamodb.AttributeType;
 import software.amazon.awscdk.services.dynamodb.BillingMode;
+import software.amazon.awscdk.services.dynamodb.GlobalSecondaryIndexProps;
+import software.amazon.awscdk.services.dynamodb.ProjectionType;
+import software.amazon.awscdk.services.dynamodb.StreamViewType;
 import software.amazon.awscdk.services.dynamodb.Table;
 import software.amazon.awscdk.services.s3.BlockPublicAccess;
 import software.amazon.awscdk.services.s3.Bucket;
 import software.amazon.awscdk.services.s3.BucketEncryption;
+import software.amazon.awscdk.services.s3.LifecycleRule;
 import software.amazon.awscdk.services.s3.ObjectOwnership;
 import software.amazon.awscdk.services.s3.deployment.BucketDeployment;
 import software.amazon.awscdk.services.s3.deployment.Source;
@@ -23,6 +29,11 @@ import java.util.List;
 public class DataConstruct extends Construct {
     private final Bucket airportsBucket;
     private final Table flightsTable;
+    private final Bucket queryResultsBucket;
+    private final Table scanJobsTable;
+    private final Table flightPresenceTable;
+    private final Table priceCalendarTable;
+    private final Table dealsTable;
     public DataConstruct(@NotNull Construct scope, @NotNull String id) {
         super(scope, id);
 
@@ -38,8 +49,25 @@ public class DataConstruct extends Construct {
                 .billingMode(BillingMode.PAY_PER_REQUEST)
                 .deletionProtection(false)
                 .timeToLiveAttribute("TTL")
+                // Feeds the price calendar, which needs the old price to know whether the minimum can only go down
+                .stream(StreamViewType.NEW_AND_OLD_IMAGES)
                 .build();
 
+        // Every outbound flight of an airport in a date range is a single range query: the refresh writes the
+        // departure airport and "departureDateTime#destination" next to each flight
+        flightsTable.addGlobalSecondaryIndex(GlobalSecondaryIndexProps.builder()
+                .indexName(Constants.FLIGHT_ORIGIN_INDEX)
+                .partitionKey(Attribute.builder()
+                        .name("origin")
+                        .type(AttributeType.STRING)
+                        .build())
+                .sortKey(Attribute.builder()
+                        .name("dateDestination")
+                        .type(AttributeType.STRING)
+                        .build())
+                .projectionType(ProjectionType.ALL)
+                .build());
+
         StringParameter.Builder.create(this, InfraUtils.getResourceName("FlightsTableNameParameter"))
                 .parameterName(InfraUtils.getResourceName("FlightsTable"))
                 .stringValue(flightsTable.getTableName())
@@ -56,6 +84,65 @@ public class DataConstruct extends Construct {
                 .sources(List.of(Source.asset("src/main/java/com/aerotrack/infrastructure/s3data/")))
                 .destinationBucket(this.airportsBucket)
                 .build();
+
+        // Query results are served for a refresh interval at most, the lifecycle rule only cleans up what's left
+        this.queryResultsBucket = Bucket.Builder.create(this, InfraUtils.getResourceName("QueryResultsBucket"))
+                .objectOwnership(ObjectOwnership.BUCKET_OWNER_ENFORCED)
+                .blockPublicAccess(BlockPublicAccess.BLOCK_ALL)
+                .encryption(BucketEncryption.S3_MANAGED)
+                .lifecycleRules(List.of(LifecycleRule.builder()
+                        .expiration(Duration.days(1))
+                        .build()))
+                .build();
+
+        // Jobs expire with their results in the query results bucket
+        this.scanJobsTable = Table.Builder.create(this, "ScanJobsTable")
+                .partitionKey(Attribute.builder()
+                        .name("jobId")
+                        .type(AttributeType.STRING)
+                        .build())
+                .billingMode(BillingMode.PAY_PER_REQUEST)
+                .deletionProtection(false)
+                .timeToLiveAttribute("expiresAt")
+                .build();
+
+        // Departure days of every direction, so the query side skips reads that would come back empty. Directions
+        // the refresh stops writing expire once their last days are long gone
+        this.flightPresenceTable = Table.Builder.create(this, "FlightPresenceTable")
+                .partitionKey(Attribute.builder()
+                        .name("direction")
+                        .type(AttributeType.STRING)
+                        .build())
+                .billingMode(BillingMode.PAY_PER_REQUEST)
+                .deletionProtection(false)
+                .timeToLiveAttribute("expiresAt")
+                .build();
+
+        // Cheapest fare of every direction per day ("D#2024-05-03") and per month ("M#2024-05"), maintained from the
+        // flights table stream. Items expire a couple of days after their last departure
+        this.priceCalendarTable = Table.Builder.create(this, "PriceCalendarTable")
+                .partitionKey(Attribute.builder()
+                        .name("direction")
+                        .type(AttributeType.STRING)
+                        .build())
+                .sortKey(Attribute.builder()
+                        .name("period")
+                        .type(AttributeType.STRING)
+                        .build())
+                .billingMode(BillingMode.PAY_PER_REQUEST)
+                .deletionProtection(false)
+                .timeToLiveAttribute("expiresAt")
+                .build();
+
+        // Cheapest round trip to each destination per stay length, one item per origin priced from the calendar
+        this.dealsTable = Table.Builder.create(this, "DealsTable")
+                .partitionKey(Attribute.builder()
+                        .name("origin")
+                        .type(AttributeType.STRING)
+                        .build())
+                .billingMode(BillingMode.PAY_PER_REQUEST)
+                .deletionProtection(false)
+                .build();
     }
 
 }
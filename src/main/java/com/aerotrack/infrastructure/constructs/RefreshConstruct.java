@@ -18,9 +18,13 @@ import software.amazon.awscdk.services.iam.ServicePrincipal;
 import software.amazon.awscdk.services.lambda.Code;
 import software.amazon.awscdk.services.lambda.Function;
 import software.amazon.awscdk.services.lambda.Runtime;
+import software.amazon.awscdk.services.lambda.StartingPosition;
+import software.amazon.awscdk.services.lambda.eventsources.DynamoEventSource;
 import software.amazon.awscdk.services.logs.RetentionDays;
 import software.amazon.awscdk.services.s3.Bucket;
 import software.amazon.awscdk.services.s3.assets.AssetOptions;
+import software.amazon.awscdk.triggers.InvocationType;
+import software.amazon.awscdk.triggers.Trigger;
 import software.constructs.Construct;
 
 import java.util.HashMap;
@@ -35,10 +39,19 @@ public class RefreshConstruct extends Construct {
 
 
     private static final Integer AIRPORTS_REFRESH_EVENT_RATE_HOURS = 1;
-    private static final Integer FLIGHTS_REFRESH_EVENT_RATE_MINUTES = 15;
+    public static final Integer FLIGHTS_REFRESH_EVENT_RATE_MINUTES = 15;
     private static final Integer FLIGHTS_REFRESH_LAMBDAS_PER_EVENT = 2;
-
-    public RefreshConstruct(@NotNull Construct scope, @NotNull String id, Bucket airportsBucket, Table flightsTable) {
+    // A refresh writes flights in bursts, batching them lets the calendar group the changes of a day
+    private static final Integer PRICE_CALENDAR_BATCH_SIZE = 1000;
+    private static final Integer PRICE_CALENDAR_BATCHING_WINDOW_SECONDS = 30;
+    private static final Integer REFRESH_LAMBDA_TIMEOUT_MINUTES = 7;
+    private static final Integer BACKFILL_TIMEOUT_MINUTES = 15;
+    private static final Integer REFRESH_LAMBDA_MEMORY_SIZE = 256;
+    // The presence backfill holds a scan page of up to 1 MB and the days grouped from it for each of its 8 segments
+    private static final Integer PRESENCE_BACKFILL_MEMORY_SIZE = 512;
+
+    public RefreshConstruct(@NotNull Construct scope, @NotNull String id, Bucket airportsBucket, Table flightsTable,
+                            Table flightPresenceTable, Table priceCalendarTable, Table dealsTable) {
         super(scope, id);
 
 
@@ -48,11 +61,76 @@ public class RefreshConstruct extends Construct {
                     {
                         put(Constants.FLIGHT_TABLE_ENV_VAR, flightsTable.getTableName());
                         put(Constants.AIRPORTS_BUCKET_ENV_VAR, airportsBucket.getBucketName());
+                        put(Constants.FLIGHT_PRESENCE_TABLE_ENV_VAR, flightPresenceTable.getTableName());
                     }
                 });
 
         airportsBucket.grantRead(Objects.requireNonNull(flightsRefreshLambda.getRole()));
         flightsTable.grantWriteData(Objects.requireNonNull(flightsRefreshLambda.getRole()));
+        flightPresenceTable.grantWriteData(Objects.requireNonNull(flightsRefreshLambda.getRole()));
+
+        Function priceCalendarLambda = getRefreshLambda(Constants.PRICE_CALENDAR_LAMBDA,
+                "PriceCalendarLambdaRole",
+                new HashMap<>() {
+                    {
+                        put(Constants.FLIGHT_TABLE_ENV_VAR, flightsTable.getTableName());
+                        put(Constants.PRICE_CALENDAR_TABLE_ENV_VAR, priceCalendarTable.getTableName());
+                        put(Constants.DEALS_TABLE_ENV_VAR, dealsTable.getTableName());
+                    }
+                });
+
+        // One batch at a time per shard keeps the changes of a direction in order, a failed batch is applied again
+        priceCalendarLambda.addEventSource(DynamoEventSource.Builder.create(flightsTable)
+                .startingPosition(StartingPosition.LATEST)
+                .batchSize(PRICE_CALENDAR_BATCH_SIZE)
+                .maxBatchingWindow(Duration.seconds(PRICE_CALENDAR_BATCHING_WINDOW_SECONDS))
+                .parallelizationFactor(1)
+                .bisectBatchOnError(true)
+                .retryAttempts(5)
+                .build());
+
+        flightsTable.grantReadData(Objects.requireNonNull(priceCalendarLambda.getRole()));
+        priceCalendarTable.grantReadWriteData(Objects.requireNonNull(priceCalendarLambda.getRole()));
+        dealsTable.grantReadWriteData(Objects.requireNonNull(priceCalendarLambda.getRole()));
+
+        // Flights written before the origin index get its keys once, right after the stream consumer is deployed so the
+        // calendar picks them up as well. The trigger only runs again when the backfill handler changes
+        Function originIndexBackfillLambda = getRefreshLambda(Constants.ORIGIN_INDEX_BACKFILL_LAMBDA,
+                "OriginIndexBackfillLambdaRole",
+                new HashMap<>() {
+                    {
+                        put(Constants.FLIGHT_TABLE_ENV_VAR, flightsTable.getTableName());
+                    }
+                },
+                Duration.minutes(BACKFILL_TIMEOUT_MINUTES), REFRESH_LAMBDA_MEMORY_SIZE);
+
+        flightsTable.grantReadWriteData(Objects.requireNonNull(originIndexBackfillLambda.getRole()));
+
+        Trigger.Builder.create(this, InfraUtils.getResourceName("OriginIndexBackfillTrigger"))
+                .handler(originIndexBackfillLambda)
+                .invocationType(InvocationType.EVENT)
+                .executeAfter(List.of(priceCalendarLambda))
+                .build();
+
+        // The presence index only tells a direction is empty once the flights stored before the tracking are in it
+        Function flightPresenceBackfillLambda = getRefreshLambda(Constants.FLIGHT_PRESENCE_BACKFILL_LAMBDA,
+                "FlightPresenceBackfillLambdaRole",
+                new HashMap<>() {
+                    {
+                        put(Constants.FLIGHT_TABLE_ENV_VAR, flightsTable.getTableName());
+                        put(Constants.FLIGHT_PRESENCE_TABLE_ENV_VAR, flightPresenceTable.getTableName());
+                    }
+                },
+                Duration.minutes(BACKFILL_TIMEOUT_MINUTES), PRESENCE_BACKFILL_MEMORY_SIZE);
+
+        flightsTable.grantReadData(Objects.requireNonNull(flightPresenceBackfillLambda.getRole()));
+        // Reads back where each segment of an earlier run stopped
+        flightPresenceTable.grantReadWriteData(Objects.requireNonNull(flightPresenceBackfillLambda.getRole()));
+
+        Trigger.Builder.create(this, InfraUtils.getResourceName("FlightPresenceBackfillTrigger"))
+                .handler(flightPresenceBackfillLambda)
+                .invocationType(InvocationType.EVENT)
+                .build();
 
         Function airportsRefreshLambda = getRefreshLambda(Constants.AIRPORTS_REFRESH_LAMBDA,
                 "AirportsRefreshLambdaRole",
@@ -117,6 +195,12 @@ public class RefreshConstruct extends Construct {
     }
 
     private Function getRefreshLambda(String lambdaName, String roleName, HashMap<String, String> env) {
+        return getRefreshLambda(lambdaName, roleName, env, Duration.minutes(REFRESH_LAMBDA_TIMEOUT_MINUTES),
+                REFRESH_LAMBDA_MEMORY_SIZE);
+    }
+
+    private Function getRefreshLambda(String lambdaName, String roleName, HashMap<String, String> env,
+                                      Duration timeout, Integer memorySize) {
         Role lambdaRole = Role.Builder.create(this, InfraUtils.getResourceName(roleName))
                 .assumedBy(new ServicePrincipal("lambda.amazonaws.com"))
                 .managedPolicies(List.of(
@@ -130,13 +214,13 @@ public class RefreshConstruct extends Construct {
                 .runtime(Runtime.JAVA_17)
                 .code(Code.fromAsset("src/main/java/com/aerotrack/infrastructure/lambda", AssetOptions.builder()
                         .bundling(InfraUtils.getLambdaBuilderOptions()
-                                .command(InfraUtils.getLambdaPackagingInstructions(lambdaName))
+                                .command(InfraUtils.getLambdaPackagingInstructions(InfraUtils.getLambdaModule(lambdaName)))
                                 .build())
                         .build()))
                 .environment(env)
                 .role(lambdaRole)
-                .timeout(Duration.minutes(7))
-                .memorySize(256)
+                .timeout(timeout)
+                .memorySize(memorySize)
                 .logRetention(RetentionDays.ONE_DAY)
                 .handler(InfraUtils.getLambdaRequestHandler(lambdaName))
                 .build();
@@ -1,5 +1,6 @@
 package com.aerotrack.lambda.workflow;
 
+import com.aerotrack.lambda.workflow.graph.AirportRegistry;
 import com.aerotrack.model.entities.Airport;
 import com.aerotrack.model.entities.AirportsJsonFile;
 import com.aerotrack.utils.clients.api.RyanairApiClient;
@@ -34,6 +35,10 @@ public class AirportsRefreshWorkflow  {
         VLC, NCE, BLQ, NAP, BHX, GLA, LBA, EDI, BRS, SEN, LPA, TFS, TFN, ACE, PMI, JTR, JMK
     }
 
+    // Interned once, so filtering the airports returned by the API is a hash lookup per code
+    private static final AirportRegistry SELECTED_AIRPORTS = AirportRegistry.of(
+            Arrays.stream(AirportCode.values()).map(Enum::name).toList());
+
     private final AerotrackS3Client s3Client;
     private final RyanairApiClient ryanairClient;
 
@@ -102,7 +107,7 @@ public class AirportsRefreshWorkflow  {
     }
 
     private boolean isInEnum(String value) {
-        return Arrays.stream(AirportCode.values()).anyMatch(e -> e.name().equals(value));
+        return SELECTED_AIRPORTS.contains(value);
     }
 
     private LocalDateTime parseDateTime(Airport airport) {
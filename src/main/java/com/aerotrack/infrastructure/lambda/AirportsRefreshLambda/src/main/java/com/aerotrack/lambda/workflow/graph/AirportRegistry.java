@@ -0,0 +1,47 @@
+package com.aerotrack.lambda.workflow.graph;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps IATA codes to dense int ids, in registration order. Codes are interned once when the registry is built, after
+ * that every structure indexed by airport can be a plain array.
+ */
+public class AirportRegistry {
+    public static final int UNKNOWN = -1;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> codes = new ArrayList<>();
+
+    public static AirportRegistry of(Collection<String> airportCodes) {
+        AirportRegistry registry = new AirportRegistry();
+        airportCodes.forEach(registry::register);
+        return registry;
+    }
+
+    int register(String airportCode) {
+        return ids.computeIfAbsent(airportCode, code -> {
+            codes.add(code);
+            return codes.size() - 1;
+        });
+    }
+
+    public int idOf(String airportCode) {
+        return ids.getOrDefault(airportCode, UNKNOWN);
+    }
+
+    public boolean contains(String airportCode) {
+        return ids.containsKey(airportCode);
+    }
+
+    public String codeOf(int id) {
+        return codes.get(id);
+    }
+
+    public int size() {
+        return codes.size();
+    }
+}
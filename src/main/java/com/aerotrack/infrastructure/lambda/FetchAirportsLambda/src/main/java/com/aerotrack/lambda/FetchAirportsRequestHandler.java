@@ -2,38 +2,51 @@ package com.aerotrack.lambda;
 
 import com.aerotrack.model.entities.AirportsJsonFile;
 import com.aerotrack.common.Constants;
+import com.aerotrack.lambda.cache.BucketVersionProbe;
+import com.aerotrack.lambda.cache.RevalidatingCache;
+import com.aerotrack.lambda.http.HttpEncoding;
 import com.aerotrack.utils.clients.s3.AerotrackS3Client;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import software.amazon.awssdk.services.s3.S3Client;
 
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 @Slf4j
 public class FetchAirportsRequestHandler implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+    // Airports are refreshed hourly, checking the version every minute keeps the responses at most a minute behind
+    private static final Duration AIRPORTS_REVALIDATE_AFTER = Duration.ofMinutes(1);
     private final AerotrackS3Client s3Client = AerotrackS3Client.create();
     private final ObjectMapper objectMapper = new ObjectMapper();
+    private final BucketVersionProbe versionProbe =
+            new BucketVersionProbe(S3Client.create(), System.getenv(Constants.AIRPORTS_BUCKET_ENV_VAR));
+    // Response bodies are cached already serialized, a warm invocation neither reads nor parses the airports file
+    private final RevalidatingCache<String> ryanairAirports = airportsCache("ryanair airports", s3Client::getRyanairAirports);
+    private final RevalidatingCache<String> wizzairAirports = airportsCache("wizzair airports", s3Client::getWizzairAirports);
+    private final RevalidatingCache<String> mergedAirports = airportsCache("merged airports", s3Client::getMergedAirports);
 
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent request, Context context) {
         String resourcePath = request.getPath(); // Get the resource path from the request
         APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
-        AirportsJsonFile airportsJsonFile;
+        String airportsJsonFile;
 
         try {
 
-            String s3ObjectName;
             if (resourcePath.contains("ryanair")) {
-                airportsJsonFile = s3Client.getRyanairAirports();
+                airportsJsonFile = ryanairAirports.get();
             } else if (resourcePath.contains("wizzair")) {
-                airportsJsonFile = s3Client.getWizzairAirports();
+                airportsJsonFile = wizzairAirports.get();
             } else if (resourcePath.contains("merged")) {
-                airportsJsonFile = s3Client.getMergedAirports();
+                airportsJsonFile = mergedAirports.get();
             } else {
                 response.setStatusCode(400); // Bad Request
                 response.setBody("{\"error\": \"Invalid airport group specified.\"}");
@@ -45,7 +58,7 @@ public class FetchAirportsRequestHandler implements RequestHandler<APIGatewayPro
                     "Content-Type", "application/json",
                     "Access-Control-Allow-Origin", "*",
                     "Access-Control-Allow-Methods", "OPTIONS,POST"));
-            response.setBody(objectMapper.writeValueAsString(airportsJsonFile));
+            response.setBody(airportsJsonFile);
         } catch (IOException e) {
             log.error("Error reading from S3: " + e.getMessage());
             response.setStatusCode(500); // Internal Server Error
@@ -57,6 +70,11 @@ public class FetchAirportsRequestHandler implements RequestHandler<APIGatewayPro
             response.setHeaders(Map.of("Content-Type", "application/json"));
             response.setBody("{\"error\": \"" + e.getMessage() + "\"}");
         }
-        return response;
+        return HttpEncoding.encodeResponse(request, response);
+    }
+
+    private RevalidatingCache<String> airportsCache(String name, Callable<AirportsJsonFile> loader) {
+        return new RevalidatingCache<>(name, () -> objectMapper.writeValueAsString(loader.call()), versionProbe,
+                AIRPORTS_REVALIDATE_AFTER);
     }
 }
@@ -0,0 +1,31 @@
+package com.aerotrack.lambda;
+
+import com.aerotrack.lambda.workflow.backfill.OriginIndexBackfill;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * One-off run of the {@link OriginIndexBackfill}, triggered once by the deployment. A run that doesn't finish in time
+ * fails, and the retries of the asynchronous invocation pick up the flights still missing the keys.
+ */
+@Slf4j
+public class OriginIndexBackfillRequestHandler implements RequestHandler<Map<String, Object>, Void> {
+    // Left for the segments to notice the deadline and the failure to be logged
+    private static final Duration DEADLINE_MARGIN = Duration.ofSeconds(30);
+
+    private final OriginIndexBackfill backfill = OriginIndexBackfill.fromEnvironment();
+
+    @Override
+    public Void handleRequest(Map<String, Object> event, Context context) {
+        Instant deadline = Instant.now()
+                .plusMillis(Math.max(0, context.getRemainingTimeInMillis() - DEADLINE_MARGIN.toMillis()));
+        log.info("OriginIndexBackfillRequestHandler started, deadline {}", deadline);
+        backfill.run(deadline);
+        return null;
+    }
+}
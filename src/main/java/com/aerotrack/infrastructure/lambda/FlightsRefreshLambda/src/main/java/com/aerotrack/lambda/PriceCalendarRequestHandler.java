@@ -0,0 +1,76 @@
+package com.aerotrack.lambda;
+
+import com.aerotrack.lambda.workflow.FlightRefreshWorkflow;
+import com.aerotrack.lambda.workflow.calendar.PriceCalendarAggregator;
+import com.aerotrack.lambda.workflow.calendar.PriceCalendarAggregator.FlightChange;
+import com.aerotrack.lambda.workflow.deals.BestDealsIndex;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.DynamodbEvent;
+import com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue;
+import com.amazonaws.services.lambda.runtime.events.models.dynamodb.StreamRecord;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Applies the flights table stream to the price calendar, then prices again the round trips of the directions whose
+ * days changed. A failing batch is thrown back to be retried, applying the same changes twice leaves both as they are.
+ */
+@Slf4j
+public class PriceCalendarRequestHandler implements RequestHandler<DynamodbEvent, Void> {
+    private final PriceCalendarAggregator aggregator = PriceCalendarAggregator.fromEnvironment();
+    private final Optional<BestDealsIndex> bestDealsIndex = BestDealsIndex.fromEnvironment();
+
+    public Void handleRequest(DynamodbEvent event, Context context) {
+        List<FlightChange> changes = new ArrayList<>();
+        for (DynamodbEvent.DynamodbStreamRecord record : event.getRecords()) {
+            StreamRecord streamRecord = record.getDynamodb();
+            Map<String, AttributeValue> newImage = streamRecord.getNewImage();
+            Map<String, AttributeValue> oldImage = streamRecord.getOldImage();
+            Map<String, AttributeValue> image = newImage != null ? newImage : oldImage;
+            // Flights written before the origin index don't tell their destination until the backfill adds it
+            if (image == null || !isIndexed(image)) {
+                continue;
+            }
+            // The calendar never saw a flight before it got the keys, the backfill or a rewrite adds it as new
+            if (oldImage != null && !isIndexed(oldImage)) {
+                oldImage = null;
+            }
+
+            String dateDestination = image.get(FlightRefreshWorkflow.DATE_DESTINATION_ATTRIBUTE).getS();
+            String destination = dateDestination.substring(dateDestination.lastIndexOf('#') + 1);
+            changes.add(new FlightChange(
+                    PriceCalendarAggregator.calendarDirection(
+                            image.get(FlightRefreshWorkflow.ORIGIN_ATTRIBUTE).getS(), destination),
+                    streamRecord.getKeys().get(FlightRefreshWorkflow.DIRECTION_ATTRIBUTE).getS(),
+                    streamRecord.getKeys().get(PriceCalendarAggregator.DEPARTURE_DATE_TIME).getS(),
+                    image.containsKey(PriceCalendarAggregator.FLIGHT_NUMBER)
+                            ? image.get(PriceCalendarAggregator.FLIGHT_NUMBER).getS()
+                            : null,
+                    priceOf(oldImage),
+                    priceOf(newImage)));
+        }
+
+        log.info("PriceCalendarRequestHandler got {} records, {} flight changes", event.getRecords().size(),
+                changes.size());
+        Set<String> changedDirections = aggregator.apply(changes);
+        bestDealsIndex.ifPresent(index -> index.update(changedDirections));
+        return null;
+    }
+
+    private static boolean isIndexed(Map<String, AttributeValue> image) {
+        return image.containsKey(FlightRefreshWorkflow.ORIGIN_ATTRIBUTE)
+                && image.containsKey(FlightRefreshWorkflow.DATE_DESTINATION_ATTRIBUTE);
+    }
+
+    private static Double priceOf(Map<String, AttributeValue> image) {
+        return image == null || !image.containsKey(PriceCalendarAggregator.PRICE)
+                ? null
+                : Double.valueOf(image.get(PriceCalendarAggregator.PRICE).getN());
+    }
+}
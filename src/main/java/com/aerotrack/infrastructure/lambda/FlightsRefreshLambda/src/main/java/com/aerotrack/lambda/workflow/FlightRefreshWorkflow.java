@@ -7,6 +7,7 @@ import com.aerotrack.model.entities.AirportsJsonFile;
 import com.aerotrack.model.entities.FlightList;
 import com.aerotrack.model.exceptions.DirectionNotAvailableException;
 import com.aerotrack.common.Constants;
+import com.aerotrack.lambda.workflow.presence.FlightPresenceWriter;
 import com.aerotrack.utils.clients.api.AirlineApiClient;
 import com.aerotrack.utils.clients.api.CurrencyConverterApiClient;
 import com.aerotrack.utils.clients.api.RyanairApiClient;
@@ -16,14 +17,19 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import retrofit2.HttpException;
+import software.amazon.awssdk.enhanced.dynamodb.AttributeConverterProvider;
+import software.amazon.awssdk.enhanced.dynamodb.AttributeValueType;
 import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
 import software.amazon.awssdk.enhanced.dynamodb.DynamoDbTable;
+import software.amazon.awssdk.enhanced.dynamodb.TableMetadata;
 import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.enhanced.dynamodb.document.EnhancedDocument;
 import software.amazon.awssdk.enhanced.dynamodb.model.BatchWriteItemEnhancedRequest;
 import software.amazon.awssdk.enhanced.dynamodb.model.WriteBatch;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
 import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
 import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.utils.Pair;
 
 import java.io.IOException;
@@ -44,35 +50,60 @@ public class FlightRefreshWorkflow {
     private final AerotrackS3Client s3Client;
     private final RyanairApiClient ryanairClient;
     private final WizzairApiClient wizzairApiClient;
-    private final DynamoDbTable<Flight> flightsTable;
+    private final DynamoDbTable<EnhancedDocument> flightsTable;
     private final CurrencyConverterApiClient currencyConverter;
+    private final FlightPresenceWriter presenceWriter;
     private static final int DAY_PICK_WEIGHT_FACTOR = 30;
     public static final int MAX_RYANAIR_REQUESTS_PER_LAMBDA = 500;
     public static final int MAX_WIZZAIR_REQUESTS_PER_LAMBDA = 10;
     public static final String RYANAIR_CONNECTIONS_OBJECT_NAME = "ryanair_airports.json";
     public static final String WIZZAIR_CONNECTIONS_OBJECT_NAME = "wizzair_airports.json";
     public static final String METRIC_REFRESH_FLIGHTS_NAMESPACE = "RefreshLambdaMetric";
+    // Keys of the flights table, and of its index by departure airport sorted by date and destination
+    public static final String DIRECTION_ATTRIBUTE = "direction";
+    public static final String DEPARTURE_DATE_TIME_ATTRIBUTE = "departureDateTime";
+    public static final String ORIGIN_ATTRIBUTE = "origin";
+    public static final String DATE_DESTINATION_ATTRIBUTE = "dateDestination";
+    private static final TableSchema<Flight> FLIGHT_SCHEMA = TableSchema.fromBean(Flight.class);
+    private static final int PRESENCE_WRITE_ATTEMPTS = 3;
+
+    // Flights of a direction as the airline API returned them
+    private record DirectionFlights(String departure, String destination, FlightList flightList) { }
 
     public FlightRefreshWorkflow(AerotrackS3Client s3Client, DynamoDbEnhancedClient dynamoDbEnhancedClient,
                                  RyanairApiClient ryanairClient, WizzairApiClient wizzairApiClient,
                                  CurrencyConverterApiClient currencyConverter) {
+        this(s3Client, dynamoDbEnhancedClient, ryanairClient, wizzairApiClient, currencyConverter,
+                FlightPresenceWriter.fromEnvironment().orElse(null));
+    }
+
+    public FlightRefreshWorkflow(AerotrackS3Client s3Client, DynamoDbEnhancedClient dynamoDbEnhancedClient,
+                                 RyanairApiClient ryanairClient, WizzairApiClient wizzairApiClient,
+                                 CurrencyConverterApiClient currencyConverter, FlightPresenceWriter presenceWriter) {
         this.s3Client = s3Client;
+        this.presenceWriter = presenceWriter;
         this.dynamoDbEnhancedClient = dynamoDbEnhancedClient;
         this.ryanairClient = ryanairClient;
         this.wizzairApiClient = wizzairApiClient;
         this.currencyConverter = currencyConverter;
-        this.flightsTable = dynamoDbEnhancedClient.table(System.getenv(Constants.FLIGHT_TABLE_ENV_VAR), TableSchema.fromBean(Flight.class));
+        // Flights are written as documents, so the index attributes can sit next to the Flight bean ones
+        this.flightsTable = dynamoDbEnhancedClient.table(System.getenv(Constants.FLIGHT_TABLE_ENV_VAR),
+                TableSchema.documentSchemaBuilder()
+                        .addIndexPartitionKey(TableMetadata.primaryIndexName(), DIRECTION_ATTRIBUTE, AttributeValueType.S)
+                        .addIndexSortKey(TableMetadata.primaryIndexName(), DEPARTURE_DATE_TIME_ATTRIBUTE, AttributeValueType.S)
+                        .attributeConverterProviders(AttributeConverterProvider.defaultProvider())
+                        .build());
     }
 
     public void refreshFlights() throws IOException, InterruptedException {
         AirportsJsonFile ryanairAirportJsonFile = getAvailableAirports(RYANAIR_CONNECTIONS_OBJECT_NAME);
         AirportsJsonFile wizzairAirportJsonFile = getAvailableAirports(WIZZAIR_CONNECTIONS_OBJECT_NAME);
 
-        List<FlightList> flightsAndPrices = new ArrayList<>();
+        List<DirectionFlights> flightsAndPrices = new ArrayList<>();
         Map<String, Double> conversionRate = new HashMap<>();
 
-        List<FlightList> ryanairFlightsAndPrices = fetchFlights(ryanairAirportJsonFile, conversionRate, ryanairClient, "Ryanair");
-        List<FlightList> wizzairFlightsAndPrices = fetchFlights(wizzairAirportJsonFile, conversionRate, wizzairApiClient, "Wizzair");
+        List<DirectionFlights> ryanairFlightsAndPrices = fetchFlights(ryanairAirportJsonFile, conversionRate, ryanairClient, "Ryanair");
+        List<DirectionFlights> wizzairFlightsAndPrices = fetchFlights(wizzairAirportJsonFile, conversionRate, wizzairApiClient, "Wizzair");
 
         recordMetric(ryanairFlightsAndPrices.size(), RYANAIR_API_CALLS);
         recordMetric(wizzairFlightsAndPrices.size(), WIZZAIR_API_CALLS);
@@ -82,15 +113,20 @@ public class FlightRefreshWorkflow {
 
         updateConversionRates(conversionRate);
 
-        flightsAndPrices.forEach(flightList -> {
+        if (presenceWriter != null) {
+            presenceWriter.recordTracking();
+        }
+        flightsAndPrices.forEach(directionFlights -> {
+            FlightList flightList = directionFlights.flightList();
             double conversionFactor = conversionRate.getOrDefault(flightList.getCurrency(), 1.0);
             flightList.getFlights().forEach(flight -> flight.setPrice(flight.getPrice() * conversionFactor));
-            writeFlightsToTable(flightList.getFlights());
+            recordPresence(directionFlights);
+            writeFlightsToTable(directionFlights.departure(), directionFlights.destination(), flightList.getFlights());
         });
     }
 
-    private List<FlightList> fetchFlights(AirportsJsonFile airportList, Map<String, Double> conversionRate, AirlineApiClient apiClient, String airline) {
-        List<FlightList> flightsAndPrices = new ArrayList<>();
+    private List<DirectionFlights> fetchFlights(AirportsJsonFile airportList, Map<String, Double> conversionRate, AirlineApiClient apiClient, String airline) {
+        List<DirectionFlights> flightsAndPrices = new ArrayList<>();
         int totalSuccess = 0;
 
         for (int i = 0; i < getMaxRequests(Airline.fromName(airline)); i++) {
@@ -98,7 +134,7 @@ public class FlightRefreshWorkflow {
                 Pair<String, String> randomConnection = getRandomAirportPair(airportList);
                 LocalDate randomDate = LocalDate.now().plusDays(pickNumberWithWeightedProbability(1, 365));
                 FlightList flightList = apiClient.getFlights(randomConnection.left(), randomConnection.right(), randomDate);
-                flightsAndPrices.add(flightList);
+                flightsAndPrices.add(new DirectionFlights(randomConnection.left(), randomConnection.right(), flightList));
                 conversionRate.putIfAbsent(flightList.getCurrency().toLowerCase(), null);
                 totalSuccess++;
             } catch (HttpException httpException) {
@@ -148,7 +184,32 @@ public class FlightRefreshWorkflow {
         return new ObjectMapper().readValue(airportsJson, new TypeReference<>() {});
     }
 
-    private void writeFlightsToTable(List<Flight> flights) {
+    // The days go in the presence index before the flights are written. When they can't be recorded the direction is
+    // marked incomplete, and its flights are written anyway: a stale index hides them no more than dropping them would
+    private void recordPresence(DirectionFlights directionFlights) {
+        if (presenceWriter == null) {
+            return;
+        }
+        String departure = directionFlights.departure();
+        String destination = directionFlights.destination();
+        List<Flight> flights = directionFlights.flightList().getFlights();
+        for (int attempt = 1; attempt <= PRESENCE_WRITE_ATTEMPTS; attempt++) {
+            try {
+                presenceWriter.recordFlights(departure, destination, flights);
+                return;
+            } catch (RuntimeException e) {
+                log.warn("Could not record the days of {}-{}, attempt {}: {}", departure, destination, attempt,
+                        e.getMessage());
+            }
+        }
+        try {
+            presenceWriter.recordIncomplete(departure, destination, flights);
+        } catch (RuntimeException e) {
+            log.error("Could not mark the days of {}-{} incomplete: {}", departure, destination, e.getMessage());
+        }
+    }
+
+    private void writeFlightsToTable(String departure, String destination, List<Flight> flights) {
         if (flights.isEmpty()) {
             return;
         }
@@ -165,11 +226,12 @@ public class FlightRefreshWorkflow {
             List<Flight> batchFlights = flights.subList(start, end);
 
             // Create a new builder for each batch
-            WriteBatch.Builder<Flight> batchBuilder = WriteBatch.builder(Flight.class).mappedTableResource(flightsTable);
+            WriteBatch.Builder<EnhancedDocument> batchBuilder = WriteBatch.builder(EnhancedDocument.class)
+                    .mappedTableResource(flightsTable);
 
             // Add items to the batch
             for (Flight flight : batchFlights) {
-                batchBuilder.addPutItem(flight);
+                batchBuilder.addPutItem(toIndexedItem(departure, destination, flight));
             }
 
             // Build the batch write request
@@ -183,6 +245,19 @@ public class FlightRefreshWorkflow {
     }
 
 
+    // The Flight attributes plus the keys of the index by departure airport
+    static EnhancedDocument toIndexedItem(String departure, String destination, Flight flight) {
+        Map<String, AttributeValue> item = new HashMap<>(FLIGHT_SCHEMA.itemToMap(flight, true));
+        item.put(ORIGIN_ATTRIBUTE, AttributeValue.fromS(departure));
+        // Sorted by date first, so a date range of every destination is a single key range
+        item.put(DATE_DESTINATION_ATTRIBUTE, AttributeValue.fromS(dateDestination(flight.getDepartureDateTime(), destination)));
+        return EnhancedDocument.fromAttributeValueMap(item);
+    }
+
+    public static String dateDestination(String departureDateTime, String destination) {
+        return departureDateTime + "#" + destination;
+    }
+
     public int pickNumberWithWeightedProbability(int min, int max) {
         Random random = new Random();
         double totalWeight = 0.0;
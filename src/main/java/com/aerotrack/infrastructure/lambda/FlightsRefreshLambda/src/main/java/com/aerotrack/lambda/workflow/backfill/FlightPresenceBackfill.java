@@ -0,0 +1,100 @@
+package com.aerotrack.lambda.workflow.backfill;
+
+import com.aerotrack.lambda.workflow.presence.FlightPresenceWriter;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.aerotrack.lambda.workflow.FlightRefreshWorkflow.DEPARTURE_DATE_TIME_ATTRIBUTE;
+import static com.aerotrack.lambda.workflow.FlightRefreshWorkflow.DIRECTION_ATTRIBUTE;
+
+/**
+ * Adds the departure days of every stored flight to the presence index, then marks it backfilled. The refresh records
+ * the days of the flights it writes from the start of the tracking on, so once the flights stored before it are added
+ * the index is complete without waiting for them to expire, which for flights a year ahead takes a year. The days of
+ * every scanned page are added before the next page is read and the page recorded as done, so a run cut short keeps
+ * its days and the next one resumes each segment after its last recorded page. Adding days twice leaves them as they
+ * are, so a page whose days were added but which wasn't recorded is simply added again.
+ */
+@Slf4j
+public class FlightPresenceBackfill {
+    private final String flightTableName;
+    private final FlightPresenceWriter presenceWriter;
+    private final FlightsTableScan tableScan;
+
+    public FlightPresenceBackfill(DynamoDbClient dynamoDbClient, String flightTableName,
+                                  FlightPresenceWriter presenceWriter, int segments) {
+        this.flightTableName = flightTableName;
+        this.presenceWriter = presenceWriter;
+        this.tableScan = new FlightsTableScan(dynamoDbClient, segments);
+    }
+
+    public static FlightPresenceBackfill fromEnvironment() {
+        DynamoDbClient dynamoDbClient = DynamoDbClient.create();
+        return new FlightPresenceBackfill(dynamoDbClient, System.getenv(OriginIndexBackfill.FLIGHT_TABLE_ENV_VAR),
+                new FlightPresenceWriter(dynamoDbClient, System.getenv(FlightPresenceWriter.TABLE_ENV_VAR)),
+                OriginIndexBackfill.DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Returns the number of directions backfilled by this run. Throws once the deadline passes, leaving the index
+     * unmarked and the days of the pages scanned so far added.
+     */
+    public int run(Instant deadline) {
+        // Flights written from here on have their days recorded by the refresh, the scan covers the older ones
+        presenceWriter.recordTracking();
+
+        Set<String> directions = ConcurrentHashMap.newKeySet();
+        tableScan.forEachPage(ScanRequest.builder()
+                .tableName(flightTableName)
+                .projectionExpression("#direction, #departureDateTime")
+                .expressionAttributeNames(Map.of(
+                        "#direction", DIRECTION_ATTRIBUTE,
+                        "#departureDateTime", DEPARTURE_DATE_TIME_ATTRIBUTE))
+                .build(), deadline, new FlightsTableScan.SegmentProgress() {
+                    @Override
+                    public Map<String, AttributeValue> lastEvaluatedKey(int segment) {
+                        return presenceWriter.backfillProgress(segment, tableScan.segments());
+                    }
+
+                    @Override
+                    public void record(int segment, Map<String, AttributeValue> lastEvaluatedKey) {
+                        presenceWriter.recordBackfillProgress(segment, tableScan.segments(), lastEvaluatedKey);
+                    }
+                }, page -> {
+                    Set<String> pageDirections = recordDays(page);
+                    directions.addAll(pageDirections);
+                    return pageDirections.size();
+                });
+
+        presenceWriter.recordBackfill();
+        log.info("Backfilled the departure days of {} directions", directions.size());
+        return directions.size();
+    }
+
+    // Only the days of one page per segment are held at a time
+    private Set<String> recordDays(List<Map<String, AttributeValue>> page) {
+        Map<String, Set<Long>> daysByDirection = new HashMap<>();
+        for (Map<String, AttributeValue> item : page) {
+            daysByDirection.computeIfAbsent(item.get(DIRECTION_ATTRIBUTE).s(), direction -> new HashSet<>())
+                    .add(departureDay(item.get(DEPARTURE_DATE_TIME_ATTRIBUTE)));
+        }
+        daysByDirection.forEach((direction, days) -> presenceWriter.recordDays(
+                FlightsTableScan.departureOf(direction), FlightsTableScan.destinationOf(direction), days));
+        return daysByDirection.keySet();
+    }
+
+    private static long departureDay(AttributeValue departureDateTime) {
+        return LocalDate.parse(departureDateTime.s().substring(0, 10)).toEpochDay();
+    }
+}
@@ -0,0 +1,119 @@
+package com.aerotrack.lambda.workflow.backfill;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Parallel scan of the flights table for the backfills, one thread per segment. Every segment gives up once the
+ * deadline passes, so the backfills are resumed by running them again, from the last page visited when they keep the
+ * progress of the segments.
+ */
+class FlightsTableScan {
+    // IATA codes, the direction key of a flight starts with its departure airport and ends with its destination
+    private static final int AIRPORT_CODE_LENGTH = 3;
+
+    private final DynamoDbClient dynamoDbClient;
+    private final int segments;
+
+    /** Progress of the segments kept across runs, recorded once the visitor is done with a page. */
+    interface SegmentProgress {
+        SegmentProgress NONE = new SegmentProgress() {
+            @Override
+            public Map<String, AttributeValue> lastEvaluatedKey(int segment) {
+                return null;
+            }
+
+            @Override
+            public void record(int segment, Map<String, AttributeValue> lastEvaluatedKey) {
+            }
+        };
+
+        /** Key of the last page the segment visited, null before its first page and empty once it is finished. */
+        Map<String, AttributeValue> lastEvaluatedKey(int segment);
+
+        void record(int segment, Map<String, AttributeValue> lastEvaluatedKey);
+    }
+
+    FlightsTableScan(DynamoDbClient dynamoDbClient, int segments) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.segments = segments;
+    }
+
+    static String departureOf(String direction) {
+        return direction.substring(0, AIRPORT_CODE_LENGTH);
+    }
+
+    static String destinationOf(String direction) {
+        return direction.substring(direction.length() - AIRPORT_CODE_LENGTH);
+    }
+
+    int segments() {
+        return segments;
+    }
+
+    /** Visits every item of the scan, from all the segments at once, returning how many the visitor accepted. */
+    long forEachItem(ScanRequest scan, Instant deadline, Predicate<Map<String, AttributeValue>> visitor) {
+        return forEachPage(scan, deadline, SegmentProgress.NONE,
+                page -> page.stream().filter(visitor).count());
+    }
+
+    /**
+     * Visits the pages of the scan left after the recorded progress, from all the segments at once, returning the sum
+     * of what the visitor returned for them.
+     */
+    long forEachPage(ScanRequest scan, Instant deadline, SegmentProgress progress,
+                     ToLongFunction<List<Map<String, AttributeValue>>> visitor) {
+        ExecutorService executor = Executors.newFixedThreadPool(segments);
+        try {
+            List<CompletableFuture<Long>> runs = IntStream.range(0, segments)
+                    .mapToObj(segment -> CompletableFuture.supplyAsync(
+                            () -> scanSegment(scan, segment, deadline, progress, visitor), executor))
+                    .toList();
+            return runs.stream().mapToLong(CompletableFuture::join).sum();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long scanSegment(ScanRequest scan, int segment, Instant deadline, SegmentProgress progress,
+                             ToLongFunction<List<Map<String, AttributeValue>>> visitor) {
+        long accepted = 0;
+        Map<String, AttributeValue> exclusiveStartKey = progress.lastEvaluatedKey(segment);
+        if (exclusiveStartKey != null && exclusiveStartKey.isEmpty()) {
+            return 0; // Finished by an earlier run
+        }
+        do {
+            if (Instant.now().isAfter(deadline)) {
+                throw new IllegalStateException("Segment " + segment + " ran out of time after " + accepted
+                        + " items, run the backfill again to resume it");
+            }
+            ScanResponse page = dynamoDbClient.scan(scan.toBuilder()
+                    .segment(segment)
+                    .totalSegments(segments)
+                    .exclusiveStartKey(exclusiveStartKey)
+                    .build());
+
+            accepted += visitor.applyAsLong(page.items());
+            exclusiveStartKey = page.hasLastEvaluatedKey() && !page.lastEvaluatedKey().isEmpty()
+                    ? page.lastEvaluatedKey()
+                    : null;
+            progress.record(segment, exclusiveStartKey == null ? Map.of() : exclusiveStartKey);
+        } while (exclusiveStartKey != null);
+        return accepted;
+    }
+}
@@ -0,0 +1,86 @@
+package com.aerotrack.lambda.workflow.backfill;
+
+import com.aerotrack.lambda.workflow.FlightRefreshWorkflow;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.time.Instant;
+import java.util.Map;
+
+import static com.aerotrack.lambda.workflow.FlightRefreshWorkflow.DATE_DESTINATION_ATTRIBUTE;
+import static com.aerotrack.lambda.workflow.FlightRefreshWorkflow.DEPARTURE_DATE_TIME_ATTRIBUTE;
+import static com.aerotrack.lambda.workflow.FlightRefreshWorkflow.DIRECTION_ATTRIBUTE;
+import static com.aerotrack.lambda.workflow.FlightRefreshWorkflow.ORIGIN_ATTRIBUTE;
+
+/**
+ * Adds the keys of the index by departure airport to the flights written before it. Without them those flights are
+ * missing from the anywhere searches and from the price calendar until the refresh happens to rewrite them, which for
+ * far off days takes months. Only flights without the keys are updated, so a run cut short is resumed by running it
+ * again.
+ */
+@Slf4j
+public class OriginIndexBackfill {
+    public static final String FLIGHT_TABLE_ENV_VAR = "FLIGHT_TABLE";
+    static final int DEFAULT_SEGMENTS = 8;
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
+    private final FlightsTableScan tableScan;
+
+    public OriginIndexBackfill(DynamoDbClient dynamoDbClient, String tableName, int segments) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.tableName = tableName;
+        this.tableScan = new FlightsTableScan(dynamoDbClient, segments);
+    }
+
+    public static OriginIndexBackfill fromEnvironment() {
+        return new OriginIndexBackfill(DynamoDbClient.create(), System.getenv(FLIGHT_TABLE_ENV_VAR), DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Backfills every segment at once, returning the number of flights updated. Throws once the deadline passes, the
+     * flights updated so far keep their keys.
+     */
+    public long run(Instant deadline) {
+        long updated = tableScan.forEachItem(ScanRequest.builder()
+                .tableName(tableName)
+                .filterExpression("attribute_not_exists(#origin)")
+                .projectionExpression("#direction, #departureDateTime")
+                .expressionAttributeNames(Map.of(
+                        "#origin", ORIGIN_ATTRIBUTE,
+                        "#direction", DIRECTION_ATTRIBUTE,
+                        "#departureDateTime", DEPARTURE_DATE_TIME_ATTRIBUTE))
+                .build(), deadline, this::addIndexKeys);
+        log.info("Backfilled the origin index keys of {} flights", updated);
+        return updated;
+    }
+
+    private boolean addIndexKeys(Map<String, AttributeValue> key) {
+        String direction = key.get(DIRECTION_ATTRIBUTE).s();
+        String departureDateTime = key.get(DEPARTURE_DATE_TIME_ATTRIBUTE).s();
+        try {
+            dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                    .tableName(tableName)
+                    .key(key)
+                    .updateExpression("SET #origin = :origin, #dateDestination = :dateDestination")
+                    // A flight expired or rewritten by the refresh since the scan is left as it is
+                    .conditionExpression("attribute_exists(#direction) AND attribute_not_exists(#origin)")
+                    .expressionAttributeNames(Map.of(
+                            "#origin", ORIGIN_ATTRIBUTE,
+                            "#dateDestination", DATE_DESTINATION_ATTRIBUTE,
+                            "#direction", DIRECTION_ATTRIBUTE))
+                    .expressionAttributeValues(Map.of(
+                            ":origin", AttributeValue.fromS(FlightsTableScan.departureOf(direction)),
+                            ":dateDestination", AttributeValue.fromS(FlightRefreshWorkflow.dateDestination(
+                                    departureDateTime, FlightsTableScan.destinationOf(direction)))))
+                    .build());
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            return false;
+        }
+    }
+}
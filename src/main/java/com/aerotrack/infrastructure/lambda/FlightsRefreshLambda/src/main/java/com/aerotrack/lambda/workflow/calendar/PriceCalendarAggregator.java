@@ -0,0 +1,240 @@
+package com.aerotrack.lambda.workflow.calendar;
+
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Keeps the cheapest flight of every direction per day and per month, from the changes of the flights table stream.
+ * A cheaper flight just replaces the day and month minimum. When the cheapest flight itself gets dearer or expires the
+ * minimum is unknown, so the day is computed again from its flights, and its month from its days.
+ * <p>
+ * Records of the same flights table key come in order, and the stream is read one batch at a time per shard, so the
+ * items of a direction are never updated concurrently.
+ */
+@Slf4j
+public class PriceCalendarAggregator {
+    public static final String TABLE_ENV_VAR = "PRICE_CALENDAR_TABLE";
+    public static final String FLIGHT_TABLE_ENV_VAR = "FLIGHT_TABLE";
+    public static final String DIRECTION = "direction";
+    public static final String PERIOD = "period";
+    public static final String MIN_PRICE = "minPrice";
+    public static final String DEPARTURE_DATE_TIME = "departureDateTime";
+    public static final String FLIGHT_NUMBER = "flightNumber";
+    public static final String EXPIRES_AT = "expiresAt";
+    // Day and month items share the partition, each kind is a single key range
+    public static final String DAY_PREFIX = "D#";
+    public static final String MONTH_PREFIX = "M#";
+    public static final String PRICE = "price";
+    // Items outlive their last departure by a couple of days, then expire
+    private static final int RETENTION_DAYS = 2;
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String flightTableName;
+    private final String calendarTableName;
+
+    /**
+     * A flight before and after a change, the prices are null when it didn't exist before or doesn't anymore.
+     * {@code flightsDirection} is its partition key in the flights table, {@code direction} the calendar one.
+     */
+    public record FlightChange(String direction, String flightsDirection, String departureDateTime,
+                               String flightNumber, Double oldPrice, Double newPrice) { }
+
+    public record CalendarEntry(double minPrice, String departureDateTime, String flightNumber) { }
+
+    private record CalendarDay(String direction, String flightsDirection, LocalDate day) { }
+
+    private record CalendarMonth(String direction, YearMonth month) { }
+
+    public PriceCalendarAggregator(DynamoDbClient dynamoDbClient, String flightTableName, String calendarTableName) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.flightTableName = flightTableName;
+        this.calendarTableName = calendarTableName;
+    }
+
+    public static PriceCalendarAggregator fromEnvironment() {
+        return new PriceCalendarAggregator(DynamoDbClient.create(), System.getenv(FLIGHT_TABLE_ENV_VAR),
+                System.getenv(TABLE_ENV_VAR));
+    }
+
+    public static String calendarDirection(String departure, String destination) {
+        return departure + "#" + destination;
+    }
+
+    /** Applies the changes, returning the calendar directions whose days changed. */
+    public Set<String> apply(List<FlightChange> changes) {
+        Map<CalendarDay, List<FlightChange>> changesByDay = new LinkedHashMap<>();
+        for (FlightChange change : changes) {
+            // The refresh rewrites every flight, most of them at the same price
+            if (Objects.equals(change.oldPrice(), change.newPrice())) continue;
+            CalendarDay day = new CalendarDay(change.direction(), change.flightsDirection(),
+                    LocalDate.parse(change.departureDateTime().substring(0, 10)));
+            changesByDay.computeIfAbsent(day, key -> new ArrayList<>()).add(change);
+        }
+
+        Set<String> changedDirections = new HashSet<>();
+        Set<CalendarMonth> recomputedMonths = new HashSet<>();
+        Map<CalendarMonth, CalendarEntry> loweredMonths = new HashMap<>();
+        changesByDay.forEach((day, dayChanges) -> {
+            CalendarMonth month = new CalendarMonth(day.direction(), YearMonth.from(day.day()));
+            Optional<CalendarEntry> current = getEntry(day.direction(), dayPeriod(day.day()));
+            if (current.isEmpty() || raisesMinimum(current.get(), dayChanges)) {
+                recomputeDay(day);
+                changedDirections.add(day.direction());
+                recomputedMonths.add(month);
+                return;
+            }
+            cheapest(dayChanges)
+                    .filter(entry -> entry.minPrice() < current.get().minPrice())
+                    .ifPresent(entry -> {
+                        putEntry(day.direction(), dayPeriod(day.day()), entry, day.day());
+                        changedDirections.add(day.direction());
+                        loweredMonths.merge(month, entry,
+                                (previous, latest) -> latest.minPrice() < previous.minPrice() ? latest : previous);
+                    });
+        });
+
+        recomputedMonths.forEach(this::recomputeMonth);
+        loweredMonths.forEach((month, entry) -> {
+            if (recomputedMonths.contains(month)) return;
+            Optional<CalendarEntry> current = getEntry(month.direction(), monthPeriod(month.month()));
+            if (current.isEmpty()) {
+                recomputeMonth(month);
+            } else if (entry.minPrice() < current.get().minPrice()) {
+                putEntry(month.direction(), monthPeriod(month.month()), entry, month.month().atEndOfMonth());
+            }
+        });
+        log.info("Applied {} flight changes to {} days, {} months recomputed, {} lowered", changes.size(),
+                changesByDay.size(), recomputedMonths.size(), loweredMonths.size());
+        return changedDirections;
+    }
+
+    public static String dayPeriod(LocalDate day) {
+        return DAY_PREFIX + day;
+    }
+
+    public static String monthPeriod(YearMonth month) {
+        return MONTH_PREFIX + month;
+    }
+
+    // Only the cheapest flight getting dearer or going away can raise the minimum
+    private static boolean raisesMinimum(CalendarEntry current, List<FlightChange> changes) {
+        return changes.stream().anyMatch(change -> change.departureDateTime().equals(current.departureDateTime())
+                && (change.newPrice() == null || change.newPrice() > current.minPrice()));
+    }
+
+    private static Optional<CalendarEntry> cheapest(List<FlightChange> changes) {
+        return changes.stream()
+                .filter(change -> change.newPrice() != null)
+                .min(Comparator.comparingDouble(FlightChange::newPrice))
+                .map(change -> new CalendarEntry(change.newPrice(), change.departureDateTime(), change.flightNumber()));
+    }
+
+    private void recomputeDay(CalendarDay day) {
+        Optional<CalendarEntry> cheapest = query(QueryRequest.builder()
+                .tableName(flightTableName)
+                .keyConditionExpression("#direction = :direction AND begins_with(#departureDateTime, :day)")
+                .expressionAttributeNames(Map.of("#direction", DIRECTION, "#departureDateTime", DEPARTURE_DATE_TIME))
+                .expressionAttributeValues(Map.of(
+                        ":direction", AttributeValue.fromS(day.flightsDirection()),
+                        ":day", AttributeValue.fromS(day.day().toString()))), PRICE);
+        writeOrDelete(day.direction(), dayPeriod(day.day()), cheapest, day.day());
+    }
+
+    private void recomputeMonth(CalendarMonth month) {
+        Optional<CalendarEntry> cheapest = query(QueryRequest.builder()
+                .tableName(calendarTableName)
+                .keyConditionExpression("#direction = :direction AND begins_with(#period, :month)")
+                .expressionAttributeNames(Map.of("#direction", DIRECTION, "#period", PERIOD))
+                .expressionAttributeValues(Map.of(
+                        ":direction", AttributeValue.fromS(month.direction()),
+                        ":month", AttributeValue.fromS(DAY_PREFIX + month.month()))), MIN_PRICE);
+        writeOrDelete(month.direction(), monthPeriod(month.month()), cheapest, month.month().atEndOfMonth());
+    }
+
+    // Cheapest of the queried items, read consistently since the change that triggered it was just written
+    private Optional<CalendarEntry> query(QueryRequest.Builder request, String priceAttribute) {
+        CalendarEntry cheapest = null;
+        Map<String, AttributeValue> exclusiveStartKey = null;
+        do {
+            QueryResponse page = dynamoDbClient.query(request
+                    .consistentRead(true)
+                    .exclusiveStartKey(exclusiveStartKey)
+                    .build());
+            for (Map<String, AttributeValue> item : page.items()) {
+                if (!item.containsKey(priceAttribute)) continue;
+                double price = Double.parseDouble(item.get(priceAttribute).n());
+                if (cheapest == null || price < cheapest.minPrice()) {
+                    cheapest = new CalendarEntry(price, item.get(DEPARTURE_DATE_TIME).s(),
+                            item.containsKey(FLIGHT_NUMBER) ? item.get(FLIGHT_NUMBER).s() : null);
+                }
+            }
+            exclusiveStartKey = page.hasLastEvaluatedKey() ? page.lastEvaluatedKey() : null;
+        } while (exclusiveStartKey != null);
+        return Optional.ofNullable(cheapest);
+    }
+
+    private void writeOrDelete(String direction, String period, Optional<CalendarEntry> entry, LocalDate lastDay) {
+        if (entry.isPresent()) {
+            putEntry(direction, period, entry.get(), lastDay);
+        } else {
+            dynamoDbClient.deleteItem(DeleteItemRequest.builder()
+                    .tableName(calendarTableName)
+                    .key(key(direction, period))
+                    .build());
+        }
+    }
+
+    private Optional<CalendarEntry> getEntry(String direction, String period) {
+        Map<String, AttributeValue> item = dynamoDbClient.getItem(GetItemRequest.builder()
+                .tableName(calendarTableName)
+                .key(key(direction, period))
+                .consistentRead(true)
+                .build()).item();
+        if (item == null || item.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(new CalendarEntry(Double.parseDouble(item.get(MIN_PRICE).n()),
+                item.get(DEPARTURE_DATE_TIME).s(),
+                item.containsKey(FLIGHT_NUMBER) ? item.get(FLIGHT_NUMBER).s() : null));
+    }
+
+    private void putEntry(String direction, String period, CalendarEntry entry, LocalDate lastDay) {
+        Map<String, AttributeValue> item = new HashMap<>(key(direction, period));
+        item.put(MIN_PRICE, AttributeValue.fromN(String.valueOf(entry.minPrice())));
+        item.put(DEPARTURE_DATE_TIME, AttributeValue.fromS(entry.departureDateTime()));
+        if (entry.flightNumber() != null) {
+            item.put(FLIGHT_NUMBER, AttributeValue.fromS(entry.flightNumber()));
+        }
+        item.put(EXPIRES_AT, AttributeValue.fromN(String.valueOf(
+                lastDay.plusDays(RETENTION_DAYS).atStartOfDay().toEpochSecond(ZoneOffset.UTC))));
+
+        dynamoDbClient.putItem(PutItemRequest.builder()
+                .tableName(calendarTableName)
+                .item(item)
+                .build());
+    }
+
+    private static Map<String, AttributeValue> key(String direction, String period) {
+        return Map.of(DIRECTION, AttributeValue.fromS(direction), PERIOD, AttributeValue.fromS(period));
+    }
+}
@@ -0,0 +1,225 @@
+package com.aerotrack.lambda.workflow.deals;
+
+import com.aerotrack.lambda.workflow.calendar.PriceCalendarAggregator;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Cheapest round trips from every origin to each of its destinations, for a few stay lengths, in one item per origin.
+ * A round trip is priced on the daily minimums of the price calendar, so only the pairs of airports whose calendar
+ * just changed are priced again, each from the two day ranges of its directions.
+ * <p>
+ * Every stay length keeps the cheapest few outbound dates rather than the cheapest one, since a pair whose flights stop
+ * changing isn't priced again: once the first date leaves, readers fall back to the next one instead of losing the
+ * destination.
+ * <p>
+ * The directions of an origin come from different stream shards, so its item is written with a version check and
+ * read again when another writer got there first.
+ */
+@Slf4j
+public class BestDealsIndex {
+    public static final String TABLE_ENV_VAR = "DEALS_TABLE";
+    public static final String CALENDAR_TABLE_ENV_VAR = "PRICE_CALENDAR_TABLE";
+    public static final String ORIGIN = "origin";
+    public static final String DEALS = "deals";
+    public static final String VERSION = "version";
+    public static final String PRICE = "price";
+    public static final String OUTBOUND_DATE = "outboundDate";
+    public static final String RETURN_DATE = "returnDate";
+    public static final String MIN_DAYS = "minDays";
+    public static final String MAX_DAYS = "maxDays";
+    // Outbound dates kept per destination and stay length, cheapest first
+    public static final int DEALS_PER_BUCKET = 3;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final String LAST_DAY = "9999-12-31";
+
+    /** Days between the outbound and the return flight, both inclusive. */
+    public enum StayBucket {
+        WEEKEND(1, 3), WEEK(4, 7), TWO_WEEKS(8, 14);
+
+        private final int minDays;
+        private final int maxDays;
+
+        StayBucket(int minDays, int maxDays) {
+            this.minDays = minDays;
+            this.maxDays = maxDays;
+        }
+    }
+
+    public record Deal(double price, LocalDate outboundDate, LocalDate returnDate) { }
+
+    private record AirportPair(String origin, String destination) { }
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String calendarTableName;
+    private final String tableName;
+
+    public BestDealsIndex(DynamoDbClient dynamoDbClient, String calendarTableName, String tableName) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.calendarTableName = calendarTableName;
+        this.tableName = tableName;
+    }
+
+    public static Optional<BestDealsIndex> fromEnvironment() {
+        return Optional.ofNullable(System.getenv(TABLE_ENV_VAR))
+                .map(tableName -> new BestDealsIndex(DynamoDbClient.create(), System.getenv(CALENDAR_TABLE_ENV_VAR),
+                        tableName));
+    }
+
+    /** Prices again the round trips that have one of the calendar directions as outbound or return leg. */
+    public void update(Set<String> changedDirections) {
+        Set<AirportPair> pairs = new LinkedHashSet<>();
+        for (String direction : changedDirections) {
+            int separator = direction.indexOf('#');
+            String departure = direction.substring(0, separator);
+            String destination = direction.substring(separator + 1);
+            pairs.add(new AirportPair(departure, destination));
+            pairs.add(new AirportPair(destination, departure));
+        }
+
+        int written = 0;
+        for (AirportPair pair : pairs) {
+            if (writeDeals(pair, bestDeals(pair))) written++;
+        }
+        log.info("Priced {} airport pairs of {} changed directions, {} deals changed", pairs.size(),
+                changedDirections.size(), written);
+    }
+
+    private Map<StayBucket, List<Deal>> bestDeals(AirportPair pair) {
+        Map<StayBucket, List<Deal>> deals = new EnumMap<>(StayBucket.class);
+        TreeMap<LocalDate, Double> outbound = dayMinimums(pair.origin(), pair.destination());
+        TreeMap<LocalDate, Double> returns = dayMinimums(pair.destination(), pair.origin());
+        if (outbound.isEmpty() || returns.isEmpty()) {
+            return deals;
+        }
+
+        for (StayBucket bucket : StayBucket.values()) {
+            // Cheapest return of every outbound date, so the dates kept are all different
+            List<Deal> byOutboundDate = new ArrayList<>();
+            for (Map.Entry<LocalDate, Double> out : outbound.entrySet()) {
+                Deal best = null;
+                for (int days = bucket.minDays; days <= bucket.maxDays; days++) {
+                    LocalDate returnDate = out.getKey().plusDays(days);
+                    Double returnPrice = returns.get(returnDate);
+                    if (returnPrice == null) continue;
+                    double price = out.getValue() + returnPrice;
+                    if (best == null || price < best.price()) {
+                        best = new Deal(price, out.getKey(), returnDate);
+                    }
+                }
+                if (best != null) byOutboundDate.add(best);
+            }
+            if (!byOutboundDate.isEmpty()) {
+                deals.put(bucket, byOutboundDate.stream()
+                        .sorted(Comparator.comparingDouble(Deal::price).thenComparing(Deal::outboundDate))
+                        .limit(DEALS_PER_BUCKET)
+                        .toList());
+            }
+        }
+        return deals;
+    }
+
+    // Cheapest fare of every day from today on, from the price calendar
+    private TreeMap<LocalDate, Double> dayMinimums(String departure, String destination) {
+        TreeMap<LocalDate, Double> minimums = new TreeMap<>();
+        Map<String, AttributeValue> exclusiveStartKey = null;
+        do {
+            QueryResponse page = dynamoDbClient.query(QueryRequest.builder()
+                    .tableName(calendarTableName)
+                    .keyConditionExpression("#direction = :direction AND #period BETWEEN :start AND :end")
+                    .expressionAttributeNames(Map.of(
+                            "#direction", PriceCalendarAggregator.DIRECTION,
+                            "#period", PriceCalendarAggregator.PERIOD))
+                    .expressionAttributeValues(Map.of(
+                            ":direction", AttributeValue.fromS(
+                                    PriceCalendarAggregator.calendarDirection(departure, destination)),
+                            ":start", AttributeValue.fromS(PriceCalendarAggregator.dayPeriod(LocalDate.now())),
+                            ":end", AttributeValue.fromS(PriceCalendarAggregator.DAY_PREFIX + LAST_DAY)))
+                    .consistentRead(true)
+                    .exclusiveStartKey(exclusiveStartKey)
+                    .build());
+
+            for (Map<String, AttributeValue> item : page.items()) {
+                minimums.put(
+                        LocalDate.parse(item.get(PriceCalendarAggregator.PERIOD).s()
+                                .substring(PriceCalendarAggregator.DAY_PREFIX.length())),
+                        Double.parseDouble(item.get(PriceCalendarAggregator.MIN_PRICE).n()));
+            }
+            exclusiveStartKey = page.hasLastEvaluatedKey() ? page.lastEvaluatedKey() : null;
+        } while (exclusiveStartKey != null);
+        return minimums;
+    }
+
+    // False when the destination already had the same deals
+    private boolean writeDeals(AirportPair pair, Map<StayBucket, List<Deal>> deals) {
+        AttributeValue destinationDeals = deals.isEmpty() ? null : toAttribute(deals);
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            Map<String, AttributeValue> item = dynamoDbClient.getItem(GetItemRequest.builder()
+                    .tableName(tableName)
+                    .key(Map.of(ORIGIN, AttributeValue.fromS(pair.origin())))
+                    .consistentRead(true)
+                    .build()).item();
+            boolean exists = item != null && !item.isEmpty();
+            long version = exists ? Long.parseLong(item.get(VERSION).n()) : 0;
+            Map<String, AttributeValue> originDeals = exists ? new HashMap<>(item.get(DEALS).m()) : new HashMap<>();
+
+            AttributeValue previous = destinationDeals == null
+                    ? originDeals.remove(pair.destination())
+                    : originDeals.put(pair.destination(), destinationDeals);
+            if (previous == null ? destinationDeals == null : previous.equals(destinationDeals)) {
+                return false;
+            }
+
+            try {
+                dynamoDbClient.putItem(PutItemRequest.builder()
+                        .tableName(tableName)
+                        .item(Map.of(
+                                ORIGIN, AttributeValue.fromS(pair.origin()),
+                                DEALS, AttributeValue.fromM(originDeals),
+                                VERSION, AttributeValue.fromN(String.valueOf(version + 1))))
+                        .conditionExpression(exists ? "#version = :version" : "attribute_not_exists(#origin)")
+                        .expressionAttributeNames(exists ? Map.of("#version", VERSION) : Map.of("#origin", ORIGIN))
+                        .expressionAttributeValues(exists
+                                ? Map.of(":version", AttributeValue.fromN(String.valueOf(version)))
+                                : null)
+                        .build());
+                return true;
+            } catch (ConditionalCheckFailedException e) {
+                log.warn("Deals of {} changed meanwhile, attempt {} of {}", pair.origin(), attempt, MAX_ATTEMPTS);
+            }
+        }
+        // The batch is retried, pricing the pair again is harmless
+        throw new IllegalStateException("Could not update the deals of " + pair.origin());
+    }
+
+    private static AttributeValue toAttribute(Map<StayBucket, List<Deal>> deals) {
+        Map<String, AttributeValue> buckets = new HashMap<>();
+        deals.forEach((bucket, bucketDeals) -> buckets.put(bucket.name(), AttributeValue.fromL(bucketDeals.stream()
+                .map(deal -> AttributeValue.fromM(Map.of(
+                        PRICE, AttributeValue.fromN(String.valueOf(deal.price())),
+                        OUTBOUND_DATE, AttributeValue.fromS(deal.outboundDate().toString()),
+                        RETURN_DATE, AttributeValue.fromS(deal.returnDate().toString()),
+                        MIN_DAYS, AttributeValue.fromN(String.valueOf(bucket.minDays)),
+                        MAX_DAYS, AttributeValue.fromN(String.valueOf(bucket.maxDays)))))
+                .toList())));
+        return AttributeValue.fromM(buckets);
+    }
+}
@@ -0,0 +1,160 @@
+package com.aerotrack.lambda.workflow.presence;
+
+import com.aerotrack.model.entities.Flight;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Departure days with stored flights of every direction, one item per direction holding the set of its epoch days.
+ * Days are added atomically, so the refresh lambdas running side by side never drop each other's days, and they are
+ * added before the flights are written: the query side may still read a day that turns out empty, but it never skips
+ * a day with stored flights. A direction whose days couldn't be recorded is marked incomplete until its flights are
+ * gone, and the query side reads it whatever its days say.
+ */
+public class FlightPresenceWriter {
+    public static final String TABLE_ENV_VAR = "FLIGHT_PRESENCE_TABLE";
+    public static final String DIRECTION = "direction";
+    public static final String DAYS = "days";
+    public static final String EXPIRES_AT = "expiresAt";
+    public static final String TRACKED_SINCE = "trackedSince";
+    // Set once the flights stored before the tracking started have been added by the backfill
+    public static final String BACKFILLED_AT = "backfilledAt";
+    public static final String INCOMPLETE_UNTIL = "incompleteUntil";
+    // Where each segment of the backfill scan stopped, kept on the tracking item so a cut short backfill resumes
+    public static final String BACKFILL_SEGMENT_PREFIX = "backfillSegment";
+    // Day the tracking started, flights stored before it aren't in the index until the backfill adds them
+    public static final String TRACKING_ITEM = "#tracking";
+    // Flights are refreshed up to a year ahead, a direction without writes for longer has none left
+    private static final Duration RETENTION = Duration.ofDays(400);
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
+
+    public FlightPresenceWriter(DynamoDbClient dynamoDbClient, String tableName) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.tableName = tableName;
+    }
+
+    public static Optional<FlightPresenceWriter> fromEnvironment() {
+        return Optional.ofNullable(System.getenv(TABLE_ENV_VAR))
+                .map(tableName -> new FlightPresenceWriter(DynamoDbClient.create(), tableName));
+    }
+
+    public static String directionKey(String departure, String destination) {
+        return departure + "#" + destination;
+    }
+
+    /** Marks the start of the tracking the first time only, later calls leave it as it is. */
+    public void recordTracking() {
+        dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                .tableName(tableName)
+                .key(Map.of(DIRECTION, AttributeValue.fromS(TRACKING_ITEM)))
+                .updateExpression("SET #trackedSince = if_not_exists(#trackedSince, :today)")
+                .expressionAttributeNames(Map.of("#trackedSince", TRACKED_SINCE))
+                .expressionAttributeValues(Map.of(
+                        ":today", AttributeValue.fromN(String.valueOf(LocalDate.now().toEpochDay()))))
+                .build());
+    }
+
+    /** Marks the flights stored before the tracking as added, the tracking must have started before the backfill. */
+    public void recordBackfill() {
+        dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                .tableName(tableName)
+                .key(Map.of(DIRECTION, AttributeValue.fromS(TRACKING_ITEM)))
+                .updateExpression("SET #backfilledAt = :today")
+                .conditionExpression("attribute_exists(#trackedSince)")
+                .expressionAttributeNames(Map.of("#backfilledAt", BACKFILLED_AT, "#trackedSince", TRACKED_SINCE))
+                .expressionAttributeValues(Map.of(
+                        ":today", AttributeValue.fromN(String.valueOf(LocalDate.now().toEpochDay()))))
+                .build());
+    }
+
+    /** Key of the last flights page the backfill segment recorded, null before its first page, empty once finished. */
+    public Map<String, AttributeValue> backfillProgress(int segment, int segments) {
+        Map<String, AttributeValue> tracking = dynamoDbClient.getItem(GetItemRequest.builder()
+                .tableName(tableName)
+                .key(Map.of(DIRECTION, AttributeValue.fromS(TRACKING_ITEM)))
+                .consistentRead(true)
+                .build()).item();
+        AttributeValue progress = tracking == null ? null : tracking.get(backfillSegment(segment, segments));
+        return progress == null ? null : progress.m();
+    }
+
+    /** Records the key of the last flights page of the backfill segment whose days were added, empty once finished. */
+    public void recordBackfillProgress(int segment, int segments, Map<String, AttributeValue> lastEvaluatedKey) {
+        dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                .tableName(tableName)
+                .key(Map.of(DIRECTION, AttributeValue.fromS(TRACKING_ITEM)))
+                .updateExpression("SET #segment = :lastEvaluatedKey")
+                .expressionAttributeNames(Map.of("#segment", backfillSegment(segment, segments)))
+                .expressionAttributeValues(Map.of(":lastEvaluatedKey", AttributeValue.fromM(lastEvaluatedKey)))
+                .build());
+    }
+
+    // The keys of a segment only resume the scan with the same number of segments
+    private static String backfillSegment(int segment, int segments) {
+        return BACKFILL_SEGMENT_PREFIX + segment + "of" + segments;
+    }
+
+    public void recordFlights(String departure, String destination, List<Flight> flights) {
+        recordDays(departure, destination, flights.stream().map(FlightPresenceWriter::departureDay).toList());
+    }
+
+    public void recordDays(String departure, String destination, Collection<Long> epochDays) {
+        List<String> days = epochDays.stream().distinct().map(String::valueOf).toList();
+        if (days.isEmpty()) {
+            return;
+        }
+
+        dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                .tableName(tableName)
+                .key(Map.of(DIRECTION, AttributeValue.fromS(directionKey(departure, destination))))
+                .updateExpression("ADD #days :days SET #expiresAt = :expiresAt")
+                .expressionAttributeNames(Map.of("#days", DAYS, "#expiresAt", EXPIRES_AT))
+                .expressionAttributeValues(Map.of(
+                        ":days", AttributeValue.fromNs(days),
+                        ":expiresAt", AttributeValue.fromN(String.valueOf(
+                                Instant.now().plus(RETENTION).getEpochSecond()))))
+                .build());
+    }
+
+    /** Marks the direction incomplete until the last departure of the flights whose days couldn't be recorded. */
+    public void recordIncomplete(String departure, String destination, List<Flight> flights) {
+        Optional<Long> lastDay = flights.stream().map(FlightPresenceWriter::departureDay).max(Long::compare);
+        if (lastDay.isEmpty()) {
+            return;
+        }
+
+        try {
+            dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                    .tableName(tableName)
+                    .key(Map.of(DIRECTION, AttributeValue.fromS(directionKey(departure, destination))))
+                    .updateExpression("SET #incompleteUntil = :lastDay, #expiresAt = :expiresAt")
+                    // An earlier failure may already cover later days
+                    .conditionExpression("attribute_not_exists(#incompleteUntil) OR #incompleteUntil < :lastDay")
+                    .expressionAttributeNames(Map.of("#incompleteUntil", INCOMPLETE_UNTIL, "#expiresAt", EXPIRES_AT))
+                    .expressionAttributeValues(Map.of(
+                            ":lastDay", AttributeValue.fromN(String.valueOf(lastDay.get())),
+                            ":expiresAt", AttributeValue.fromN(String.valueOf(
+                                    Instant.now().plus(RETENTION).getEpochSecond()))))
+                    .build());
+        } catch (ConditionalCheckFailedException e) {
+            // Already incomplete for longer
+        }
+    }
+
+    private static long departureDay(Flight flight) {
+        return LocalDate.parse(flight.getDepartureDateTime().substring(0, 10)).toEpochDay();
+    }
+}
@@ -1,6 +1,12 @@
 package com.aerotrack.lambda;
 
 import com.aerotrack.lambda.workflow.FlightRefreshWorkflow;
+import com.aerotrack.lambda.workflow.backfill.FlightPresenceBackfill;
+import com.aerotrack.lambda.workflow.backfill.OriginIndexBackfill;
+import com.aerotrack.lambda.workflow.calendar.PriceCalendarAggregator;
+import com.aerotrack.lambda.workflow.calendar.PriceCalendarAggregator.FlightChange;
+import com.aerotrack.lambda.workflow.deals.BestDealsIndex;
+import com.aerotrack.lambda.workflow.presence.FlightPresenceWriter;
 import com.aerotrack.model.entities.Airport;
 import com.aerotrack.model.entities.Flight;
 import com.aerotrack.model.entities.FlightList;
@@ -11,19 +17,37 @@ import software.amazon.awssdk.enhanced.dynamodb.DynamoDbTable;
 import com.aerotrack.utils.clients.s3.AerotrackS3Client;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
 import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
 
 import java.io.IOException;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -113,4 +137,220 @@ class FlightsRefreshLambdaTest {
         assert(lessThan180 > moreThan180);
     }
 
+
+    @Test
+    void applyFlightChanges_CheapestFlightExpires_DayAndMonthRecomputed() {
+        DynamoDbClient dynamoDbClient = mock(DynamoDbClient.class);
+        // Calendar items by period, and the flights of the day in the flights table
+        Map<String, Map<String, AttributeValue>> calendar = new TreeMap<>();
+        List<Map<String, AttributeValue>> flights = new ArrayList<>(List.of(
+                flightItem("2024-05-03T10:00:00.000", "FR1", "100.0"),
+                flightItem("2024-05-03T18:00:00.000", "FR2", "120.0")));
+        when(dynamoDbClient.getItem(any(GetItemRequest.class))).thenAnswer(invocation -> {
+            GetItemRequest request = invocation.getArgument(0);
+            return GetItemResponse.builder()
+                    .item(calendar.get(request.key().get(PriceCalendarAggregator.PERIOD).s()))
+                    .build();
+        });
+        when(dynamoDbClient.putItem(any(PutItemRequest.class))).thenAnswer(invocation -> {
+            PutItemRequest request = invocation.getArgument(0);
+            calendar.put(request.item().get(PriceCalendarAggregator.PERIOD).s(), request.item());
+            return null;
+        });
+        when(dynamoDbClient.query(any(QueryRequest.class))).thenAnswer(invocation -> {
+            QueryRequest request = invocation.getArgument(0);
+            if ("flights".equals(request.tableName())) {
+                return QueryResponse.builder().items(flights).build();
+            }
+            String prefix = request.expressionAttributeValues().get(":month").s();
+            return QueryResponse.builder().items(calendar.entrySet().stream()
+                    .filter(entry -> entry.getKey().startsWith(prefix))
+                    .map(Map.Entry::getValue)
+                    .toList()).build();
+        });
+        PriceCalendarAggregator aggregator = new PriceCalendarAggregator(dynamoDbClient, "flights", "calendar");
+
+        // The first change of a day reads it whole, an unchanged price is ignored
+        aggregator.apply(List.of(
+                new FlightChange("TSF#VIE", "TSF-VIE", "2024-05-03T18:00:00.000", "FR2", null, 120.0),
+                new FlightChange("TSF#VIE", "TSF-VIE", "2024-05-04T10:00:00.000", "FR3", 150.0, 150.0)));
+        assertEquals(2, calendar.size());
+        assertEquals("100.0", calendar.get("D#2024-05-03").get(PriceCalendarAggregator.MIN_PRICE).n());
+        assertEquals("100.0", calendar.get("M#2024-05").get(PriceCalendarAggregator.MIN_PRICE).n());
+
+        // A cheaper flight only lowers the minimum, without reading the day again
+        flights.add(flightItem("2024-05-03T06:00:00.000", "FR4", "90.0"));
+        aggregator.apply(List.of(
+                new FlightChange("TSF#VIE", "TSF-VIE", "2024-05-03T06:00:00.000", "FR4", null, 90.0)));
+        assertEquals("90.0", calendar.get("M#2024-05").get(PriceCalendarAggregator.MIN_PRICE).n());
+        verify(dynamoDbClient, times(2)).query(any(QueryRequest.class));
+
+        // The cheapest flights expiring leave the next one, read back from the flights table
+        flights.remove(2);
+        flights.remove(0);
+        aggregator.apply(List.of(
+                new FlightChange("TSF#VIE", "TSF-VIE", "2024-05-03T06:00:00.000", "FR4", 90.0, null),
+                new FlightChange("TSF#VIE", "TSF-VIE", "2024-05-03T10:00:00.000", "FR1", 100.0, null)));
+        assertEquals("120.0", calendar.get("D#2024-05-03").get(PriceCalendarAggregator.MIN_PRICE).n());
+        assertEquals("120.0", calendar.get("M#2024-05").get(PriceCalendarAggregator.MIN_PRICE).n());
+        assertEquals("FR2", calendar.get("M#2024-05").get(PriceCalendarAggregator.FLIGHT_NUMBER).s());
+    }
+
+    private static Map<String, AttributeValue> flightItem(String departureDateTime, String flightNumber, String price) {
+        return Map.of(
+                PriceCalendarAggregator.DEPARTURE_DATE_TIME, AttributeValue.fromS(departureDateTime),
+                PriceCalendarAggregator.FLIGHT_NUMBER, AttributeValue.fromS(flightNumber),
+                PriceCalendarAggregator.PRICE, AttributeValue.fromN(price));
+    }
+
+    @Test
+    void backfillOriginIndex_FlightsWithoutKeys_KeysAdded() {
+        DynamoDbClient dynamoDbClient = mock(DynamoDbClient.class);
+        when(dynamoDbClient.scan(any(ScanRequest.class))).thenAnswer(invocation -> {
+            ScanRequest request = invocation.getArgument(0);
+            return ScanResponse.builder()
+                    .items(request.segment() == 0
+                            ? List.of(flightKey("TSF-VIE", "2024-05-03T10:00:00.000"), flightKey("VIE-TSF", "2024-05-04T10:00:00.000"))
+                            : List.of())
+                    .build();
+        });
+        // The second flight expired since the scan
+        when(dynamoDbClient.updateItem(any(UpdateItemRequest.class))).thenAnswer(invocation -> {
+            UpdateItemRequest request = invocation.getArgument(0);
+            if (request.key().get(FlightRefreshWorkflow.DIRECTION_ATTRIBUTE).s().equals("VIE-TSF")) {
+                throw ConditionalCheckFailedException.builder().build();
+            }
+            return null;
+        });
+
+        assertEquals(1, new OriginIndexBackfill(dynamoDbClient, "flights", 2).run(Instant.now().plusSeconds(60)));
+
+        ArgumentCaptor<ScanRequest> scan = ArgumentCaptor.forClass(ScanRequest.class);
+        verify(dynamoDbClient, times(2)).scan(scan.capture());
+        assertEquals(Set.of(0, 1), scan.getAllValues().stream().map(ScanRequest::segment).collect(Collectors.toSet()));
+        ArgumentCaptor<UpdateItemRequest> update = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        verify(dynamoDbClient, times(2)).updateItem(update.capture());
+        UpdateItemRequest added = update.getAllValues().stream()
+                .filter(request -> request.key().get(FlightRefreshWorkflow.DIRECTION_ATTRIBUTE).s().equals("TSF-VIE"))
+                .findFirst().orElseThrow();
+        assertEquals("TSF", added.expressionAttributeValues().get(":origin").s());
+        assertEquals("2024-05-03T10:00:00.000#VIE", added.expressionAttributeValues().get(":dateDestination").s());
+
+        assertThrows(IllegalStateException.class,
+                () -> new OriginIndexBackfill(dynamoDbClient, "flights", 2).run(Instant.now().minusSeconds(1)));
+    }
+
+    @Test
+    void backfillFlightPresence_StoredFlights_DaysAddedThenMarked() {
+        DynamoDbClient dynamoDbClient = mock(DynamoDbClient.class);
+        when(dynamoDbClient.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder().build());
+        when(dynamoDbClient.scan(any(ScanRequest.class))).thenAnswer(invocation -> {
+            ScanRequest request = invocation.getArgument(0);
+            return ScanResponse.builder()
+                    .items(request.segment() == 0
+                            ? List.of(flightKey("TSF-VIE", "2024-05-03T10:00:00.000"), flightKey("TSF-VIE", "2024-05-03T18:00:00.000"))
+                            : List.of(flightKey("TSF-VIE", "2024-05-04T10:00:00.000"), flightKey("VIE-TSF", "2024-05-04T10:00:00.000")))
+                    .build();
+        });
+        FlightPresenceBackfill backfill = new FlightPresenceBackfill(dynamoDbClient, "flights",
+                new FlightPresenceWriter(dynamoDbClient, "presence"), 2);
+
+        assertEquals(2, backfill.run(Instant.now().plusSeconds(60)));
+
+        // The tracking starts before the scan, the days of each page go in one update per direction, then the page
+        // is recorded as done, and the marker comes last
+        ArgumentCaptor<UpdateItemRequest> update = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        verify(dynamoDbClient, times(7)).updateItem(update.capture());
+        List<UpdateItemRequest> updates = update.getAllValues();
+        assertTrue(updates.get(0).updateExpression().contains("#trackedSince"));
+        assertTrue(updates.get(6).updateExpression().contains("#backfilledAt"));
+        Set<String> outboundDays = updates.stream()
+                .filter(request -> request.key().get(FlightPresenceWriter.DIRECTION).s().equals("TSF#VIE"))
+                .flatMap(request -> request.expressionAttributeValues().get(":days").ns().stream())
+                .collect(Collectors.toSet());
+        assertEquals(Set.of(String.valueOf(LocalDate.parse("2024-05-03").toEpochDay()),
+                        String.valueOf(LocalDate.parse("2024-05-04").toEpochDay())), outboundDays);
+        Set<String> finishedSegments = updates.stream()
+                .filter(request -> request.updateExpression().contains("#segment"))
+                .filter(request -> request.expressionAttributeValues().get(":lastEvaluatedKey").m().isEmpty())
+                .map(request -> request.expressionAttributeNames().get("#segment"))
+                .collect(Collectors.toSet());
+        assertEquals(Set.of(FlightPresenceWriter.BACKFILL_SEGMENT_PREFIX + "0of2",
+                FlightPresenceWriter.BACKFILL_SEGMENT_PREFIX + "1of2"), finishedSegments);
+    }
+
+    @Test
+    void backfillFlightPresence_RecordedProgress_ResumedAfterIt() {
+        DynamoDbClient dynamoDbClient = mock(DynamoDbClient.class);
+        Map<String, AttributeValue> lastEvaluatedKey = flightKey("TSF-VIE", "2024-05-04T10:00:00.000");
+        when(dynamoDbClient.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of(
+                        FlightPresenceWriter.DIRECTION, AttributeValue.fromS(FlightPresenceWriter.TRACKING_ITEM),
+                        FlightPresenceWriter.BACKFILL_SEGMENT_PREFIX + "0of2", AttributeValue.fromM(Map.of()),
+                        FlightPresenceWriter.BACKFILL_SEGMENT_PREFIX + "1of2", AttributeValue.fromM(lastEvaluatedKey)))
+                .build());
+        when(dynamoDbClient.scan(any(ScanRequest.class))).thenReturn(ScanResponse.builder()
+                .items(List.of(flightKey("VIE-TSF", "2024-05-04T10:00:00.000")))
+                .build());
+        FlightPresenceBackfill backfill = new FlightPresenceBackfill(dynamoDbClient, "flights",
+                new FlightPresenceWriter(dynamoDbClient, "presence"), 2);
+
+        assertEquals(1, backfill.run(Instant.now().plusSeconds(60)));
+
+        // The finished segment is not scanned again, the other one continues after its last recorded page
+        ArgumentCaptor<ScanRequest> scan = ArgumentCaptor.forClass(ScanRequest.class);
+        verify(dynamoDbClient, times(1)).scan(scan.capture());
+        assertEquals(1, scan.getValue().segment());
+        assertEquals(lastEvaluatedKey, scan.getValue().exclusiveStartKey());
+    }
+
+    private static Map<String, AttributeValue> flightKey(String direction, String departureDateTime) {
+        return Map.of(
+                FlightRefreshWorkflow.DIRECTION_ATTRIBUTE, AttributeValue.fromS(direction),
+                FlightRefreshWorkflow.DEPARTURE_DATE_TIME_ATTRIBUTE, AttributeValue.fromS(departureDateTime));
+    }
+
+    @Test
+    void updateBestDeals_ChangedDirection_BothOriginsPriced() {
+        DynamoDbClient dynamoDbClient = mock(DynamoDbClient.class);
+        LocalDate today = LocalDate.now();
+        Map<String, List<Map<String, AttributeValue>>> dayMinimums = Map.of(
+                "TSF#VIE", List.of(dayItem(today.plusDays(10), "50.0"), dayItem(today.plusDays(11), "30.0")),
+                "VIE#TSF", List.of(dayItem(today.plusDays(12), "40.0"), dayItem(today.plusDays(13), "10.0"),
+                        dayItem(today.plusDays(20), "5.0")));
+        when(dynamoDbClient.query(any(QueryRequest.class))).thenAnswer(invocation -> {
+            QueryRequest request = invocation.getArgument(0);
+            return QueryResponse.builder()
+                    .items(dayMinimums.get(request.expressionAttributeValues().get(":direction").s()))
+                    .build();
+        });
+        when(dynamoDbClient.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder().build());
+        BestDealsIndex index = new BestDealsIndex(dynamoDbClient, "calendar", "deals");
+
+        index.update(Set.of("TSF#VIE"));
+
+        // Leaving from Vienna there's no return after the outbound flights, so only Treviso gets deals
+        ArgumentCaptor<PutItemRequest> put = ArgumentCaptor.forClass(PutItemRequest.class);
+        verify(dynamoDbClient, times(1)).putItem(put.capture());
+        assertEquals("TSF", put.getValue().item().get(BestDealsIndex.ORIGIN).s());
+        Map<String, AttributeValue> deals = put.getValue().item().get(BestDealsIndex.DEALS).m().get("VIE").m();
+        // Every outbound date keeps its cheapest return, the next dates stand in once the first one leaves
+        List<AttributeValue> weekend = deals.get(BestDealsIndex.StayBucket.WEEKEND.name()).l();
+        assertEquals(2, weekend.size());
+        assertEquals("40.0", weekend.get(0).m().get(BestDealsIndex.PRICE).n());
+        assertEquals(today.plusDays(11).toString(), weekend.get(0).m().get(BestDealsIndex.OUTBOUND_DATE).s());
+        assertEquals(today.plusDays(13).toString(), weekend.get(0).m().get(BestDealsIndex.RETURN_DATE).s());
+        assertEquals("60.0", weekend.get(1).m().get(BestDealsIndex.PRICE).n());
+        assertEquals(today.plusDays(10).toString(), weekend.get(1).m().get(BestDealsIndex.OUTBOUND_DATE).s());
+        assertFalse(deals.containsKey(BestDealsIndex.StayBucket.WEEK.name()));
+        assertEquals(List.of("35.0", "55.0"), deals.get(BestDealsIndex.StayBucket.TWO_WEEKS.name()).l().stream()
+                .map(deal -> deal.m().get(BestDealsIndex.PRICE).n())
+                .toList());
+    }
+
+    private static Map<String, AttributeValue> dayItem(LocalDate day, String minPrice) {
+        return Map.of(
+                PriceCalendarAggregator.PERIOD, AttributeValue.fromS(PriceCalendarAggregator.dayPeriod(day)),
+                PriceCalendarAggregator.MIN_PRICE, AttributeValue.fromN(minPrice));
+    }
 }
@@ -0,0 +1,35 @@
+package com.aerotrack.lambda.cache;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Version of the airports files as the ETags of the objects at the root of the bucket. A single listing covers all of
+ * them, without downloading or parsing anything.
+ */
+public class BucketVersionProbe implements Callable<String> {
+    private final S3Client s3Client;
+    private final String bucketName;
+
+    public BucketVersionProbe(S3Client s3Client, String bucketName) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+    }
+
+    @Override
+    public String call() {
+        ListObjectsV2Request request = ListObjectsV2Request.builder()
+                .bucket(bucketName)
+                .delimiter("/")
+                .build();
+
+        StringBuilder version = new StringBuilder();
+        for (S3Object object : s3Client.listObjectsV2Paginator(request).contents()) {
+            version.append(object.key()).append('=').append(object.eTag()).append(';');
+        }
+        return version.toString();
+    }
+}
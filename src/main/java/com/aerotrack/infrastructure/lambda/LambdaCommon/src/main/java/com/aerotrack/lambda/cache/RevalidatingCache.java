@@ -0,0 +1,104 @@
+package com.aerotrack.lambda.cache;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps a loaded value across warm invocations. Once the value is older than {@code revalidateAfter}, the next read
+ * still gets the cached copy while a background check compares the source version and reloads only if it changed.
+ * Without a version probe the value is simply reloaded in the background.
+ */
+@Slf4j
+public class RevalidatingCache<T> {
+    private static final ExecutorService REVALIDATION_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cache-revalidation");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final Callable<T> loader;
+    private final Callable<String> versionProbe;
+    private final long revalidateAfterNanos;
+    private final AtomicBoolean revalidating = new AtomicBoolean();
+    private volatile Entry<T> entry;
+
+    private record Entry<T>(T value, String version, long checkedAtNanos) { }
+
+    public RevalidatingCache(String name, Callable<T> loader, Callable<String> versionProbe, Duration revalidateAfter) {
+        this.name = name;
+        this.loader = loader;
+        this.versionProbe = versionProbe;
+        this.revalidateAfterNanos = revalidateAfter.toNanos();
+    }
+
+    public T get() throws IOException {
+        Entry<T> current = entry;
+        if (current == null) {
+            return loadIfAbsent();
+        }
+
+        if (System.nanoTime() - current.checkedAtNanos() > revalidateAfterNanos && revalidating.compareAndSet(false, true)) {
+            REVALIDATION_EXECUTOR.execute(this::revalidate);
+        }
+        return current.value();
+    }
+
+    private synchronized T loadIfAbsent() throws IOException {
+        if (entry == null) {
+            // The version is read first: if the source changes in between, the next check just reloads it once more
+            String version = probeVersion();
+            entry = new Entry<>(load(), version, System.nanoTime());
+            log.info("Loaded {} at version [{}]", name, version);
+        }
+        return entry.value();
+    }
+
+    private void revalidate() {
+        Entry<T> current = entry;
+        try {
+            String version = probeVersion();
+            if (version != null && version.equals(current.version())) {
+                entry = new Entry<>(current.value(), version, System.nanoTime());
+            } else {
+                entry = new Entry<>(load(), version, System.nanoTime());
+                log.info("Reloaded {} at version [{}]", name, version);
+            }
+        } catch (Exception e) {
+            // The cached copy keeps being served, the check is retried after another interval
+            log.warn("Could not revalidate {}: {}", name, e.getMessage());
+            entry = new Entry<>(current.value(), current.version(), System.nanoTime());
+        } finally {
+            revalidating.set(false);
+        }
+    }
+
+    private String probeVersion() {
+        if (versionProbe == null) {
+            return null;
+        }
+
+        try {
+            return versionProbe.call();
+        } catch (Exception e) {
+            log.warn("Could not read the version of {}: {}", name, e.getMessage());
+            return null;
+        }
+    }
+
+    private T load() throws IOException {
+        try {
+            return loader.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.aerotrack.lambda.http;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content encoding of the API Gateway proxy bodies. The RestApi treats every media type as binary, so request bodies
+ * may arrive base64 encoded, and gzipped response bodies are returned base64 encoded for API Gateway to decode.
+ */
+public final class HttpEncoding {
+    // Below this size the gzip header and the base64 overhead outweigh the savings
+    public static final int MIN_COMPRESSED_BODY_BYTES = 1024;
+    private static final String GZIP = "gzip";
+
+    private HttpEncoding() { }
+
+    public static String decodedBody(APIGatewayProxyRequestEvent request) {
+        String body = request.getBody();
+        if (body != null && Boolean.TRUE.equals(request.getIsBase64Encoded())) {
+            return new String(Base64.getDecoder().decode(body), StandardCharsets.UTF_8);
+        }
+        return body;
+    }
+
+    /** Gzips the response body in place when the client accepts it and the body is large enough. */
+    public static APIGatewayProxyResponseEvent encodeResponse(APIGatewayProxyRequestEvent request,
+                                                              APIGatewayProxyResponseEvent response) {
+        Map<String, String> headers = new HashMap<>(response.getHeaders() == null ? Map.of() : response.getHeaders());
+        // Caches in front of the API must keep the encodings apart
+        headers.put("Vary", "Accept-Encoding");
+        response.setHeaders(headers);
+
+        String body = response.getBody();
+        if (body == null || !acceptsGzip(request.getHeaders())) {
+            return response;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < MIN_COMPRESSED_BODY_BYTES) {
+            return response;
+        }
+
+        headers.put("Content-Encoding", GZIP);
+        response.setBody(Base64.getEncoder().encodeToString(gzip(bytes)));
+        response.setIsBase64Encoded(true);
+        return response;
+    }
+
+    static boolean acceptsGzip(Map<String, String> headers) {
+        if (headers == null) {
+            return false;
+        }
+        // Header names are case insensitive and API Gateway forwards them as the client sent them
+        String acceptEncoding = headers.entrySet().stream()
+                .filter(header -> header.getKey().equalsIgnoreCase("Accept-Encoding"))
+                .map(Map.Entry::getValue)
+                .findFirst()
+                .orElse("");
+
+        for (String coding : acceptEncoding.toLowerCase(Locale.ROOT).split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim();
+            if (!name.equals(GZIP) && !name.equals("*")) {
+                continue;
+            }
+            boolean refused = false;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        refused = Double.parseDouble(parameter.substring(2)) <= 0;
+                    } catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+            return !refused;
+        }
+        return false;
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+        try (OutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,47 @@
+package com.aerotrack.lambda;
+
+import com.aerotrack.lambda.http.HttpEncoding;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpEncodingTest {
+
+    @Test
+    void encodeResponse_GzipAccepted_LargeBodiesCompressed() throws IOException {
+        APIGatewayProxyRequestEvent request = new APIGatewayProxyRequestEvent()
+                .withHeaders(Map.of("accept-encoding", "br;q=1.0, gzip;q=0.8"));
+        String largeBody = "{\"trips\":[" + "{\"totalPrice\":100},".repeat(200) + "{}]}";
+
+        APIGatewayProxyResponseEvent large = HttpEncoding.encodeResponse(request, new APIGatewayProxyResponseEvent()
+                .withHeaders(Map.of("Content-Type", "application/json"))
+                .withBody(largeBody));
+        assertEquals("gzip", large.getHeaders().get("Content-Encoding"));
+        assertTrue(large.getIsBase64Encoded());
+        try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(large.getBody())))) {
+            assertEquals(largeBody, new String(gzip.readAllBytes(), StandardCharsets.UTF_8));
+        }
+
+        APIGatewayProxyResponseEvent small = HttpEncoding.encodeResponse(request,
+                new APIGatewayProxyResponseEvent().withBody("{\"trips\":[]}"));
+        assertFalse(small.getHeaders().containsKey("Content-Encoding"));
+        assertEquals("{\"trips\":[]}", small.getBody());
+
+        APIGatewayProxyRequestEvent refusing = new APIGatewayProxyRequestEvent()
+                .withHeaders(Map.of("Accept-Encoding", "gzip;q=0"));
+        assertFalse(HttpEncoding.encodeResponse(refusing, new APIGatewayProxyResponseEvent().withBody(largeBody))
+                .getHeaders().containsKey("Content-Encoding"));
+    }
+}
@@ -1,7 +1,29 @@
 package com.aerotrack.lambda;
 
+import com.aerotrack.common.Constants;
+import com.aerotrack.lambda.cache.BucketVersionProbe;
+import com.aerotrack.lambda.http.HttpEncoding;
 import com.aerotrack.lambda.workflow.QueryLambdaWorkflow;
+import com.aerotrack.lambda.workflow.admission.ScanAdmission;
+import com.aerotrack.lambda.workflow.batch.BatchScan;
+import com.aerotrack.lambda.workflow.admission.ScanCostEstimator.ScanCost;
+import com.aerotrack.lambda.workflow.calendar.PriceCalendar;
+import com.aerotrack.lambda.workflow.calendar.PriceCalendar.CalendarEntry;
+import com.aerotrack.lambda.workflow.deals.BestDeals;
+import com.aerotrack.lambda.workflow.cache.QueryResultCache;
+import com.aerotrack.lambda.workflow.cache.QueryResultCache.CachedResult;
+import com.aerotrack.lambda.workflow.cache.ScanResponseBody;
+import com.aerotrack.lambda.workflow.cache.ScanResponseBody.TripSource;
+import com.aerotrack.lambda.workflow.fetch.ConcurrentFlightFetcher;
+import com.aerotrack.lambda.workflow.fetch.FlightFilter;
+import com.aerotrack.lambda.workflow.job.ScanJobResults;
+import com.aerotrack.lambda.workflow.job.ScanJobStore;
+import com.aerotrack.lambda.workflow.job.ScanJobStore.ScanJob;
+import com.aerotrack.lambda.workflow.job.ScanJobSubmitter;
+import com.aerotrack.lambda.workflow.page.ScanPager;
+import com.aerotrack.lambda.workflow.pairing.TripRanking;
 import com.aerotrack.model.protocol.ScanQueryRequest;
+import com.aerotrack.model.entities.Trip;
 import com.aerotrack.model.protocol.ScanQueryResponse;
 import com.aerotrack.utils.clients.dynamodb.AerotrackDynamoDbClient;
 import com.aerotrack.utils.clients.s3.AerotrackS3Client;
@@ -9,68 +31,173 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import software.amazon.awssdk.services.s3.S3Client;
 
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
 @Slf4j
 public class QueryRequestHandler implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+    public static final String BATCH_RESOURCE = "/scan/batch";
+    public static final String CALENDAR_RESOURCE = "/calendar";
+    public static final int DEFAULT_CALENDAR_MONTHS = 6;
+    public static final String DEALS_RESOURCE = "/deals";
+    public static final int DEFAULT_DEALS_LIMIT = 10;
     private final AerotrackS3Client s3Client = AerotrackS3Client.create();
     private final AerotrackDynamoDbClient dynamoDbClient = AerotrackDynamoDbClient.create();
-    private final ObjectMapper objectMapper = new ObjectMapper();
-    private final QueryLambdaWorkflow queryLambdaWorkflow = new QueryLambdaWorkflow(dynamoDbClient, s3Client);
+    // Paging fields travel in the same body as the scan request
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    // Built once per container, so the flight fetcher pool and the airports graph survive warm invocations
+    private final QueryLambdaWorkflow queryLambdaWorkflow = new QueryLambdaWorkflow(
+            ConcurrentFlightFetcher.fromEnvironment(dynamoDbClient),
+            QueryLambdaWorkflow.airportGraphCache(s3Client,
+                    new BucketVersionProbe(S3Client.create(), System.getenv(Constants.AIRPORTS_BUCKET_ENV_VAR))));
+    private final Optional<QueryResultCache> queryResultCache = QueryResultCache.fromEnvironment();
+    // Ranked prefixes of paged requests are kept next to the full results
+    private final ScanPager scanPager = new ScanPager(queryLambdaWorkflow, objectMapper, queryResultCache);
+    private final ScanResponseBody scanResponseBody = new ScanResponseBody(objectMapper);
+    private final Optional<ScanJobStore> scanJobStore = ScanJobStore.fromEnvironment();
+    private final Optional<ScanJobSubmitter> scanJobSubmitter = ScanJobSubmitter.fromEnvironment(scanJobStore);
+    private final Optional<ScanJobResults> scanJobResults = ScanJobResults.fromEnvironment(objectMapper);
+    private final ScanAdmission scanAdmission = ScanAdmission.fromEnvironment();
+    private final Optional<PriceCalendar> priceCalendar = PriceCalendar.fromEnvironment();
+    private final Optional<BestDeals> bestDeals = BestDeals.fromEnvironment();
 
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent request, Context context) {
         APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
 
         try {
-            ScanQueryRequest scanQueryRequest = objectMapper.readValue(request.getBody(), ScanQueryRequest.class);
+            // GET /calendar
+            if (CALENDAR_RESOURCE.equals(request.getResource())) {
+                setCalendarResponse(request, response);
+                return HttpEncoding.encodeResponse(request, response);
+            }
+
+            // GET /deals
+            if (DEALS_RESOURCE.equals(request.getResource())) {
+                setDealsResponse(request, response);
+                return HttpEncoding.encodeResponse(request, response);
+            }
+
+            // GET /scan/{jobId}
+            if ("GET".equals(request.getHttpMethod())) {
+                setScanJobResponse(request, response);
+                return HttpEncoding.encodeResponse(request, response);
+            }
+
+            // POST /scan/batch
+            if (BATCH_RESOURCE.equals(request.getResource())) {
+                setBatchResponse(request, response);
+                return HttpEncoding.encodeResponse(request, response);
+            }
+
+            String requestBody = HttpEncoding.decodedBody(request);
+            JsonNode body = objectMapper.readTree(requestBody);
+            ScanQueryRequest scanQueryRequest = objectMapper.treeToValue(body, ScanQueryRequest.class);
             scanQueryRequest.validate();
+            // Optional multi criteria ranking, the trips come cheapest first without it
+            TripRanking ranking = TripRanking.fromJson(body.get("ranking"));
+            // Optional price, hour and airline restrictions, applied as the flights are read
+            FlightFilter filter = FlightFilter.fromJson(body);
             log.info("QueryRequestHandler started with request [{}]", scanQueryRequest);
 
-            Integer minDays = scanQueryRequest.getMinDays();
-            Integer maxDays = scanQueryRequest.getMaxDays();
+            boolean async = body.path("async").asBoolean(false);
+            if (async && scanJobSubmitter.isEmpty()) {
+                throw new IllegalArgumentException("Asynchronous scans are not enabled");
+            }
 
-            String availabilityStart = scanQueryRequest.getAvailabilityStart();
-            String availabilityEnd = scanQueryRequest.getAvailabilityEnd();
+            String resultCacheKey = QueryResultCache.keyOf(scanQueryRequest, ranking, filter);
+            // A cached result is answered right away, asynchronous scans included, the job worker caches its ranking
+            Optional<CachedResult> cachedResult = getCachedResult(resultCacheKey);
 
-            List<String> departureAirports = scanQueryRequest.getDepartureAirports();
-            List<String> destinationAirports = scanQueryRequest.getDestinationAirports();
+            // Cached results cost nothing, anything else is estimated before the first read, jobs included
+            if (cachedResult.isEmpty()) {
+                ScanCost cost = queryLambdaWorkflow.estimateCost(scanQueryRequest);
+                log.info("Estimated cost of request {}: {}, {} units", resultCacheKey, cost, cost.units());
+                scanAdmission.recordCost(apiKeyOf(request), cost);
 
-            Integer maxChanges = Optional.ofNullable(scanQueryRequest.getMaxChanges()).orElse(0);
+                Map<String, Object> costFields = Map.of(
+                        "costUnits", cost.units(),
+                        "maxCostUnits", scanAdmission.maxCostUnits());
+                if (async) {
+                    setAcceptedResponse(response, scanJobSubmitter.get().submit(requestBody), costFields);
+                    return HttpEncoding.encodeResponse(request, response);
+                }
 
-            // This will be used when flight connections will be implemented
-            Optional<Integer> minTimeBetweenChangesHours = Optional.ofNullable(scanQueryRequest.getMinTimeBetweenChangesHours());
-            Optional<Integer> maxTimeBetweenChangesHours = Optional.ofNullable(scanQueryRequest.getMaxTimeBetweenChangesHours());
+                if (!scanAdmission.admits(cost)) {
+                    // Too expensive for the API timeout: run it as a job when jobs are enabled, reject it otherwise
+                    if (scanJobSubmitter.isPresent()) {
+                        setAcceptedResponse(response, scanJobSubmitter.get().submit(requestBody), costFields);
+                        return HttpEncoding.encodeResponse(request, response);
+                    }
+                    Map<String, Object> error = new LinkedHashMap<>();
+                    error.put("error", "The scan is too expensive, narrow down its airports or dates");
+                    error.putAll(costFields);
+                    response.setStatusCode(422); // Unprocessable Content
+                    response.setHeaders(Map.of("Content-Type", "application/json"));
+                    response.setBody(objectMapper.writeValueAsString(error));
+                    return HttpEncoding.encodeResponse(request, response);
+                }
+            }
 
-            Boolean returnToSameAirport = Optional.ofNullable(scanQueryRequest.getReturnToSameAirport()).orElse(true);
-
-            ScanQueryResponse scanQueryResponse = queryLambdaWorkflow.queryAndProcessFlights(minDays, maxDays, availabilityStart,
-                    availabilityEnd, departureAirports, destinationAirports, maxChanges, minTimeBetweenChangesHours,
-                    maxTimeBetweenChangesHours, returnToSameAirport);
+            String responseBody;
+            long ageSeconds = cachedResult.map(CachedResult::ageSeconds).orElse(0L);
+            if (body.hasNonNull("pageSize")) {
+                String cursor = body.hasNonNull("cursor") ? body.get("cursor").asText() : null;
+                ScanPager.Page page = scanPager.page(scanQueryRequest, ranking, filter, resultCacheKey,
+                        body.get("pageSize").asInt(), cursor, cachedResult);
+                Map<String, Object> fields = new LinkedHashMap<>();
+                fields.put("nextCursor", page.nextCursor());
+                fields.putAll(ScanResponseBody.cacheFields(cachedResult));
+                responseBody = scanResponseBody.write(fields, TripSource.of(page.trips()));
+            } else if (cachedResult.isPresent()) {
+                log.info("Serving cached result {}, {} seconds old", resultCacheKey, cachedResult.get().ageSeconds());
+                responseBody = scanResponseBody.fromCache(cachedResult.get());
+            } else {
+                // Every trip is written to the body as soon as the ranking produces it
+                responseBody = scanResponseBody.write(ScanResponseBody.cacheFields(cachedResult),
+                        trips -> queryLambdaWorkflow.queryAndProcessFlights(scanQueryRequest, ranking, filter,
+                                QueryLambdaWorkflow.TRIPS_RETURN_LIMIT, trips));
+                putCachedResult(resultCacheKey, responseBody);
+            }
 
             response.setStatusCode(200);
             response.setHeaders(Map.of(
                     "Content-Type", "application/json",
                     "Access-Control-Allow-Origin", "*",
-                    "Access-Control-Allow-Methods", "OPTIONS,POST"));
-            response.setBody(objectMapper.writeValueAsString(scanQueryResponse));
+                    "Access-Control-Allow-Methods", "OPTIONS,POST",
+                    "Age", String.valueOf(ageSeconds)));
+            response.setBody(responseBody);
         } catch (IllegalArgumentException e) {
             log.error("Validation error: " + e.getMessage());
             response.setStatusCode(400); // Bad Request
             response.setHeaders(Map.of("Content-Type", "application/json"));
-            response.setBody("{\"error\": \"" + e.getMessage() + "\"}");
+            response.setBody(errorBody(e.getMessage(), null));
         } catch (IOException e) {
             log.error("Error reading from S3: " + e.getMessage());
             response.setStatusCode(500); // Internal Server Error
             response.setHeaders(Map.of("Content-Type", "application/json"));
-            response.setBody("{\"error\": \"" + e.getMessage() + "\"}");
+            response.setBody(errorBody(e.getMessage(), null));
         } catch (Exception e) {
             String errorMessage = e.getMessage();
             Throwable cause = e.getCause();
@@ -80,16 +207,279 @@ public class QueryRequestHandler implements RequestHandler<APIGatewayProxyReques
 
             response.setStatusCode(500); // Internal Server Error
             response.setHeaders(Map.of("Content-Type", "application/json"));
+            response.setBody(errorBody(errorMessage, causeMessage));
+        }
 
-            String responseBody = String.format(
-                    "{\"error\": \"%s\", \"cause\": \"%s\"}",
-                    errorMessage.replace("\"", "\\\""), // Escape quotes in the error message
-                    causeMessage.replace("\"", "\\\"")  // Escape quotes in the cause message
-            );
+        return HttpEncoding.encodeResponse(request, response);
+    }
 
-            response.setBody(responseBody);
+    private void setAcceptedResponse(APIGatewayProxyResponseEvent response, String jobId,
+                                     Map<String, Object> extraFields) throws IOException {
+        Map<String, Object> accepted = new LinkedHashMap<>();
+        accepted.put("jobId", jobId);
+        accepted.put("status", ScanJobStore.Status.PENDING);
+        accepted.putAll(extraFields);
+
+        response.setStatusCode(202); // Accepted
+        response.setHeaders(Map.of(
+                "Content-Type", "application/json",
+                "Access-Control-Allow-Origin", "*",
+                "Access-Control-Allow-Methods", "OPTIONS,POST,GET"));
+        response.setBody(objectMapper.writeValueAsString(accepted));
+    }
+
+    private static String apiKeyOf(APIGatewayProxyRequestEvent request) {
+        return Optional.ofNullable(request.getRequestContext())
+                .map(APIGatewayProxyRequestEvent.ProxyRequestContext::getIdentity)
+                .map(APIGatewayProxyRequestEvent.RequestIdentity::getApiKey)
+                .orElse(null);
+    }
+
+    private void setBatchResponse(APIGatewayProxyRequestEvent request, APIGatewayProxyResponseEvent response)
+            throws IOException {
+        List<BatchScan> scans = BatchScan.listFromJson(objectMapper,
+                objectMapper.readTree(HttpEncoding.decodedBody(request)));
+        log.info("QueryRequestHandler started with a batch of {} scans", scans.size());
+
+        // Scans in the result cache are served from it, the others run together on shared reads
+        List<String> resultCacheKeys = new ArrayList<>();
+        List<Optional<CachedResult>> cachedResults = new ArrayList<>();
+        List<BatchScan> uncachedScans = new ArrayList<>();
+        ScanCost cost = new ScanCost(0, 0, 0);
+        for (BatchScan scan : scans) {
+            String resultCacheKey = QueryResultCache.keyOf(scan.request(), scan.ranking(), scan.filter());
+            Optional<CachedResult> cachedResult = getCachedResult(resultCacheKey);
+            resultCacheKeys.add(resultCacheKey);
+            cachedResults.add(cachedResult);
+            if (cachedResult.isEmpty()) {
+                uncachedScans.add(scan);
+                cost = cost.plus(queryLambdaWorkflow.estimateCost(scan.request()));
+            }
+        }
+        log.info("Estimated cost of the {} uncached scans: {}, {} units", uncachedScans.size(), cost, cost.units());
+        scanAdmission.recordCost(apiKeyOf(request), cost);
+
+        // Batches can't be handed over to the job worker, one over budget is rejected as a whole
+        if (!scanAdmission.admits(cost)) {
+            Map<String, Object> error = new LinkedHashMap<>();
+            error.put("error", "The batch is too expensive, split it or narrow down its scans");
+            error.put("costUnits", cost.units());
+            error.put("maxCostUnits", scanAdmission.maxCostUnits());
+            response.setStatusCode(422); // Unprocessable Content
+            response.setHeaders(Map.of("Content-Type", "application/json"));
+            response.setBody(objectMapper.writeValueAsString(error));
+            return;
+        }
+
+        Iterator<ScanQueryResponse> uncachedResponses = uncachedScans.isEmpty()
+                ? Collections.emptyIterator()
+                : queryLambdaWorkflow.queryAndProcessBatch(uncachedScans).iterator();
+        // The results come in the order of the scans, each one as its own /scan response
+        StringWriter results = new StringWriter();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(results)) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("results");
+            for (int i = 0; i < scans.size(); i++) {
+                Optional<CachedResult> cachedResult = cachedResults.get(i);
+                String resultBody;
+                if (cachedResult.isPresent()) {
+                    resultBody = scanResponseBody.fromCache(cachedResult.get());
+                } else {
+                    resultBody = scanResponseBody.write(ScanResponseBody.cacheFields(cachedResult),
+                            TripSource.of(uncachedResponses.next().getTrips()));
+                    putCachedResult(resultCacheKeys.get(i), resultBody);
+                }
+                generator.writeRawValue(resultBody);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+
+        response.setStatusCode(200);
+        response.setHeaders(Map.of(
+                "Content-Type", "application/json",
+                "Access-Control-Allow-Origin", "*",
+                "Access-Control-Allow-Methods", "OPTIONS,POST"));
+        response.setBody(results.toString());
+    }
+
+    private void setCalendarResponse(APIGatewayProxyRequestEvent request, APIGatewayProxyResponseEvent response)
+            throws IOException {
+        PriceCalendar calendar = priceCalendar.orElseThrow(
+                () -> new IllegalArgumentException("The price calendar is not enabled"));
+        Map<String, String> parameters = Optional.ofNullable(request.getQueryStringParameters()).orElse(Map.of());
+        String departure = Optional.ofNullable(parameters.get("departure"))
+                .orElseThrow(() -> new IllegalArgumentException("Missing departure"));
+        String destination = Optional.ofNullable(parameters.get("destination"))
+                .orElseThrow(() -> new IllegalArgumentException("Missing destination"));
+        boolean monthly = "month".equals(parameters.get("view"));
+
+        // Six months from today unless told otherwise
+        List<CalendarEntry> entries;
+        try {
+            if (monthly) {
+                YearMonth from = Optional.ofNullable(parameters.get("from")).map(YearMonth::parse)
+                        .orElse(YearMonth.now());
+                YearMonth to = Optional.ofNullable(parameters.get("to")).map(YearMonth::parse)
+                        .orElse(from.plusMonths(DEFAULT_CALENDAR_MONTHS - 1));
+                entries = calendar.months(departure, destination, from, to);
+            } else {
+                LocalDate from = Optional.ofNullable(parameters.get("from")).map(LocalDate::parse)
+                        .orElse(LocalDate.now());
+                LocalDate to = Optional.ofNullable(parameters.get("to")).map(LocalDate::parse)
+                        .orElse(from.plusMonths(DEFAULT_CALENDAR_MONTHS).minusDays(1));
+                entries = calendar.days(departure, destination, from, to);
+            }
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid calendar bound: " + e.getParsedString());
+        }
+        log.info("Calendar of {}-{} by {}: {} entries", departure, destination, monthly ? "month" : "day",
+                entries.size());
+
+        List<Map<String, Object>> periods = new ArrayList<>();
+        for (CalendarEntry entry : entries) {
+            Map<String, Object> period = new LinkedHashMap<>();
+            period.put(monthly ? "month" : "date", entry.period());
+            period.put("minPrice", entry.minPrice());
+            period.put("departureDateTime", entry.departureDateTime());
+            period.put("flightNumber", entry.flightNumber());
+            periods.add(period);
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("departure", departure);
+        body.put("destination", destination);
+        body.put(monthly ? "months" : "days", periods);
+
+        response.setStatusCode(200);
+        response.setHeaders(Map.of(
+                "Content-Type", "application/json",
+                "Access-Control-Allow-Origin", "*",
+                "Access-Control-Allow-Methods", "OPTIONS,GET"));
+        response.setBody(objectMapper.writeValueAsString(body));
+    }
+
+    private void setDealsResponse(APIGatewayProxyRequestEvent request, APIGatewayProxyResponseEvent response)
+            throws IOException {
+        BestDeals deals = bestDeals.orElseThrow(() -> new IllegalArgumentException("Best deals are not enabled"));
+        Map<String, String> parameters = Optional.ofNullable(request.getQueryStringParameters()).orElse(Map.of());
+        String origin = Optional.ofNullable(parameters.get("origin"))
+                .orElseThrow(() -> new IllegalArgumentException("Missing origin"));
+        int limit;
+        try {
+            limit = Optional.ofNullable(parameters.get("limit")).map(Integer::parseInt).orElse(DEFAULT_DEALS_LIMIT);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit: " + parameters.get("limit"));
+        }
+
+        Map<String, List<BestDeals.Deal>> dealsByBucket = deals.from(origin, limit);
+        log.info("Best deals from {}: {} stay buckets", origin, dealsByBucket.size());
+
+        Map<String, Object> buckets = new LinkedHashMap<>();
+        dealsByBucket.forEach((bucket, bucketDeals) -> {
+            List<Map<String, Object>> entries = new ArrayList<>();
+            for (BestDeals.Deal deal : bucketDeals) {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("destination", deal.destination());
+                entry.put("price", deal.price());
+                entry.put("outboundDate", deal.outboundDate());
+                entry.put("returnDate", deal.returnDate());
+                entry.put("minDays", deal.minDays());
+                entry.put("maxDays", deal.maxDays());
+                entries.add(entry);
+            }
+            buckets.put(bucket, entries);
+        });
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("origin", origin);
+        body.put("deals", buckets);
+
+        response.setStatusCode(200);
+        response.setHeaders(Map.of(
+                "Content-Type", "application/json",
+                "Access-Control-Allow-Origin", "*",
+                "Access-Control-Allow-Methods", "OPTIONS,GET"));
+        response.setBody(objectMapper.writeValueAsString(body));
+    }
+
+    private void setScanJobResponse(APIGatewayProxyRequestEvent request, APIGatewayProxyResponseEvent response)
+            throws IOException {
+        String jobId = Optional.ofNullable(request.getPathParameters()).map(parameters -> parameters.get("jobId"))
+                .orElseThrow(() -> new IllegalArgumentException("Missing job id"));
+        String pageParameter = Optional.ofNullable(request.getQueryStringParameters())
+                .map(parameters -> parameters.get("page"))
+                .orElse(null);
+        int page;
+        try {
+            page = pageParameter == null ? 0 : Integer.parseInt(pageParameter);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page: " + pageParameter);
+        }
+
+        Optional<ScanJob> job = scanJobStore.flatMap(store -> store.get(jobId));
+        if (job.isEmpty()) {
+            response.setStatusCode(404); // Not Found
+            response.setHeaders(Map.of("Content-Type", "application/json"));
+            response.setBody(errorBody("Unknown job " + jobId, null));
+            return;
+        }
+
+        Map<String, Object> jobStatus = new LinkedHashMap<>();
+        jobStatus.put("jobId", jobId);
+        jobStatus.put("status", job.get().status());
+        jobStatus.put("createdAt", job.get().createdAt().toString());
+        if (job.get().status() == ScanJobStore.Status.FAILED) {
+            jobStatus.put("error", job.get().error());
+        } else if (job.get().status() == ScanJobStore.Status.SUCCEEDED) {
+            int pageCount = job.get().chunkCount();
+            if (page < 0 || page >= pageCount) {
+                throw new IllegalArgumentException("page must be between 0 and " + (pageCount - 1));
+            }
+            List<Trip> trips = scanJobResults.orElseThrow().readChunk(jobId, page);
+            jobStatus.put("tripCount", job.get().tripCount());
+            jobStatus.put("pageCount", pageCount);
+            jobStatus.put("page", page);
+            jobStatus.put("nextPage", page + 1 < pageCount ? page + 1 : null);
+            jobStatus.put("trips", trips);
         }
 
-        return response;
+        response.setStatusCode(200);
+        response.setHeaders(Map.of(
+                "Content-Type", "application/json",
+                "Access-Control-Allow-Origin", "*",
+                "Access-Control-Allow-Methods", "OPTIONS,POST,GET"));
+        response.setBody(objectMapper.writeValueAsString(jobStatus));
+    }
+
+    // The result cache is an optimization, a failing cache never fails the request
+    private Optional<CachedResult> getCachedResult(String key) {
+        try {
+            return queryResultCache.flatMap(cache -> cache.get(key));
+        } catch (Exception e) {
+            log.warn("Could not read cached result {}: {}", key, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    private void putCachedResult(String key, String body) {
+        try {
+            queryResultCache.ifPresent(cache -> cache.put(key, body));
+        } catch (Exception e) {
+            log.warn("Could not cache result {}: {}", key, e.getMessage());
+        }
+    }
+
+    // Messages can carry user input, so they are escaped by the mapper rather than pasted into the JSON
+    private String errorBody(String error, String cause) {
+        Map<String, String> body = new LinkedHashMap<>();
+        body.put("error", error);
+        if (cause != null) {
+            body.put("cause", cause);
+        }
+        try {
+            return objectMapper.writeValueAsString(body);
+        } catch (JsonProcessingException e) {
+            // Strings always serialize, this is only here for the checked exception
+            throw new UncheckedIOException(e);
+        }
     }
 }
@@ -0,0 +1,122 @@
+package com.aerotrack.lambda;
+
+import com.aerotrack.common.Constants;
+import com.aerotrack.lambda.cache.BucketVersionProbe;
+import com.aerotrack.lambda.workflow.QueryLambdaWorkflow;
+import com.aerotrack.lambda.workflow.cache.QueryResultCache;
+import com.aerotrack.lambda.workflow.cache.ScanResponseBody;
+import com.aerotrack.lambda.workflow.fetch.ConcurrentFlightFetcher;
+import com.aerotrack.lambda.workflow.fetch.FlightFilter;
+import com.aerotrack.lambda.workflow.job.ScanJobResults;
+import com.aerotrack.lambda.workflow.job.ScanJobStore;
+import com.aerotrack.lambda.workflow.job.ScanJobStore.ScanJob;
+import com.aerotrack.lambda.workflow.pairing.TripRanking;
+import com.aerotrack.model.protocol.ScanQueryRequest;
+import com.aerotrack.utils.clients.dynamodb.AerotrackDynamoDbClient;
+import com.aerotrack.utils.clients.s3.AerotrackS3Client;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Worker of the asynchronous scans. It runs with a longer timeout than the API lambdas and writes the whole ranking to
+ * S3 in chunks, which the /scan/{jobId} endpoint then serves as pages. The same ranking goes to the result cache, so
+ * the next /scan of the request is answered from it.
+ */
+@Slf4j
+public class ScanJobRequestHandler implements RequestHandler<Map<String, String>, Void> {
+    // Left to mark the job failed and write the logs once the ranking has run out of time
+    private static final Duration DEADLINE_MARGIN = Duration.ofSeconds(20);
+
+    private final AerotrackS3Client s3Client = AerotrackS3Client.create();
+    private final AerotrackDynamoDbClient dynamoDbClient = AerotrackDynamoDbClient.create();
+    // Requests are stored as sent to /scan, with the async flag and any paging fields
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final QueryLambdaWorkflow queryLambdaWorkflow = new QueryLambdaWorkflow(
+            ConcurrentFlightFetcher.fromEnvironment(dynamoDbClient),
+            QueryLambdaWorkflow.airportGraphCache(s3Client,
+                    new BucketVersionProbe(S3Client.create(), System.getenv(Constants.AIRPORTS_BUCKET_ENV_VAR))));
+    private final ScanJobStore scanJobStore = ScanJobStore.fromEnvironment().orElseThrow();
+    private final ScanJobResults scanJobResults = ScanJobResults.fromEnvironment(objectMapper).orElseThrow();
+    private final Optional<QueryResultCache> queryResultCache = QueryResultCache.fromEnvironment();
+    private final ScanResponseBody scanResponseBody = new ScanResponseBody(objectMapper);
+    // Not a single thread, a ranking abandoned at its deadline must not hold up the next job of the container
+    private final ExecutorService jobExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "scan-job");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Override
+    public Void handleRequest(Map<String, String> event, Context context) {
+        String jobId = event.get("jobId");
+        Optional<ScanJob> job = scanJobStore.get(jobId);
+        if (job.isEmpty() || !scanJobStore.markRunning(jobId)) {
+            log.warn("Skipping job {}, it is unknown or already claimed", jobId);
+            return null;
+        }
+        log.info("ScanJobRequestHandler started job {} with request [{}]", jobId, job.get().request());
+
+        // The ranking runs on its own thread so the job can still be marked failed before the invocation times out
+        Future<ScanJobResults.ChunkWriter> run = jobExecutor.submit(() -> {
+            JsonNode body = objectMapper.readTree(job.get().request());
+            ScanQueryRequest scanQueryRequest = objectMapper.treeToValue(body, ScanQueryRequest.class);
+            TripRanking ranking = TripRanking.fromJson(body.get("ranking"));
+            FlightFilter filter = FlightFilter.fromJson(body);
+            ScanJobResults.ChunkWriter writer = scanJobResults.writer(jobId);
+            // Each trip goes to its chunk and to the body cached for /scan, which holds the same trips
+            String responseBody = scanResponseBody.write(ScanResponseBody.cacheFields(Optional.empty()),
+                    trips -> queryLambdaWorkflow.queryAndProcessFlights(scanQueryRequest, ranking, filter,
+                            QueryLambdaWorkflow.TRIPS_RETURN_LIMIT, trip -> {
+                                writer.accept(trip);
+                                trips.accept(trip);
+                            }));
+            writer.finish();
+            putCachedResult(QueryResultCache.keyOf(scanQueryRequest, ranking, filter), responseBody);
+            return writer;
+        });
+
+        try {
+            long budgetMillis = Math.max(0, context.getRemainingTimeInMillis() - DEADLINE_MARGIN.toMillis());
+            ScanJobResults.ChunkWriter writer = run.get(budgetMillis, TimeUnit.MILLISECONDS);
+            scanJobStore.markSucceeded(jobId, writer.chunkCount(), writer.tripCount());
+            log.info("Job {} ranked {} trips in {} chunks", jobId, writer.tripCount(), writer.chunkCount());
+        } catch (TimeoutException e) {
+            run.cancel(true);
+            log.error("Job {} did not finish before the worker deadline", jobId);
+            scanJobStore.markFailed(jobId, ScanJobStore.WORKER_TIMED_OUT_ERROR);
+        } catch (ExecutionException e) {
+            // Also covers running out of memory, as long as the worker survives it
+            log.error("Job {} failed: {}", jobId, e.getCause().getMessage());
+            scanJobStore.markFailed(jobId, e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            run.cancel(true);
+            scanJobStore.markFailed(jobId, e.getMessage());
+        }
+        return null;
+    }
+
+    private void putCachedResult(String key, String body) {
+        try {
+            queryResultCache.ifPresent(cache -> cache.put(key, body));
+        } catch (Exception e) {
+            log.warn("Could not cache result {}: {}", key, e.getMessage());
+        }
+    }
+}
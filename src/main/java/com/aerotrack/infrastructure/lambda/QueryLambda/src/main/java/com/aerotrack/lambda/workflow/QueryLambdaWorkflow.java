@@ -1,140 +1,478 @@
 package com.aerotrack.lambda.workflow;
 
-import com.aerotrack.model.entities.Airport;
+import com.aerotrack.lambda.cache.RevalidatingCache;
+import com.aerotrack.lambda.workflow.admission.ScanCostEstimator;
+import com.aerotrack.lambda.workflow.admission.ScanCostEstimator.ScanCost;
+import com.aerotrack.lambda.workflow.batch.BatchScan;
+import com.aerotrack.lambda.workflow.cache.AirportGraph;
+import com.aerotrack.lambda.workflow.fetch.ConcurrentFlightFetcher;
+import com.aerotrack.lambda.workflow.fetch.DirectionReader;
+import com.aerotrack.lambda.workflow.fetch.FlightFetchPlan;
+import com.aerotrack.lambda.workflow.fetch.FlightFetchPlan.Direction;
+import com.aerotrack.lambda.workflow.fetch.FlightFilter;
+import com.aerotrack.lambda.workflow.fetch.SharedFlightReads;
+import com.aerotrack.lambda.workflow.itinerary.ItineraryPlan;
+import com.aerotrack.lambda.workflow.itinerary.ItinerarySearch;
+import com.aerotrack.lambda.workflow.pairing.DayBucketedFlights;
+import com.aerotrack.lambda.workflow.pairing.DirectionPair;
+import com.aerotrack.lambda.workflow.pairing.RoundTripPairingEngine;
+import com.aerotrack.lambda.workflow.pairing.TripConsumer;
+import com.aerotrack.lambda.workflow.pairing.TripRanking;
 import com.aerotrack.model.entities.Flight;
 import com.aerotrack.model.entities.Trip;
+import com.aerotrack.model.protocol.ScanQueryRequest;
 import com.aerotrack.model.protocol.ScanQueryResponse;
-import com.aerotrack.model.entities.AirportsJsonFile;
 import com.aerotrack.utils.clients.dynamodb.AerotrackDynamoDbClient;
 import com.aerotrack.utils.clients.s3.AerotrackS3Client;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.time.LocalDate;
-import java.time.Period;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 
 @Slf4j
 public class QueryLambdaWorkflow {
-    private static final long TRIPS_RETURN_LIMIT = 10000; // No problems up to 1M, theoretically
-    private final AerotrackDynamoDbClient dynamoDbClient;
-    private final AerotrackS3Client s3Client;
+    public static final int TRIPS_RETURN_LIMIT = 10000; // No problems up to 1M, theoretically
+    // Airports are refreshed hourly, checking the version every minute keeps the graph at most a minute behind
+    private static final Duration AIRPORTS_REVALIDATE_AFTER = Duration.ofMinutes(1);
+    // Layover window when the request leaves it open: enough for a self transfer, at most a night at the hub
+    public static final int DEFAULT_MIN_LAYOVER_HOURS = 2;
+    public static final int DEFAULT_MAX_LAYOVER_HOURS = 24;
+    // Cheapest one way itineraries kept per direction, the bound that keeps multi change searches in the API budget
+    public static final int MAX_ITINERARIES_PER_DIRECTION = 20000;
+    private final ConcurrentFlightFetcher flightFetcher;
+    private final RevalidatingCache<AirportGraph> airportGraph;
     private final ObjectMapper objectMapper;
 
 
     public QueryLambdaWorkflow(AerotrackDynamoDbClient dynamoDbClient, AerotrackS3Client s3Client) {
-        this.dynamoDbClient = dynamoDbClient;
-        this.s3Client = s3Client;
+        this(ConcurrentFlightFetcher.fromEnvironment(dynamoDbClient), airportGraphCache(s3Client, null));
+    }
+
+    public QueryLambdaWorkflow(ConcurrentFlightFetcher flightFetcher, RevalidatingCache<AirportGraph> airportGraph) {
+        this.flightFetcher = flightFetcher;
+        this.airportGraph = airportGraph;
         this.objectMapper = new ObjectMapper();
     }
 
+    public static RevalidatingCache<AirportGraph> airportGraphCache(AerotrackS3Client s3Client,
+                                                                    Callable<String> versionProbe) {
+        return new RevalidatingCache<>("merged airports",
+                () -> AirportGraph.of(s3Client.getMergedAirports()),
+                versionProbe, AIRPORTS_REVALIDATE_AFTER);
+    }
+
     public ScanQueryResponse queryAndProcessFlights(Integer minDays, Integer maxDays, String availabilityStart, String availabilityEnd,
                                                     List<String> departureAirports, List<String> destinationAirports, Integer maxChanges,
                                                     Optional<Integer> minTimeBetweenChangesHours, Optional<Integer> maxTimeBetweenChangesHours,
                                                     Boolean returnToSameAirport) throws IOException {
-        AirportsJsonFile airportsJsonFile = s3Client.getMergedAirports();
+        return queryAndProcessFlights(minDays, maxDays, availabilityStart, availabilityEnd, departureAirports,
+                destinationAirports, maxChanges, minTimeBetweenChangesHours, maxTimeBetweenChangesHours,
+                returnToSameAirport, TripRanking.PRICE, FlightFilter.NONE);
+    }
 
-        // This map is used to check the existence of every airport in the request and their possible connections.
-        // In this way we limit the number of calls to DynamoDB
-        Map<String, Set<String>> airportsConnections = getAirportConnectionsMap(airportsJsonFile.getAirports());
+    public ScanQueryResponse queryAndProcessFlights(Integer minDays, Integer maxDays, String availabilityStart, String availabilityEnd,
+                                                    List<String> departureAirports, List<String> destinationAirports, Integer maxChanges,
+                                                    Optional<Integer> minTimeBetweenChangesHours, Optional<Integer> maxTimeBetweenChangesHours,
+                                                    Boolean returnToSameAirport, TripRanking ranking,
+                                                    FlightFilter filter) throws IOException {
+        List<Trip> sortedPairs = new ArrayList<>();
+        queryAndProcessFlights(minDays, maxDays, availabilityStart, availabilityEnd, departureAirports, destinationAirports,
+                maxChanges, minTimeBetweenChangesHours, maxTimeBetweenChangesHours, returnToSameAirport, ranking, filter,
+                TRIPS_RETURN_LIMIT, flightFetcher::scanFlightsBetweenDates, sortedPairs::add);
 
-        List<Trip> trips = new ArrayList<>();
-        Map<String, List<Flight>> allReturnFlights = new HashMap<>();
+        return ScanQueryResponse.builder()
+                .trips(sortedPairs)
+                .build();
+    }
 
-        // Pre-fetch return flights if not returning to the same airport
-        if (!returnToSameAirport) {
-            for (String destination : destinationAirports) {
-                if (! airportsConnections.containsKey(destination))
-                    continue;
+    /**
+     * Runs a validated request with the same defaults as the /scan handler, streaming its {@code limit} cheapest trips
+     * to the consumer.
+     */
+    public void queryAndProcessFlights(ScanQueryRequest request, int limit, TripConsumer tripConsumer) throws IOException {
+        queryAndProcessFlights(request, TripRanking.PRICE, FlightFilter.NONE, limit, tripConsumer);
+    }
 
-                List<Flight> returnFlightsForDestination = new ArrayList<>();
-                for (String returnDeparture : departureAirports) {
-                    if (! airportsConnections.get(destination).contains(returnDeparture))
-                        continue;
+    public void queryAndProcessFlights(ScanQueryRequest request, TripRanking ranking, FlightFilter filter, int limit,
+                                       TripConsumer tripConsumer) throws IOException {
+        queryAndProcessFlights(request, ranking, filter, limit, flightFetcher::scanFlightsBetweenDates, tripConsumer);
+    }
+
+    /**
+     * Runs a batch of validated requests, reading every direction they need once over the union of their date ranges.
+     * The responses come in the order of the scans, each with the same trips as the request run on its own.
+     */
+    public List<ScanQueryResponse> queryAndProcessBatch(List<BatchScan> scans) throws IOException {
+        AirportGraph connections = airportGraph.get();
+        SharedFlightReads sharedReads = new SharedFlightReads(flightFetcher);
+        int naiveReads = 0;
+        for (BatchScan scan : scans) {
+            naiveReads += planReads(scan.request(), connections, sharedReads);
+        }
+        log.info("Planned {} shared direction reads for {} scans instead of {}", sharedReads.plannedReads(),
+                scans.size(), naiveReads);
+        sharedReads.start();
 
-                    returnFlightsForDestination.addAll(dynamoDbClient.scanFlightsBetweenDates(destination, returnDeparture,
-                            availabilityStart, availabilityEnd));
+        List<ScanQueryResponse> responses = new ArrayList<>();
+        for (BatchScan scan : scans) {
+            List<Trip> trips = new ArrayList<>();
+            queryAndProcessFlights(scan.request(), scan.ranking(), scan.filter(), TRIPS_RETURN_LIMIT, sharedReads,
+                    trips::add);
+            responses.add(ScanQueryResponse.builder().trips(trips).build());
+        }
+        return responses;
+    }
+
+    // Plans the reads of a request on the shared ones, returning how many it would have made on its own
+    private static int planReads(ScanQueryRequest request, AirportGraph connections, SharedFlightReads sharedReads) {
+        List<String> departureAirports = request.getDepartureAirports().stream().distinct().toList();
+        List<String> destinationAirports = request.getDestinationAirports().stream().distinct().toList();
+        int maxChanges = Optional.ofNullable(request.getMaxChanges()).orElse(0);
+
+        Set<Direction> directions = new HashSet<>();
+        String readEnd = request.getAvailabilityEnd();
+        if (maxChanges == 0) {
+            for (Direction direction : FlightFetchPlan.of(departureAirports, destinationAirports).directions()) {
+                if (connections.isConnected(direction.departure(), direction.destination())) {
+                    directions.add(direction);
                 }
-                allReturnFlights.put(destination, returnFlightsForDestination);
+            }
+        } else {
+            readEnd = connectionReadEnd(request.getAvailabilityEnd(), maxChanges,
+                    Optional.ofNullable(request.getMaxTimeBetweenChangesHours()).orElse(DEFAULT_MAX_LAYOVER_HOURS));
+            for (ItineraryPlan plan : itineraryPlans(connections, departureAirports, destinationAirports, maxChanges,
+                    Optional.ofNullable(request.getReturnToSameAirport()).orElse(true)).values()) {
+                directions.addAll(plan.directions());
             }
         }
 
-        log.info("Processing outbound and return flights...");
-        // Process outbound and return flights
+        for (Direction direction : directions) {
+            sharedReads.plan(direction, request.getAvailabilityStart(), readEnd);
+        }
+        return directions.size();
+    }
+
+    private void queryAndProcessFlights(ScanQueryRequest request, TripRanking ranking, FlightFilter filter, int limit,
+                                        DirectionReader reader, TripConsumer tripConsumer) throws IOException {
+        queryAndProcessFlights(request.getMinDays(), request.getMaxDays(), request.getAvailabilityStart(),
+                request.getAvailabilityEnd(), request.getDepartureAirports().stream().distinct().toList(),
+                request.getDestinationAirports().stream().distinct().toList(),
+                Optional.ofNullable(request.getMaxChanges()).orElse(0),
+                Optional.ofNullable(request.getMinTimeBetweenChangesHours()),
+                Optional.ofNullable(request.getMaxTimeBetweenChangesHours()),
+                Optional.ofNullable(request.getReturnToSameAirport()).orElse(true), ranking, filter, limit, reader,
+                tripConsumer);
+    }
+
+    /** Cost of a validated request on the current airports graph, before any of its flights is read. */
+    public ScanCost estimateCost(ScanQueryRequest request) throws IOException {
+        return ScanCostEstimator.estimate(request, airportGraph.get(), flightFetcher.statistics(),
+                flightFetcher.readsWholeAirports());
+    }
+
+    // Hands every trip to the consumer as soon as the ranking produces it
+    private void queryAndProcessFlights(Integer minDays, Integer maxDays, String availabilityStart, String availabilityEnd,
+                                        List<String> departureAirports, List<String> destinationAirports, Integer maxChanges,
+                                        Optional<Integer> minTimeBetweenChangesHours, Optional<Integer> maxTimeBetweenChangesHours,
+                                        Boolean returnToSameAirport, TripRanking ranking, FlightFilter filter,
+                                        int limit, DirectionReader reader, TripConsumer tripConsumer) throws IOException {
+        // This graph is used to check the existence of every airport in the request and their possible connections.
+        // In this way we limit the number of calls to DynamoDB. It is cached across warm invocations; on a cold start
+        // it is loaded while the first reads are already in flight: those can't be pruned yet, but a direction
+        // without connections simply has no flights stored.
+        CompletableFuture<AirportGraph> airportsConnections = flightFetcher.submit(airportGraph::get);
+
+        // Searching anywhere: the destinations are the ones the departure airports fly to
+        if (destinationAirports.isEmpty()) {
+            if (maxChanges > 0) {
+                throw new IllegalArgumentException("Searching anywhere only supports direct flights");
+            }
+            if (flightFetcher.readsWholeAirports()) {
+                // One range query per departure airport on the origin index, its flights are the outbound legs
+                Map<String, Map<String, List<Flight>>> outboundFlights =
+                        readWholeAirports(departureAirports, availabilityStart, availabilityEnd);
+                destinationAirports = outboundFlights.values().stream()
+                        .flatMap(flightsByDestination -> flightsByDestination.keySet().stream())
+                        .distinct()
+                        .sorted()
+                        .toList();
+                reader = withOutboundFlights(reader, outboundFlights);
+            } else {
+                AirportGraph connections = ConcurrentFlightFetcher.await(airportsConnections);
+                destinationAirports = departureAirports.stream()
+                        .flatMap(departure -> connections.connectionsOf(departure).stream())
+                        .distinct()
+                        .sorted()
+                        .toList();
+            }
+            log.info("Searching anywhere from {}: {} destinations", departureAirports, destinationAirports.size());
+        }
+
+        RoundTripPairingEngine pairingEngine = new RoundTripPairingEngine(minDays, maxDays,
+                RoundTripPairingEngine.DEFAULT_PARALLEL_THRESHOLD, filter.maxTotalPriceCents());
+
+        List<DirectionPair> directionPairs = maxChanges > 0
+                ? connectingDirectionPairs(airportsConnections, availabilityStart, availabilityEnd,
+                        departureAirports, destinationAirports, maxChanges,
+                        minTimeBetweenChangesHours.orElse(DEFAULT_MIN_LAYOVER_HOURS),
+                        maxTimeBetweenChangesHours.orElse(DEFAULT_MAX_LAYOVER_HOURS), returnToSameAirport, filter, reader)
+                : directDirectionPairs(airportsConnections, availabilityStart, availabilityEnd,
+                        departureAirports, destinationAirports, returnToSameAirport, filter, reader);
+
+        log.info("Ranking the trips of {} direction pairs by {}...", directionPairs.size(), ranking.mode());
+        // Only the return flights inside the [minDays, maxDays] window are looked at
+        pairingEngine.forEachRankedTrip(directionPairs, limit, ranking, tripConsumer);
+        flightFetcher.cacheStats().ifPresent(stats -> log.info("Flight cache: {}", stats));
+        flightFetcher.hedgedReads().ifPresent(hedgedReads -> {
+            log.info("Hedged reads: {}", hedgedReads.stats());
+            hedgedReads.publishMetrics();
+        });
+    }
+
+    private Map<String, Map<String, List<Flight>>> readWholeAirports(List<String> departureAirports,
+                                                                    String availabilityStart, String availabilityEnd)
+            throws IOException {
+        Map<String, CompletableFuture<Map<String, List<Flight>>>> reads = new HashMap<>();
+        for (String departure : departureAirports) {
+            reads.put(departure, flightFetcher.scanFlightsFrom(departure, availabilityStart, availabilityEnd));
+        }
+
+        Map<String, Map<String, List<Flight>>> outboundFlights = new HashMap<>();
+        for (Map.Entry<String, CompletableFuture<Map<String, List<Flight>>>> read : reads.entrySet()) {
+            outboundFlights.put(read.getKey(), ConcurrentFlightFetcher.await(read.getValue()));
+        }
+        return outboundFlights;
+    }
+
+    // Directions from the airports read whole are served from their flights, including those without any
+    private static DirectionReader withOutboundFlights(DirectionReader reader,
+                                                       Map<String, Map<String, List<Flight>>> outboundFlights) {
+        return (departure, destination, availabilityStart, availabilityEnd, skip, keep) -> {
+            Map<String, List<Flight>> flightsByDestination = outboundFlights.get(departure);
+            if (flightsByDestination == null) {
+                return reader.scanFlightsBetweenDates(departure, destination, availabilityStart, availabilityEnd,
+                        skip, keep);
+            }
+            List<Flight> flights = flightsByDestination.getOrDefault(destination, List.of());
+            return CompletableFuture.completedFuture(keep == null ? flights : flights.stream().filter(keep).toList());
+        };
+    }
+
+    private List<DirectionPair> directDirectionPairs(CompletableFuture<AirportGraph> airportsConnections,
+                                                     String availabilityStart, String availabilityEnd,
+                                                     List<String> departureAirports,
+                                                     List<String> destinationAirports, Boolean returnToSameAirport,
+                                                     FlightFilter filter, DirectionReader reader) throws IOException {
+        // Every distinct direction is read exactly once, whichever legs and pairings it is shared by
+        FlightFetchPlan fetchPlan = FlightFetchPlan.of(departureAirports, destinationAirports);
+        Map<Direction, CompletableFuture<List<Flight>>> directionReads = new HashMap<>();
+        for (Direction direction : fetchPlan.directions()) {
+            directionReads.put(direction, fetchDirection(reader, airportsConnections, direction, availabilityStart,
+                    availabilityEnd, filter));
+        }
+
+        // Every leg is parsed and bucketed as soon as its read completes, while the other reads are in flight
+        Map<Direction, CompletableFuture<DayBucketedFlights>> directionFlights = new HashMap<>();
+        Map<String, CompletableFuture<DayBucketedFlights>> allReturnFlights = new HashMap<>();
         for (String departure : departureAirports) {
-            if (! airportsConnections.containsKey(departure))
-                continue;
+            for (String destination : destinationAirports) {
+                directionFlights.computeIfAbsent(new Direction(departure, destination), direction ->
+                        bucketFlights(directionReads, direction));
+
+                if (returnToSameAirport) {
+                    directionFlights.computeIfAbsent(new Direction(destination, departure), direction ->
+                            bucketFlights(directionReads, direction));
+                } else {
+                    // Return flights towards any of the departure airports are merged per destination
+                    allReturnFlights.computeIfAbsent(destination, key ->
+                            mergeReturnFlights(directionReads, destination, departureAirports));
+                }
+            }
+        }
+
+        log.info("Processing outbound and return flights...");
+        AirportGraph connections = ConcurrentFlightFetcher.await(airportsConnections);
+        log.info("Planned {} distinct direction reads ({} in the airports graph) instead of {}",
+                fetchPlan.directions().size(), fetchPlan.plannedReads(connections::isConnected), fetchPlan.naiveReads());
 
+        List<DirectionPair> directionPairs = new ArrayList<>();
+        for (String departure : departureAirports) {
             for (String destination : destinationAirports) {
-                if (! airportsConnections.get(departure).contains(destination))
+                if (! connections.isConnected(departure, destination))
                     continue;
 
-                List<Flight> outboundFlights = dynamoDbClient.scanFlightsBetweenDates(departure, destination,
-                        availabilityStart, availabilityEnd);
+                CompletableFuture<DayBucketedFlights> outboundFlights =
+                        directionFlights.get(new Direction(departure, destination));
+                CompletableFuture<DayBucketedFlights> returnFlights = returnToSameAirport ?
+                        directionFlights.get(new Direction(destination, departure)) :
+                        allReturnFlights.get(destination);
 
-                log.debug(outboundFlights.toString());
+                DirectionPair directionPair = new DirectionPair(ConcurrentFlightFetcher.await(outboundFlights),
+                        ConcurrentFlightFetcher.await(returnFlights));
+                log.debug("Pairing {} outbound and {} return flights for {}-{}", directionPair.outboundFlights().size(),
+                        directionPair.returnFlights().size(), departure, destination);
 
-                List<Flight> returnFlights = returnToSameAirport ?
-                        dynamoDbClient.scanFlightsBetweenDates(destination, departure, availabilityStart, availabilityEnd) :
-                        allReturnFlights.getOrDefault(destination, new ArrayList<>());
+                directionPairs.add(directionPair);
+            }
+        }
+        return directionPairs;
+    }
 
-                log.debug(returnFlights.toString());
+    /**
+     * Direction pairs whose legs are itineraries with up to {@code maxChanges} changes. The routes each itinerary can
+     * take are planned on the airports graph first, so only the flights of hubs that can still reach the destination
+     * are read, and every route is read once for all the itineraries sharing it.
+     */
+    private List<DirectionPair> connectingDirectionPairs(CompletableFuture<AirportGraph> airportsConnections,
+                                                         String availabilityStart, String availabilityEnd,
+                                                         List<String> departureAirports,
+                                                         List<String> destinationAirports, int maxChanges,
+                                                         int minLayoverHours, int maxLayoverHours,
+                                                         Boolean returnToSameAirport, FlightFilter filter,
+                                                         DirectionReader reader) throws IOException {
+        if (minLayoverHours < 0 || maxLayoverHours < minLayoverHours) {
+            throw new IllegalArgumentException("The time between changes must satisfy 0 <= min <= max");
+        }
+        AirportGraph connections = ConcurrentFlightFetcher.await(airportsConnections);
 
-                // Find matching pairs
-                for (Flight outboundFlight : outboundFlights) {
-                    for (Flight returnFlight : returnFlights) {
-                        int duration = calculateDuration(outboundFlight, returnFlight);
-                        if (duration < minDays) continue;
-                        if (duration > maxDays) break;
+        Map<Direction, ItineraryPlan> plans = itineraryPlans(connections, departureAirports, destinationAirports,
+                maxChanges, returnToSameAirport);
 
-                        int totalPrice = (int) (outboundFlight.getPrice() + returnFlight.getPrice());
-                        trips.add(new Trip(List.of(outboundFlight), List.of(returnFlight), totalPrice));
-                    }
-                }
+        LocalDate lastDepartureDate = LocalDate.parse(availabilityEnd.substring(0, 10));
+        String readEnd = connectionReadEnd(availabilityEnd, maxChanges, maxLayoverHours);
+
+        Map<Direction, CompletableFuture<List<Flight>>> routeReads = new HashMap<>();
+        for (ItineraryPlan plan : plans.values()) {
+            for (Direction route : plan.directions()) {
+                routeReads.computeIfAbsent(route, key -> reader.scanFlightsBetweenDates(key.departure(),
+                        key.destination(), availabilityStart, readEnd, () -> false,
+                        filter.isEmpty() ? null : filter::acceptsFlight));
             }
         }
+        log.info("Planned {} route reads for the itineraries of {} directions with up to {} changes",
+                routeReads.size(), plans.size(), maxChanges);
 
-        log.info("Sorting pairs... Size: " + trips.size());
-        List<Trip> sortedPairs = trips.stream()
-                .sorted(Comparator.comparing(Trip::getTotalPrice))
-                .limit(TRIPS_RETURN_LIMIT)
-                .toList();
+        Map<Direction, DayBucketedFlights> routeFlights = new HashMap<>();
+        for (Map.Entry<Direction, CompletableFuture<List<Flight>>> read : routeReads.entrySet()) {
+            routeFlights.put(read.getKey(), DayBucketedFlights.of(ConcurrentFlightFetcher.await(read.getValue())));
+        }
 
+        int lastDepartureDay = (int) lastDepartureDate.toEpochDay();
+        Map<Direction, DayBucketedFlights> itineraries = new HashMap<>();
+        for (Map.Entry<Direction, ItineraryPlan> plan : plans.entrySet()) {
+            Direction direction = plan.getKey();
+            DayBucketedFlights.Builder builder = DayBucketedFlights.builder();
+            int found = new ItinerarySearch(plan.getValue(), routeFlights, minLayoverHours * 60, maxLayoverHours * 60,
+                    lastDepartureDay, filter).addCheapest(builder, MAX_ITINERARIES_PER_DIRECTION);
+            log.debug("Found {} itineraries for {}-{}", found, direction.departure(), direction.destination());
+            itineraries.put(direction, builder.build());
+        }
 
-        return ScanQueryResponse.builder()
-                .trips(sortedPairs)
-                .build();
-    }
+        List<DirectionPair> directionPairs = new ArrayList<>();
+        for (String departure : departureAirports) {
+            for (String destination : destinationAirports) {
+                DayBucketedFlights outboundItineraries = itineraries.get(new Direction(departure, destination));
+                if (outboundItineraries.size() == 0)
+                    continue;
 
-    private Map<String, Set<String>> getAirportConnectionsMap(Set<Airport> airportSet) {
-        Map<String, Set<String>> airportsConnections = new HashMap<>();
+                DayBucketedFlights returnItineraries;
+                if (returnToSameAirport) {
+                    returnItineraries = itineraries.get(new Direction(destination, departure));
+                } else {
+                    DayBucketedFlights.Builder returnBuilder = DayBucketedFlights.builder();
+                    for (String returnDestination : new LinkedHashSet<>(departureAirports)) {
+                        DayBucketedFlights returns = itineraries.get(new Direction(destination, returnDestination));
+                        for (int i = 0; i < returns.size(); i++) {
+                            returnBuilder.addItinerary(returns.flights(i), returns.departureMinute(i),
+                                    returns.arrivalMinute(i), returns.priceCents(i));
+                        }
+                    }
+                    returnItineraries = returnBuilder.build();
+                }
+                directionPairs.add(new DirectionPair(outboundItineraries, returnItineraries));
+            }
+        }
+        return directionPairs;
+    }
 
-        for (Airport airport : airportSet) {
-            String airportCode = airport.getAirportCode();
-            Set<String> connectionsSet = new HashSet<>(airport.getConnections());
-            airportsConnections.put(airportCode, connectionsSet);
+    // Itinerary plans of every outbound and return leg of the pairings
+    private static Map<Direction, ItineraryPlan> itineraryPlans(AirportGraph connections, List<String> departureAirports,
+                                                                List<String> destinationAirports, int maxChanges,
+                                                                boolean returnToSameAirport) {
+        Map<Direction, ItineraryPlan> plans = new HashMap<>();
+        for (String departure : departureAirports) {
+            for (String destination : destinationAirports) {
+                plans.computeIfAbsent(new Direction(departure, destination),
+                        direction -> ItineraryPlan.of(connections, departure, destination, maxChanges));
+                for (String returnDestination : returnToSameAirport ? List.of(departure) : departureAirports) {
+                    plans.computeIfAbsent(new Direction(destination, returnDestination),
+                            direction -> ItineraryPlan.of(connections, destination, returnDestination, maxChanges));
+                }
+            }
         }
+        return plans;
+    }
 
-        return airportsConnections;
+    private static String connectionReadEnd(String availabilityEnd, int maxChanges, int maxLayoverHours) {
+        return LocalDate.parse(availabilityEnd.substring(0, 10))
+                .plusDays(connectionReadDays(maxChanges, maxLayoverHours)).toString();
     }
 
-    private int calculateDuration(Flight outboundFlight, Flight returnFlight) {
-        DateTimeFormatter formatter = DateTimeFormatter.ISO_DATE_TIME;
+    /** Days past the availability window the routes of connecting itineraries are read for. */
+    public static int connectionReadDays(int maxChanges, int maxLayoverHours) {
+        // Connections can depart after the availability window, up to the longest layovers of an itinerary
+        return (maxChanges * maxLayoverHours + 23) / 24 + 1;
+    }
 
-        LocalDate departureDate = LocalDate.parse(outboundFlight.getArrivalDateTime(), formatter);
-        LocalDate returnDate = LocalDate.parse(returnFlight.getDepartureDateTime(), formatter);
+    private CompletableFuture<DayBucketedFlights> bucketFlights(
+            Map<Direction, CompletableFuture<List<Flight>>> directionReads, Direction direction) {
+        CompletableFuture<List<Flight>> read = directionReads.getOrDefault(direction,
+                CompletableFuture.completedFuture(List.of()));
+        return read.thenApply(DayBucketedFlights::of);
+    }
 
-        return Period.between(departureDate, returnDate).getDays();
+    private CompletableFuture<DayBucketedFlights> mergeReturnFlights(
+            Map<Direction, CompletableFuture<List<Flight>>> directionReads, String destination,
+            List<String> departureAirports) {
+        List<CompletableFuture<List<Flight>>> returnReads = new ArrayList<>();
+        for (String returnDestination : new LinkedHashSet<>(departureAirports)) {
+            CompletableFuture<List<Flight>> returnRead = directionReads.get(new Direction(destination, returnDestination));
+            if (returnRead != null) {
+                returnReads.add(returnRead);
+            }
+        }
+
+        return CompletableFuture.allOf(returnReads.toArray(CompletableFuture[]::new)).thenApply(done -> {
+            DayBucketedFlights.Builder returnFlightsForDestination = DayBucketedFlights.builder();
+            for (CompletableFuture<List<Flight>> returnRead : returnReads) {
+                returnFlightsForDestination.add(returnRead.join());
+            }
+            return returnFlightsForDestination.build();
+        });
     }
 
+    private static CompletableFuture<List<Flight>> fetchDirection(DirectionReader reader,
+                                                                  CompletableFuture<AirportGraph> airportsConnections,
+                                                                  Direction direction, String availabilityStart,
+                                                                  String availabilityEnd, FlightFilter filter) {
+        // Once the airports graph is known, reads that haven't started yet are skipped for unconnected directions
+        return reader.scanFlightsBetweenDates(direction.departure(), direction.destination(), availabilityStart,
+                availabilityEnd, () -> airportsConnections.isDone() && !airportsConnections.isCompletedExceptionally()
+                        && !airportsConnections.join().isConnected(direction.departure(), direction.destination()),
+                // Without changes every flight is a whole leg, so all the filters already apply to it
+                filter.isEmpty() ? null : filter::acceptsDirectFlight);
+    }
 }
@@ -0,0 +1,85 @@
+package com.aerotrack.lambda.workflow.admission;
+
+import com.aerotrack.lambda.workflow.admission.ScanCostEstimator.ScanCost;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Optional;
+
+/**
+ * Decides whether a scan can run within the API timeout from its estimated cost, and records the cost units every
+ * caller spends. The metric is split by API key so a single expensive caller shows up on its own; since the key itself
+ * is a secret, the dimension is a short hash of it.
+ */
+@Slf4j
+public class ScanAdmission {
+    public static final String MAX_COST_UNITS_ENV_VAR = "MAX_SCAN_COST_UNITS";
+    // Roughly what the in flight reads get through in the 30 seconds of an API request
+    public static final long DEFAULT_MAX_COST_UNITS = 1_000;
+    public static final String METRIC_NAMESPACE = "QueryLambdaMetric";
+    public static final String COST_UNITS_METRIC = "ScanCostUnits";
+    public static final String API_KEY_DIMENSION = "ApiKey";
+
+    private final long maxCostUnits;
+    private final CloudWatchClient cloudWatchClient;
+
+    public ScanAdmission(long maxCostUnits, CloudWatchClient cloudWatchClient) {
+        this.maxCostUnits = maxCostUnits;
+        this.cloudWatchClient = cloudWatchClient;
+    }
+
+    public static ScanAdmission fromEnvironment() {
+        long maxCostUnits = Optional.ofNullable(System.getenv(MAX_COST_UNITS_ENV_VAR))
+                .map(Long::parseLong)
+                .orElse(DEFAULT_MAX_COST_UNITS);
+        return new ScanAdmission(maxCostUnits, CloudWatchClient.create());
+    }
+
+    public long maxCostUnits() {
+        return maxCostUnits;
+    }
+
+    public boolean admits(ScanCost cost) {
+        return cost.units() <= maxCostUnits;
+    }
+
+    // Metrics are best effort, a failing put never fails the request
+    public void recordCost(String apiKey, ScanCost cost) {
+        try {
+            cloudWatchClient.putMetricData(PutMetricDataRequest.builder()
+                    .namespace(METRIC_NAMESPACE)
+                    .metricData(MetricDatum.builder()
+                            .metricName(COST_UNITS_METRIC)
+                            .dimensions(Dimension.builder()
+                                    .name(API_KEY_DIMENSION)
+                                    .value(apiKeyDimension(apiKey))
+                                    .build())
+                            .value((double) cost.units())
+                            .timestamp(Instant.now())
+                            .build())
+                    .build());
+        } catch (Exception e) {
+            log.warn("Could not record the scan cost: {}", e.getMessage());
+        }
+    }
+
+    public static String apiKeyDimension(String apiKey) {
+        if (apiKey == null || apiKey.isEmpty()) {
+            return "none";
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(apiKey.getBytes(StandardCharsets.UTF_8))).substring(0, 12);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
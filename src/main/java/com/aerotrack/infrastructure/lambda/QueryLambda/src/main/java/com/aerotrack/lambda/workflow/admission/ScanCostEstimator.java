@@ -0,0 +1,139 @@
+package com.aerotrack.lambda.workflow.admission;
+
+import com.aerotrack.lambda.workflow.QueryLambdaWorkflow;
+import com.aerotrack.lambda.workflow.cache.AirportGraph;
+import com.aerotrack.lambda.workflow.fetch.DirectionStatistics;
+import com.aerotrack.lambda.workflow.fetch.FlightFetchPlan;
+import com.aerotrack.lambda.workflow.fetch.FlightFetchPlan.Direction;
+import com.aerotrack.lambda.workflow.itinerary.ItineraryPlan;
+import com.aerotrack.model.protocol.ScanQueryRequest;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Estimates what a scan costs before any flight is read, planning it the way the workflow would: the direction reads
+ * left after pruning on the airports graph, the flights they are expected to return from the per direction statistics,
+ * and the candidate pairs the ranking will go through.
+ */
+public class ScanCostEstimator {
+    // A read is a DynamoDB round trip, by far the slowest part of a scan
+    public static final long UNITS_PER_READ = 1;
+    public static final long FLIGHTS_PER_UNIT = 1_000;
+    public static final long PAIRS_PER_UNIT = 1_000_000;
+
+    public record ScanCost(int directionReads, long expectedFlights, long candidatePairs) {
+
+        public long units() {
+            return directionReads * UNITS_PER_READ + expectedFlights / FLIGHTS_PER_UNIT
+                    + candidatePairs / PAIRS_PER_UNIT;
+        }
+
+        // Scans sharing reads cost less than the sum, which keeps the sum on the safe side
+        public ScanCost plus(ScanCost other) {
+            return new ScanCost(directionReads + other.directionReads, expectedFlights + other.expectedFlights,
+                    candidatePairs + other.candidatePairs);
+        }
+    }
+
+    private ScanCostEstimator() { }
+
+    /**
+     * Cost of a validated request, with the same defaults as the /scan handler. {@code readsWholeAirports} tells whether
+     * the outbound legs of a search anywhere come from the origin index, with one read per departure airport.
+     */
+    public static ScanCost estimate(ScanQueryRequest request, AirportGraph connections, DirectionStatistics statistics,
+                                    boolean readsWholeAirports) {
+        List<String> departureAirports = request.getDepartureAirports().stream().distinct().toList();
+        List<String> destinationAirports = request.getDestinationAirports().stream().distinct().toList();
+        int maxChanges = Optional.ofNullable(request.getMaxChanges()).orElse(0);
+        // Searching anywhere goes to the connections of the departure airports
+        boolean anywhere = destinationAirports.isEmpty();
+        if (anywhere) {
+            destinationAirports = departureAirports.stream()
+                    .flatMap(departure -> connections.connectionsOf(departure).stream())
+                    .distinct()
+                    .toList();
+        }
+        boolean returnToSameAirport = Optional.ofNullable(request.getReturnToSameAirport()).orElse(true);
+
+        long days = ChronoUnit.DAYS.between(LocalDate.parse(request.getAvailabilityStart().substring(0, 10)),
+                LocalDate.parse(request.getAvailabilityEnd().substring(0, 10))) + 1;
+        // Share of the pairs of two legs whose stay falls in [minDays, maxDays]
+        double stayFraction = Math.min(1, (double) (request.getMaxDays() - request.getMinDays() + 1) / days);
+
+        // Expected one way legs of every direction of the request
+        Map<Direction, Double> legs = new HashMap<>();
+        int reads = 0;
+        double flights = 0;
+        if (maxChanges == 0) {
+            boolean anywhereAtOnce = anywhere && readsWholeAirports;
+            for (Direction direction : FlightFetchPlan.of(departureAirports, destinationAirports).directions()) {
+                if (!connections.isConnected(direction.departure(), direction.destination())) continue;
+                if (!anywhereAtOnce || !departureAirports.contains(direction.departure())) reads++;
+                double directionFlights = days * statistics.flightsPerDay(direction);
+                flights += directionFlights;
+                legs.put(direction, directionFlights);
+            }
+            if (anywhereAtOnce) {
+                reads += departureAirports.size();
+            }
+        } else {
+            int maxLayoverHours = Optional.ofNullable(request.getMaxTimeBetweenChangesHours())
+                    .orElse(QueryLambdaWorkflow.DEFAULT_MAX_LAYOVER_HOURS);
+            long readDays = days + QueryLambdaWorkflow.connectionReadDays(maxChanges, maxLayoverHours);
+
+            Set<Direction> routes = new HashSet<>();
+            for (String departure : departureAirports) {
+                for (String destination : destinationAirports) {
+                    for (Direction direction : legDirections(departure, destination, departureAirports,
+                            returnToSameAirport)) {
+                        if (legs.containsKey(direction)) continue;
+                        ItineraryPlan plan = ItineraryPlan.of(connections, direction.departure(),
+                                direction.destination(), maxChanges);
+                        routes.addAll(plan.directions());
+                        // At most as many itineraries as flights on their routes, and never more than the search keeps
+                        double planFlights = plan.directions().stream()
+                                .mapToDouble(route -> readDays * statistics.flightsPerDay(route))
+                                .sum();
+                        legs.put(direction, Math.min(planFlights, QueryLambdaWorkflow.MAX_ITINERARIES_PER_DIRECTION));
+                    }
+                }
+            }
+            reads = routes.size();
+            flights = routes.stream().mapToDouble(route -> readDays * statistics.flightsPerDay(route)).sum();
+        }
+
+        double pairs = 0;
+        for (String departure : departureAirports) {
+            for (String destination : destinationAirports) {
+                double outbound = legs.getOrDefault(new Direction(departure, destination), 0.0);
+                double returns = 0;
+                for (String returnDestination : returnToSameAirport ? List.of(departure) : departureAirports) {
+                    returns += legs.getOrDefault(new Direction(destination, returnDestination), 0.0);
+                }
+                pairs += outbound * returns * stayFraction;
+            }
+        }
+
+        return new ScanCost(reads, Math.round(flights), Math.round(pairs));
+    }
+
+    // The outbound leg and the return legs of a pairing, towards the same airport or any of the departure ones
+    private static List<Direction> legDirections(String departure, String destination, List<String> departureAirports,
+                                                 boolean returnToSameAirport) {
+        List<Direction> directions = new ArrayList<>();
+        directions.add(new Direction(departure, destination));
+        for (String returnDestination : returnToSameAirport ? List.of(departure) : departureAirports) {
+            directions.add(new Direction(destination, returnDestination));
+        }
+        return directions;
+    }
+}
@@ -0,0 +1,47 @@
+package com.aerotrack.lambda.workflow.batch;
+
+import com.aerotrack.lambda.workflow.fetch.FlightFilter;
+import com.aerotrack.lambda.workflow.pairing.TripRanking;
+import com.aerotrack.model.protocol.ScanQueryRequest;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One of the scans of a /scan/batch request, with the same fields as a single /scan body. Batched scans aren't paged
+ * nor run asynchronously, so the paging and async fields are ignored.
+ */
+public record BatchScan(ScanQueryRequest request, TripRanking ranking, FlightFilter filter) {
+    public static final int MAX_BATCH_SCANS = 10;
+
+    public static BatchScan fromJson(ObjectMapper objectMapper, JsonNode body) {
+        ScanQueryRequest request;
+        try {
+            request = objectMapper.treeToValue(body, ScanQueryRequest.class);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Invalid scan in the batch: " + e.getOriginalMessage());
+        }
+        request.validate();
+        return new BatchScan(request, TripRanking.fromJson(body.get("ranking")), FlightFilter.fromJson(body));
+    }
+
+    /** Reads the {@code scans} list of a batch body. */
+    public static List<BatchScan> listFromJson(ObjectMapper objectMapper, JsonNode body) {
+        JsonNode scans = body.get("scans");
+        if (scans == null || !scans.isArray() || scans.isEmpty()) {
+            throw new IllegalArgumentException("A batch needs a non empty scans list");
+        }
+        if (scans.size() > MAX_BATCH_SCANS) {
+            throw new IllegalArgumentException("A batch can have at most " + MAX_BATCH_SCANS + " scans");
+        }
+
+        List<BatchScan> batch = new ArrayList<>();
+        for (JsonNode scan : scans) {
+            batch.add(fromJson(objectMapper, scan));
+        }
+        return batch;
+    }
+}
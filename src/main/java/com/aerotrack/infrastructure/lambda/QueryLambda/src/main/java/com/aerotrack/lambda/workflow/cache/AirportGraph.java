@@ -0,0 +1,38 @@
+package com.aerotrack.lambda.workflow.cache;
+
+import com.aerotrack.lambda.workflow.graph.AirportRegistry;
+import com.aerotrack.lambda.workflow.graph.ReachabilityIndex;
+import com.aerotrack.lambda.workflow.graph.RouteGraph;
+import com.aerotrack.model.entities.AirportsJsonFile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parsed merged airports file together with the route graph and the reachability index derived from it, built once
+ * per version.
+ */
+public record AirportGraph(AirportsJsonFile airportsFile, RouteGraph routes, ReachabilityIndex reachabilityIndex) {
+
+    public static AirportGraph of(AirportsJsonFile airportsFile) {
+        RouteGraph routes = RouteGraph.of(airportsFile.getAirports());
+        return new AirportGraph(airportsFile, routes, ReachabilityIndex.of(routes, ReachabilityIndex.DEFAULT_MAX_HOPS));
+    }
+
+    public boolean isConnected(String departure, String destination) {
+        return routes.isConnected(departure, destination);
+    }
+
+    /** Airports with a direct route from the departure one, none when it isn't in the graph. */
+    public List<String> connectionsOf(String departure) {
+        List<String> connections = new ArrayList<>();
+        int departureId = routes.airports().idOf(departure);
+        if (departureId == AirportRegistry.UNKNOWN) {
+            return connections;
+        }
+        for (int id = routes.nextConnection(departureId, 0); id >= 0; id = routes.nextConnection(departureId, id + 1)) {
+            connections.add(routes.airports().codeOf(id));
+        }
+        return connections;
+    }
+}
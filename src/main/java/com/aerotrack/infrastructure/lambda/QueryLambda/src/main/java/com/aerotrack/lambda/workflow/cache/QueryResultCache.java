@@ -0,0 +1,152 @@
+package com.aerotrack.lambda.workflow.cache;
+
+import com.aerotrack.lambda.workflow.fetch.FlightFilter;
+import com.aerotrack.lambda.workflow.pairing.TripRanking;
+import com.aerotrack.model.protocol.ScanQueryRequest;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Scan responses shared by all the query containers, stored gzipped in S3 under a hash of the normalized request. An
+ * entry is served while it is younger than the flights refresh interval, the bucket lifecycle deletes it later on.
+ */
+@Slf4j
+public class QueryResultCache {
+    public static final String BUCKET_ENV_VAR = "QUERY_RESULTS_BUCKET";
+    public static final String TTL_MINUTES_ENV_VAR = "QUERY_RESULTS_TTL_MINUTES";
+    public static final int DEFAULT_TTL_MINUTES = 15;
+    // Bumped whenever the response format or the key normalization changes, so old entries are never served
+    private static final String KEY_VERSION = "v1";
+    private static final String RESULTS_PREFIX = "results/";
+
+    private final S3Client s3Client;
+    private final String bucketName;
+    private final Duration ttl;
+
+    public record CachedResult(String body, Instant createdAt, long ageSeconds) { }
+
+    public QueryResultCache(S3Client s3Client, String bucketName, Duration ttl) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.ttl = ttl;
+    }
+
+    public static Optional<QueryResultCache> fromEnvironment() {
+        int ttlMinutes = Optional.ofNullable(System.getenv(TTL_MINUTES_ENV_VAR))
+                .map(Integer::parseInt)
+                .orElse(DEFAULT_TTL_MINUTES);
+
+        return Optional.ofNullable(System.getenv(BUCKET_ENV_VAR))
+                .map(bucketName -> new QueryResultCache(S3Client.create(), bucketName, Duration.ofMinutes(ttlMinutes)));
+    }
+
+    /** Airports are sorted and deduplicated and the defaults filled in, so equivalent requests share their entry. */
+    public static String keyOf(ScanQueryRequest request) {
+        return keyOf(request, TripRanking.PRICE, FlightFilter.NONE);
+    }
+
+    public static String keyOf(ScanQueryRequest request, TripRanking ranking, FlightFilter filter) {
+        String normalized = String.join("|",
+                KEY_VERSION,
+                Objects.toString(request.getMinDays()),
+                Objects.toString(request.getMaxDays()),
+                request.getAvailabilityStart(),
+                request.getAvailabilityEnd(),
+                normalizeAirports(request.getDepartureAirports()),
+                normalizeAirports(request.getDestinationAirports()),
+                Objects.toString(Optional.ofNullable(request.getMaxChanges()).orElse(0)),
+                Objects.toString(request.getMinTimeBetweenChangesHours(), ""),
+                Objects.toString(request.getMaxTimeBetweenChangesHours(), ""),
+                Objects.toString(Optional.ofNullable(request.getReturnToSameAirport()).orElse(true)));
+        // Other rankings and filters get their own results, the keys of plain requests stay the same
+        if (!ranking.key().isEmpty()) {
+            normalized += "|" + ranking.key();
+        }
+        if (!filter.key().isEmpty()) {
+            normalized += "|" + filter.key();
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(normalized.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Optional<CachedResult> get(String key) {
+        ResponseBytes<GetObjectResponse> object;
+        try {
+            object = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(RESULTS_PREFIX + key)
+                    .build());
+        } catch (NoSuchKeyException e) {
+            return Optional.empty();
+        }
+
+        Instant createdAt = object.response().lastModified();
+        Duration age = Duration.between(createdAt, Instant.now());
+        if (age.compareTo(ttl) > 0) {
+            return Optional.empty();
+        }
+        return Optional.of(new CachedResult(gunzip(object.asByteArray()), createdAt, Math.max(0, age.toSeconds())));
+    }
+
+    public void put(String key, String body) {
+        byte[] compressed = gzip(body);
+        s3Client.putObject(PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(RESULTS_PREFIX + key)
+                .contentType("application/json")
+                .contentEncoding("gzip")
+                .build(), RequestBody.fromBytes(compressed));
+        log.info("Cached query result {} ({} bytes, {} compressed)", key, body.length(), compressed.length);
+    }
+
+    private static String normalizeAirports(List<String> airports) {
+        return airports == null ? "" : String.join(",", airports.stream().distinct().sorted().toList());
+    }
+
+    public static byte[] gzip(String body) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(body.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    public static String gunzip(byte[] compressed) {
+        try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return new String(gzip.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
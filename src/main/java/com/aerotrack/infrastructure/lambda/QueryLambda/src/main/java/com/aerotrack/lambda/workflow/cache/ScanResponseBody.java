@@ -0,0 +1,97 @@
+package com.aerotrack.lambda.workflow.cache;
+
+import com.aerotrack.lambda.workflow.cache.QueryResultCache.CachedResult;
+import com.aerotrack.lambda.workflow.pairing.TripConsumer;
+import com.aerotrack.model.entities.Trip;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Writes the body of a scan response: its extra fields, then the trips straight from the ranking, so the trips are
+ * never collected into a list on the way. The body is cached as it is, and a cached one is copied field by field with
+ * the cache fields of the response serving it.
+ */
+public class ScanResponseBody {
+    public static final String CACHE_HIT = "cacheHit";
+    public static final String CACHE_AGE_SECONDS = "cacheAgeSeconds";
+    public static final String TRIPS = "trips";
+
+    /** Hands the trips of a response over one at a time, in their order. */
+    @FunctionalInterface
+    public interface TripSource {
+        void forEachTrip(TripConsumer consumer) throws IOException;
+
+        static TripSource of(List<Trip> trips) {
+            return consumer -> {
+                for (Trip trip : trips) {
+                    consumer.accept(trip);
+                }
+            };
+        }
+    }
+
+    private final ObjectMapper objectMapper;
+
+    public ScanResponseBody(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    /** Cache fields of a response, served from the given entry or computed when there is none. */
+    public static Map<String, Object> cacheFields(Optional<CachedResult> cachedResult) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put(CACHE_HIT, cachedResult.isPresent());
+        fields.put(CACHE_AGE_SECONDS, cachedResult.map(CachedResult::ageSeconds).orElse(0L));
+        return fields;
+    }
+
+    /** Body of the given fields, cache fields included, and of the trips in the order the source hands them over. */
+    public String write(Map<String, Object> fields, TripSource trips) throws IOException {
+        StringWriter body = new StringWriter();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(body)) {
+            generator.writeStartObject();
+            for (Map.Entry<String, Object> field : fields.entrySet()) {
+                generator.writeObjectField(field.getKey(), field.getValue());
+            }
+            generator.writeArrayFieldStart(TRIPS);
+            trips.forEachTrip(generator::writeObject);
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        return body.toString();
+    }
+
+    /** Body of a cached scan, its stored cache fields replaced by the hit and the age of the entry. */
+    public String fromCache(CachedResult cachedResult) throws IOException {
+        StringWriter body = new StringWriter();
+        try (JsonParser parser = objectMapper.getFactory().createParser(cachedResult.body());
+             JsonGenerator generator = objectMapper.getFactory().createGenerator(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("The cached result is not a JSON object");
+            }
+            generator.writeStartObject();
+            generator.writeBooleanField(CACHE_HIT, true);
+            generator.writeNumberField(CACHE_AGE_SECONDS, cachedResult.ageSeconds());
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if (CACHE_HIT.equals(name) || CACHE_AGE_SECONDS.equals(name)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                generator.writeFieldName(name);
+                generator.copyCurrentStructure(parser);
+            }
+            generator.writeEndObject();
+        }
+        return body.toString();
+    }
+}
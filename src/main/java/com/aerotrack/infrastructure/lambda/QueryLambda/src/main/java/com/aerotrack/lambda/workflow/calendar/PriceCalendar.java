@@ -0,0 +1,89 @@
+package com.aerotrack.lambda.workflow.calendar;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Cheapest fare of a direction per day and per month, kept up to date by the flights table stream. A calendar is a
+ * single range query on the pre-aggregated items, instead of reading every flight of the period.
+ */
+public class PriceCalendar {
+    public static final String TABLE_ENV_VAR = "PRICE_CALENDAR_TABLE";
+    // Attributes written by the price calendar aggregator
+    public static final String DIRECTION = "direction";
+    public static final String PERIOD = "period";
+    public static final String MIN_PRICE = "minPrice";
+    public static final String DEPARTURE_DATE_TIME = "departureDateTime";
+    public static final String FLIGHT_NUMBER = "flightNumber";
+    public static final String DAY_PREFIX = "D#";
+    public static final String MONTH_PREFIX = "M#";
+    public static final int MAX_DAYS = 366;
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
+
+    /** Cheapest flight of a day or a month, {@code period} being the date or the year and month. */
+    public record CalendarEntry(String period, double minPrice, String departureDateTime, String flightNumber) { }
+
+    public PriceCalendar(DynamoDbClient dynamoDbClient, String tableName) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.tableName = tableName;
+    }
+
+    public static Optional<PriceCalendar> fromEnvironment() {
+        return Optional.ofNullable(System.getenv(TABLE_ENV_VAR))
+                .map(tableName -> new PriceCalendar(DynamoDbClient.create(), tableName));
+    }
+
+    /** Days between the bounds, both inclusive, that have at least a flight. */
+    public List<CalendarEntry> days(String departure, String destination, LocalDate from, LocalDate to) {
+        if (from.isAfter(to) || from.plusDays(MAX_DAYS).isBefore(to)) {
+            throw new IllegalArgumentException("The calendar must span between 1 and " + MAX_DAYS + " days");
+        }
+        return query(departure, destination, DAY_PREFIX, from.toString(), to.toString());
+    }
+
+    public List<CalendarEntry> months(String departure, String destination, YearMonth from, YearMonth to) {
+        if (from.isAfter(to) || from.plusMonths(12).isBefore(to)) {
+            throw new IllegalArgumentException("The calendar must span between 1 and 13 months");
+        }
+        return query(departure, destination, MONTH_PREFIX, from.toString(), to.toString());
+    }
+
+    // Day and month items share the partition, each kind is a single key range
+    private List<CalendarEntry> query(String departure, String destination, String prefix, String start, String end) {
+        List<CalendarEntry> entries = new ArrayList<>();
+        Map<String, AttributeValue> exclusiveStartKey = null;
+        do {
+            QueryResponse page = dynamoDbClient.query(QueryRequest.builder()
+                    .tableName(tableName)
+                    .keyConditionExpression("#direction = :direction AND #period BETWEEN :start AND :end")
+                    .expressionAttributeNames(Map.of("#direction", DIRECTION, "#period", PERIOD))
+                    .expressionAttributeValues(Map.of(
+                            ":direction", AttributeValue.fromS(departure + "#" + destination),
+                            ":start", AttributeValue.fromS(prefix + start),
+                            ":end", AttributeValue.fromS(prefix + end)))
+                    .exclusiveStartKey(exclusiveStartKey)
+                    .build());
+
+            for (Map<String, AttributeValue> item : page.items()) {
+                entries.add(new CalendarEntry(
+                        item.get(PERIOD).s().substring(prefix.length()),
+                        Double.parseDouble(item.get(MIN_PRICE).n()),
+                        item.get(DEPARTURE_DATE_TIME).s(),
+                        item.containsKey(FLIGHT_NUMBER) ? item.get(FLIGHT_NUMBER).s() : null));
+            }
+            exclusiveStartKey = page.hasLastEvaluatedKey() ? page.lastEvaluatedKey() : null;
+        } while (exclusiveStartKey != null);
+        return entries;
+    }
+}
@@ -0,0 +1,83 @@
+package com.aerotrack.lambda.workflow.deals;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Cheapest round trips from an origin for each stay length, read from the single item the flights stream keeps up to
+ * date with the best few deals of every destination. Deals leaving before today are dropped here, since the item only
+ * changes when the flights of its destinations do, and the cheapest one still ahead stands for the destination.
+ */
+public class BestDeals {
+    public static final String TABLE_ENV_VAR = "DEALS_TABLE";
+    // Attributes written by the best deals index
+    public static final String ORIGIN = "origin";
+    public static final String DEALS = "deals";
+    public static final String PRICE = "price";
+    public static final String OUTBOUND_DATE = "outboundDate";
+    public static final String RETURN_DATE = "returnDate";
+    public static final String MIN_DAYS = "minDays";
+    public static final String MAX_DAYS = "maxDays";
+    public static final int MAX_LIMIT = 50;
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
+
+    public record Deal(String destination, double price, String outboundDate, String returnDate, int minDays,
+                       int maxDays) { }
+
+    public BestDeals(DynamoDbClient dynamoDbClient, String tableName) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.tableName = tableName;
+    }
+
+    public static Optional<BestDeals> fromEnvironment() {
+        return Optional.ofNullable(System.getenv(TABLE_ENV_VAR))
+                .map(tableName -> new BestDeals(DynamoDbClient.create(), tableName));
+    }
+
+    /** Up to {@code limit} deals per stay bucket, cheapest first, one per destination. */
+    public Map<String, List<Deal>> from(String origin, int limit) {
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_LIMIT);
+        }
+        Map<String, AttributeValue> item = dynamoDbClient.getItem(GetItemRequest.builder()
+                .tableName(tableName)
+                .key(Map.of(ORIGIN, AttributeValue.fromS(origin)))
+                .build()).item();
+
+        Map<String, List<Deal>> dealsByBucket = new TreeMap<>();
+        if (item == null || item.isEmpty()) {
+            return dealsByBucket;
+        }
+
+        String today = LocalDate.now().toString();
+        item.get(DEALS).m().forEach((destination, buckets) -> buckets.m().forEach((bucket, bucketDeals) ->
+                bucketDeals.l().stream()
+                        .map(deal -> toDeal(destination, deal.m()))
+                        // ISO dates sort as strings
+                        .filter(deal -> deal.outboundDate().compareTo(today) >= 0)
+                        .min(Comparator.comparingDouble(Deal::price))
+                        .ifPresent(deal -> dealsByBucket.computeIfAbsent(bucket, key -> new ArrayList<>()).add(deal))));
+        dealsByBucket.replaceAll((bucket, deals) -> deals.stream()
+                .sorted(Comparator.comparingDouble(Deal::price))
+                .limit(limit)
+                .toList());
+        return dealsByBucket;
+    }
+
+    private static Deal toDeal(String destination, Map<String, AttributeValue> fields) {
+        return new Deal(destination, Double.parseDouble(fields.get(PRICE).n()), fields.get(OUTBOUND_DATE).s(),
+                fields.get(RETURN_DATE).s(), Integer.parseInt(fields.get(MIN_DAYS).n()),
+                Integer.parseInt(fields.get(MAX_DAYS).n()));
+    }
+}
@@ -0,0 +1,231 @@
+package com.aerotrack.lambda.workflow.fetch;
+
+import com.aerotrack.lambda.cache.RevalidatingCache;
+import com.aerotrack.model.entities.Flight;
+import com.aerotrack.utils.clients.dynamodb.AerotrackDynamoDbClient;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Runs the DynamoDB direction reads of a request concurrently on a fixed pool, so at most {@code maxInFlight} reads are
+ * outstanding at any time. The pool lives as long as the handler, hence it is reused across warm invocations, and
+ * so does the optional {@link FlightDayCache} the reads go through.
+ */
+@Slf4j
+public class ConcurrentFlightFetcher {
+    public static final String MAX_IN_FLIGHT_READS_ENV_VAR = "MAX_IN_FLIGHT_READS";
+    public static final int DEFAULT_MAX_IN_FLIGHT_READS = 16;
+
+    private final AerotrackDynamoDbClient dynamoDbClient;
+    private final FlightDayCache flightDayCache;
+    private final OriginFlightIndex originIndex;
+    private final RevalidatingCache<FlightPresence> presence;
+    private final HedgedReads hedgedReads;
+    private final DirectionStatistics statistics = new DirectionStatistics();
+    private final ExecutorService executor;
+
+    private ConcurrentFlightFetcher(Builder builder) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.dynamoDbClient = builder.dynamoDbClient;
+        this.flightDayCache = builder.flightDayCache;
+        this.originIndex = builder.originIndex;
+        this.presence = builder.presence;
+        this.hedgedReads = builder.hedgedReads;
+        this.executor = Executors.newFixedThreadPool(builder.maxInFlight, runnable -> {
+            Thread thread = new Thread(runnable, "flight-fetcher-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static ConcurrentFlightFetcher fromEnvironment(AerotrackDynamoDbClient dynamoDbClient) {
+        int maxInFlight = Optional.ofNullable(System.getenv(MAX_IN_FLIGHT_READS_ENV_VAR))
+                .map(Integer::parseInt)
+                .orElse(DEFAULT_MAX_IN_FLIGHT_READS);
+        return builder(dynamoDbClient, maxInFlight)
+                .flightDayCache(FlightDayCache.fromEnvironment().orElse(null))
+                .originIndex(OriginFlightIndex.fromEnvironment().orElse(null))
+                .presence(FlightPresence.cacheFromEnvironment().orElse(null))
+                .hedgedReads(HedgedReads.fromEnvironment().orElse(null))
+                .build();
+    }
+
+    /** Reads straight from DynamoDB unless the optional collaborators are set on the builder. */
+    public static Builder builder(AerotrackDynamoDbClient dynamoDbClient, int maxInFlight) {
+        return new Builder(dynamoDbClient, maxInFlight);
+    }
+
+    /**
+     * Reads the flights of a direction. {@code skip} is evaluated when the read actually starts, so reads queued behind
+     * the in-flight limit can still be dropped by information that arrived in the meantime.
+     */
+    public CompletableFuture<List<Flight>> scanFlightsBetweenDates(String departure, String destination,
+                                                                   String availabilityStart, String availabilityEnd,
+                                                                   BooleanSupplier skip) {
+        return scanFlightsBetweenDates(departure, destination, availabilityStart, availabilityEnd, skip, null);
+    }
+
+    /**
+     * Same read keeping only the flights {@code keep} accepts. They are dropped on the reading thread, right after the
+     * read and after the day cache, which keeps every flight since its days are shared by all the requests.
+     */
+    public CompletableFuture<List<Flight>> scanFlightsBetweenDates(String departure, String destination,
+                                                                   String availabilityStart, String availabilityEnd,
+                                                                   BooleanSupplier skip, Predicate<Flight> keep) {
+        return CompletableFuture.supplyAsync(() -> {
+            if (skip.getAsBoolean()) {
+                return List.of();
+            }
+            if (knownEmpty(departure, destination, availabilityStart, availabilityEnd)) {
+                recordStatistics(new FlightFetchPlan.Direction(departure, destination), 0, availabilityStart,
+                        availabilityEnd);
+                return List.of();
+            }
+            List<Flight> flights = flightDayCache != null
+                    ? flightDayCache.scanFlightsBetweenDates(departure, destination, availabilityStart,
+                            availabilityEnd, this::readDirection)
+                    : readDirection(departure, destination, availabilityStart, availabilityEnd);
+            recordStatistics(new FlightFetchPlan.Direction(departure, destination), flights.size(), availabilityStart,
+                    availabilityEnd);
+            return keep == null ? flights : flights.stream().filter(keep).toList();
+        }, executor);
+    }
+
+    private List<Flight> readDirection(String departure, String destination, String start, String end) {
+        return hedgedReads != null
+                ? hedgedReads.scanFlightsBetweenDates(dynamoDbClient::scanFlightsBetweenDates, departure, destination,
+                        start, end)
+                : dynamoDbClient.scanFlightsBetweenDates(departure, destination, start, end);
+    }
+
+    // Without a presence index, or one that can't be loaded, every read goes to DynamoDB
+    private boolean knownEmpty(String departure, String destination, String availabilityStart, String availabilityEnd) {
+        if (presence == null) {
+            return false;
+        }
+        try {
+            return !presence.get().mayHaveFlights(departure, destination, availabilityStart, availabilityEnd);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not load the flight presence: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /** Whether all the outbound flights of an airport can be read at once, rather than one destination at a time. */
+    public boolean readsWholeAirports() {
+        return originIndex != null;
+    }
+
+    /** Outbound flights of the airport grouped by destination, from a single range query on the origin index. */
+    public CompletableFuture<Map<String, List<Flight>>> scanFlightsFrom(String departure, String availabilityStart,
+                                                                        String availabilityEnd) {
+        if (originIndex == null) {
+            throw new IllegalStateException("The flights table has no origin index");
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            Map<String, List<Flight>> flightsByDestination =
+                    originIndex.flightsFrom(departure, availabilityStart, availabilityEnd);
+            flightsByDestination.forEach((destination, flights) -> recordStatistics(
+                    new FlightFetchPlan.Direction(departure, destination), flights.size(), availabilityStart,
+                    availabilityEnd));
+            return flightsByDestination;
+        }, executor);
+    }
+
+    /** Flights per day of the directions read so far, before any filter. */
+    public DirectionStatistics statistics() {
+        return statistics;
+    }
+
+    private void recordStatistics(FlightFetchPlan.Direction direction, int flights, String start, String end) {
+        try {
+            long days = ChronoUnit.DAYS.between(LocalDate.parse(start.substring(0, 10)),
+                    LocalDate.parse(end.substring(0, 10))) + 1;
+            statistics.record(direction, flights, days);
+        } catch (DateTimeParseException | IndexOutOfBoundsException e) {
+            // Bounds that aren't dates tell nothing about the flights per day
+        }
+    }
+
+    public Optional<String> cacheStats() {
+        return Optional.ofNullable(flightDayCache).map(FlightDayCache::stats);
+    }
+
+    public Optional<HedgedReads> hedgedReads() {
+        return Optional.ofNullable(hedgedReads);
+    }
+
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /** Waits for a stage, rethrowing the IOException or unchecked exception that failed it. */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioException) throw ioException;
+            if (e.getCause() instanceof RuntimeException runtimeException) throw runtimeException;
+            throw e;
+        }
+    }
+
+    public static class Builder {
+        private final AerotrackDynamoDbClient dynamoDbClient;
+        private final int maxInFlight;
+        private FlightDayCache flightDayCache;
+        private OriginFlightIndex originIndex;
+        private RevalidatingCache<FlightPresence> presence;
+        private HedgedReads hedgedReads;
+
+        private Builder(AerotrackDynamoDbClient dynamoDbClient, int maxInFlight) {
+            this.dynamoDbClient = dynamoDbClient;
+            this.maxInFlight = maxInFlight;
+        }
+
+        public Builder flightDayCache(FlightDayCache flightDayCache) {
+            this.flightDayCache = flightDayCache;
+            return this;
+        }
+
+        public Builder originIndex(OriginFlightIndex originIndex) {
+            this.originIndex = originIndex;
+            return this;
+        }
+
+        public Builder presence(RevalidatingCache<FlightPresence> presence) {
+            this.presence = presence;
+            return this;
+        }
+
+        public Builder hedgedReads(HedgedReads hedgedReads) {
+            this.hedgedReads = hedgedReads;
+            return this;
+        }
+
+        public ConcurrentFlightFetcher build() {
+            return new ConcurrentFlightFetcher(this);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.aerotrack.lambda.workflow.fetch;
+
+import com.aerotrack.model.entities.Flight;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Where the workflow reads the flights of a direction from: straight from the {@link ConcurrentFlightFetcher}, or from
+ * the {@link SharedFlightReads} of a batch of scans.
+ */
+@FunctionalInterface
+public interface DirectionReader {
+    CompletableFuture<List<Flight>> scanFlightsBetweenDates(String departure, String destination,
+                                                            String availabilityStart, String availabilityEnd,
+                                                            BooleanSupplier skip, Predicate<Flight> keep);
+}
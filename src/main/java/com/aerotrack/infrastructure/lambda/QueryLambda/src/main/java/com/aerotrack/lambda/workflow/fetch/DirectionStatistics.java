@@ -0,0 +1,31 @@
+package com.aerotrack.lambda.workflow.fetch;
+
+import com.aerotrack.lambda.workflow.fetch.FlightFetchPlan.Direction;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Flights per day of the directions this container has read, learned from the reads themselves and kept across warm
+ * invocations. They are only used to estimate what a scan will cost before running it, so directions that were never
+ * read are simply assumed to have {@code DEFAULT_FLIGHTS_PER_DAY}.
+ */
+public class DirectionStatistics {
+    public static final double DEFAULT_FLIGHTS_PER_DAY = 3;
+    // Weight of the latest read, older ones fade out as the schedules change
+    private static final double SMOOTHING = 0.3;
+
+    private final Map<Direction, Double> flightsPerDay = new ConcurrentHashMap<>();
+
+    public void record(Direction direction, int flights, long days) {
+        if (days <= 0) {
+            return;
+        }
+        double observed = (double) flights / days;
+        flightsPerDay.merge(direction, observed, (previous, latest) -> previous + SMOOTHING * (latest - previous));
+    }
+
+    public double flightsPerDay(Direction direction) {
+        return flightsPerDay.getOrDefault(direction, DEFAULT_FLIGHTS_PER_DAY);
+    }
+}
@@ -0,0 +1,189 @@
+package com.aerotrack.lambda.workflow.fetch;
+
+import com.aerotrack.model.entities.Flight;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flights of a direction cached per departure day across warm invocations. A read is served from the cached days and
+ * only the runs of missing days go to DynamoDB. Entries expire with the flights refresh cadence, and the least
+ * recently used days are evicted once the estimated size of the cache exceeds its byte budget.
+ */
+public class FlightDayCache {
+    public static final String MAX_BYTES_ENV_VAR = "FLIGHT_CACHE_MAX_BYTES";
+    public static final String TTL_MINUTES_ENV_VAR = "FLIGHT_CACHE_TTL_MINUTES";
+    public static final int DEFAULT_TTL_MINUTES = 15;
+
+    // Rough retained size of a Flight with its strings, and of an empty cached day
+    private static final long FLIGHT_BASE_BYTES = 64;
+    private static final long STRING_BASE_BYTES = 40;
+    // Airport codes and flight number, a few characters each
+    private static final long SHORT_STRINGS_BYTES = 3 * (STRING_BASE_BYTES + 8);
+    private static final long DAY_BASE_BYTES = 128;
+
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final Map<DayKey, CachedDay> days = new LinkedHashMap<>(256, 0.75f, true);
+    private long usedBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    @FunctionalInterface
+    public interface FlightReader {
+        List<Flight> scanFlightsBetweenDates(String departure, String destination, String start, String end);
+    }
+
+    private record DayKey(String departure, String destination, LocalDate day) { }
+
+    private record CachedDay(List<Flight> flights, long bytes, long expiresAtNanos) { }
+
+    public FlightDayCache(long maxBytes, Duration ttl) {
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    /** The cache is only enabled when a byte budget is configured. */
+    public static Optional<FlightDayCache> fromEnvironment() {
+        long maxBytes = Optional.ofNullable(System.getenv(MAX_BYTES_ENV_VAR)).map(Long::parseLong).orElse(0L);
+        int ttlMinutes = Optional.ofNullable(System.getenv(TTL_MINUTES_ENV_VAR))
+                .map(Integer::parseInt)
+                .orElse(DEFAULT_TTL_MINUTES);
+
+        return maxBytes > 0 ? Optional.of(new FlightDayCache(maxBytes, Duration.ofMinutes(ttlMinutes))) : Optional.empty();
+    }
+
+    /**
+     * Flights of the direction departing between {@code start} and {@code end}, both inclusive. Missing days are read
+     * in contiguous runs, and days without flights are cached too so they aren't read again. Whole days are cached, so
+     * the flights are then cut to the bounds compared as strings, like the BETWEEN of an uncached read.
+     */
+    public List<Flight> scanFlightsBetweenDates(String departure, String destination, String start, String end,
+                                                FlightReader reader) {
+        LocalDate firstDay;
+        LocalDate lastDay;
+        try {
+            firstDay = LocalDate.parse(start.substring(0, 10));
+            lastDay = LocalDate.parse(end.substring(0, 10));
+        } catch (DateTimeParseException | IndexOutOfBoundsException e) {
+            return reader.scanFlightsBetweenDates(departure, destination, start, end);
+        }
+
+        List<Flight> flights = new ArrayList<>();
+        LocalDate missingFrom = null;
+        for (LocalDate day = firstDay; !day.isAfter(lastDay); day = day.plusDays(1)) {
+            List<Flight> cached = get(new DayKey(departure, destination, day));
+            if (cached == null) {
+                if (missingFrom == null) missingFrom = day;
+                continue;
+            }
+
+            if (missingFrom != null) {
+                flights.addAll(readDays(departure, destination, missingFrom, day.minusDays(1), reader));
+                missingFrom = null;
+            }
+            flights.addAll(cached);
+        }
+        if (missingFrom != null) {
+            flights.addAll(readDays(departure, destination, missingFrom, lastDay, reader));
+        }
+        flights.removeIf(flight -> flight.getDepartureDateTime().compareTo(start) < 0
+                || flight.getDepartureDateTime().compareTo(end) > 0);
+        return flights;
+    }
+
+    public String stats() {
+        synchronized (days) {
+            return String.format("%d days, %d/%d bytes, %d hits, %d misses, %d evictions, %d expirations", days.size(),
+                    usedBytes, maxBytes, hits.get(), misses.get(), evictions.get(), expirations.get());
+        }
+    }
+
+    private List<Flight> readDays(String departure, String destination, LocalDate from, LocalDate to,
+                                  FlightReader reader) {
+        // The end bound is the following day, and the flights are filtered by day since the bounds compare as strings
+        List<Flight> read = reader.scanFlightsBetweenDates(departure, destination, from.toString(),
+                to.plusDays(1).toString());
+
+        Map<LocalDate, List<Flight>> flightsByDay = new HashMap<>();
+        for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+            flightsByDay.put(day, new ArrayList<>());
+        }
+        for (Flight flight : read) {
+            List<Flight> dayFlights = flightsByDay.get(LocalDate.parse(flight.getDepartureDateTime().substring(0, 10)));
+            if (dayFlights != null) {
+                dayFlights.add(flight);
+            }
+        }
+
+        List<Flight> flights = new ArrayList<>();
+        for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+            List<Flight> dayFlights = flightsByDay.get(day);
+            put(new DayKey(departure, destination, day), dayFlights);
+            flights.addAll(dayFlights);
+        }
+        return flights;
+    }
+
+    private List<Flight> get(DayKey key) {
+        synchronized (days) {
+            CachedDay cachedDay = days.get(key);
+            if (cachedDay != null && cachedDay.expiresAtNanos() - System.nanoTime() < 0) {
+                days.remove(key);
+                usedBytes -= cachedDay.bytes();
+                expirations.incrementAndGet();
+                cachedDay = null;
+            }
+
+            if (cachedDay == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return cachedDay.flights();
+        }
+    }
+
+    private void put(DayKey key, List<Flight> flights) {
+        long bytes = DAY_BASE_BYTES + flights.stream().mapToLong(FlightDayCache::estimateBytes).sum();
+        if (bytes > maxBytes) {
+            return;
+        }
+
+        synchronized (days) {
+            CachedDay previous = days.put(key, new CachedDay(List.copyOf(flights), bytes, System.nanoTime() + ttlNanos));
+            usedBytes += bytes - (previous == null ? 0 : previous.bytes());
+
+            // Access order iteration starts from the least recently used day
+            Iterator<CachedDay> leastRecentlyUsed = days.values().iterator();
+            while (usedBytes > maxBytes && leastRecentlyUsed.hasNext()) {
+                usedBytes -= leastRecentlyUsed.next().bytes();
+                leastRecentlyUsed.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static long estimateBytes(Flight flight) {
+        return FLIGHT_BASE_BYTES
+                + estimateBytes(flight.getDepartureDateTime())
+                + estimateBytes(flight.getArrivalDateTime())
+                + SHORT_STRINGS_BYTES;
+    }
+
+    private static long estimateBytes(String value) {
+        return STRING_BASE_BYTES + (value == null ? 0 : value.length());
+    }
+}
@@ -0,0 +1,58 @@
+package com.aerotrack.lambda.workflow.fetch;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiPredicate;
+
+/**
+ * Distinct direction reads needed by a scan request. A direction that is both an outbound and a return leg, or that
+ * is the return leg of several pairings, is read once and its flights are shared by all of them.
+ */
+public class FlightFetchPlan {
+    private final Set<Direction> directions;
+    private final int naiveReads;
+
+    public record Direction(String departure, String destination) { }
+
+    private FlightFetchPlan(Set<Direction> directions, int naiveReads) {
+        this.directions = directions;
+        this.naiveReads = naiveReads;
+    }
+
+    public static FlightFetchPlan of(List<String> departureAirports, List<String> destinationAirports) {
+        Set<Direction> directions = new LinkedHashSet<>();
+        for (String departure : departureAirports) {
+            for (String destination : destinationAirports) {
+                // An airport is never connected to itself
+                if (departure.equals(destination)) continue;
+
+                directions.add(new Direction(departure, destination));
+                directions.add(new Direction(destination, departure));
+            }
+        }
+
+        // Reading every leg of every pairing on its own takes one outbound and one return read per pairing, whether
+        // the return goes back to the same airport or to any of the departure airports
+        return new FlightFetchPlan(directions, 2 * departureAirports.size() * destinationAirports.size());
+    }
+
+    public Set<Direction> directions() {
+        return directions;
+    }
+
+    public int naiveReads() {
+        return naiveReads;
+    }
+
+    /** Reads left once the directions missing from the airports graph are pruned. */
+    public int plannedReads(BiPredicate<String, String> isConnected) {
+        int plannedReads = 0;
+        for (Direction direction : directions) {
+            if (isConnected.test(direction.departure(), direction.destination())) {
+                plannedReads++;
+            }
+        }
+        return plannedReads;
+    }
+}
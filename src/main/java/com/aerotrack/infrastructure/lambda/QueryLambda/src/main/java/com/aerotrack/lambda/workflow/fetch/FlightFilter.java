@@ -0,0 +1,136 @@
+package com.aerotrack.lambda.workflow.fetch;
+
+import com.aerotrack.lambda.workflow.pairing.DayBucketedFlights;
+import com.aerotrack.model.entities.Flight;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Optional restrictions of a scan on top of the dates and airports: a maximum price of the whole trip and of each leg,
+ * the hours of the day a leg can depart and arrive at, and the airlines that can operate its flights. They are
+ * applied as the flights are read, so flights that can't be part of any trip never reach the pairing.
+ * <p>
+ * A leg is the outbound or the return journey, one flight or a connecting itinerary: the hour windows apply to the
+ * departure of its first flight and to the arrival of its last one, the leg price to the sum of its flights.
+ */
+public record FlightFilter(Integer maxTotalPrice, Integer maxLegPrice, HourWindow departureHours,
+                           HourWindow arrivalHours, Set<String> airlines) {
+    public static final FlightFilter NONE = new FlightFilter(null, null, null, null, null);
+
+    /** Hours of the day from {@code from} to {@code to}, both inclusive, wrapping past midnight when from > to. */
+    public record HourWindow(int from, int to) {
+        public HourWindow {
+            if (from < 0 || from > 23 || to < 0 || to > 23) {
+                throw new IllegalArgumentException("Hour windows must be between 0 and 23");
+            }
+        }
+
+        public boolean contains(int epochMinute) {
+            int hour = Math.floorMod(epochMinute, DayBucketedFlights.MINUTES_PER_DAY) / 60;
+            return from <= to ? hour >= from && hour <= to : hour >= from || hour <= to;
+        }
+    }
+
+    // Prices are compared in int cents
+    public static final int MAX_PRICE = Integer.MAX_VALUE / 100;
+
+    public FlightFilter {
+        if (!isValidPrice(maxTotalPrice) || !isValidPrice(maxLegPrice)) {
+            throw new IllegalArgumentException("Maximum prices must be between 1 and " + MAX_PRICE);
+        }
+    }
+
+    private static boolean isValidPrice(Integer price) {
+        return price == null || (price > 0 && price <= MAX_PRICE);
+    }
+
+    /** Reads the filter fields of a scan request body, all of them optional. */
+    public static FlightFilter fromJson(JsonNode body) {
+        Set<String> airlines = null;
+        if (body.hasNonNull("airlines")) {
+            airlines = StreamSupport.stream(body.get("airlines").spliterator(), false)
+                    .map(airline -> airline.asText().trim().toUpperCase(Locale.ROOT))
+                    .collect(Collectors.toCollection(TreeSet::new));
+            if (airlines.isEmpty()) {
+                throw new IllegalArgumentException("The airlines list can't be empty");
+            }
+        }
+
+        return new FlightFilter(
+                price(body.get("maxTotalPrice")),
+                price(body.get("maxPrice")),
+                hourWindow(body.get("departureHours")),
+                hourWindow(body.get("arrivalHours")),
+                airlines);
+    }
+
+    // Read as a long so that a huge price is rejected rather than wrapped into range
+    private static Integer price(JsonNode price) {
+        if (price == null || price.isNull()) {
+            return null;
+        }
+        long value = price.asLong();
+        if (value <= 0 || value > MAX_PRICE) {
+            throw new IllegalArgumentException("Maximum prices must be between 1 and " + MAX_PRICE);
+        }
+        return (int) value;
+    }
+
+    private static HourWindow hourWindow(JsonNode window) {
+        if (window == null || window.isNull()) {
+            return null;
+        }
+        return new HourWindow(window.path("from").asInt(0), window.path("to").asInt(23));
+    }
+
+    public boolean isEmpty() {
+        return equals(NONE);
+    }
+
+    /** Part of the result cache key, empty without filters so the keys of unfiltered requests are unchanged. */
+    public String key() {
+        return isEmpty() ? "" : toString();
+    }
+
+    /** Whether the flight can be part of some leg: every single flight is within the price limits and airlines. */
+    public boolean acceptsFlight(Flight flight) {
+        int priceCents = DayBucketedFlights.toCents(flight.getPrice());
+        return (maxLegPrice == null || priceCents <= maxLegPriceCents())
+                && (maxTotalPrice == null || priceCents <= maxTotalPriceCents())
+                && (airlines == null || airlines.contains(airlineOf(flight)));
+    }
+
+    /** Whether a flight is a whole leg on its own, checking its hours as well. */
+    public boolean acceptsDirectFlight(Flight flight) {
+        return acceptsFlight(flight)
+                && acceptsDeparture(DayBucketedFlights.toEpochMinute(flight.getDepartureDateTime()))
+                && acceptsArrival(DayBucketedFlights.toEpochMinute(flight.getArrivalDateTime()));
+    }
+
+    public boolean acceptsDeparture(int epochMinute) {
+        return departureHours == null || departureHours.contains(epochMinute);
+    }
+
+    public boolean acceptsArrival(int epochMinute) {
+        return arrivalHours == null || arrivalHours.contains(epochMinute);
+    }
+
+    public int maxLegPriceCents() {
+        return maxLegPrice == null ? Integer.MAX_VALUE : maxLegPrice * 100;
+    }
+
+    public int maxTotalPriceCents() {
+        return maxTotalPrice == null ? Integer.MAX_VALUE : maxTotalPrice * 100;
+    }
+
+    // IATA designator in front of the flight number, as in FR1234 or W6 2310
+    static String airlineOf(Flight flight) {
+        String flightNumber = flight.getFlightNumber() == null ? "" : flight.getFlightNumber().replace(" ", "");
+        return flightNumber.length() < 2 ? "" : flightNumber.substring(0, 2).toUpperCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,137 @@
+package com.aerotrack.lambda.workflow.fetch;
+
+import com.aerotrack.lambda.cache.RevalidatingCache;
+import com.aerotrack.lambda.workflow.fetch.FlightFetchPlan.Direction;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Departure days with stored flights of every direction, as written by the flights refresh, one bit per day from
+ * yesterday on. A read whose days are all unset is known to come back empty and doesn't need to go to DynamoDB. The
+ * index only says so once the flights stored before the tracking are in it too, added by the backfill or gone after
+ * the warm-up. Directions whose days the refresh couldn't record are always read until those flights depart.
+ */
+public class FlightPresence {
+    public static final String TABLE_ENV_VAR = "FLIGHT_PRESENCE_TABLE";
+    public static final String WARMUP_DAYS_ENV_VAR = "FLIGHT_PRESENCE_WARMUP_DAYS";
+    // Flights are written up to a year ahead and expire a few days after departing
+    public static final int DEFAULT_WARMUP_DAYS = 400;
+    // Attributes written by the flights refresh
+    public static final String DIRECTION = "direction";
+    public static final String DAYS = "days";
+    public static final String TRACKED_SINCE = "trackedSince";
+    public static final String BACKFILLED_AT = "backfilledAt";
+    public static final String INCOMPLETE_UNTIL = "incompleteUntil";
+    public static final String TRACKING_ITEM = "#tracking";
+    private static final String SEPARATOR = "#";
+
+    private final Map<Direction, BitSet> daysByDirection;
+    private final Set<Direction> incompleteDirections;
+    private final long firstDay;
+    private final boolean complete;
+
+    public FlightPresence(Map<Direction, BitSet> daysByDirection, Set<Direction> incompleteDirections, long firstDay,
+                          boolean complete) {
+        this.daysByDirection = daysByDirection;
+        this.incompleteDirections = incompleteDirections;
+        this.firstDay = firstDay;
+        this.complete = complete;
+    }
+
+    /** Presence kept across warm invocations, reloaded in the background as often as the flights are refreshed. */
+    public static Optional<RevalidatingCache<FlightPresence>> cacheFromEnvironment() {
+        String tableName = System.getenv(TABLE_ENV_VAR);
+        if (tableName == null) {
+            return Optional.empty();
+        }
+        int warmupDays = Optional.ofNullable(System.getenv(WARMUP_DAYS_ENV_VAR))
+                .map(Integer::parseInt)
+                .orElse(DEFAULT_WARMUP_DAYS);
+        int revalidateMinutes = Optional.ofNullable(System.getenv(FlightDayCache.TTL_MINUTES_ENV_VAR))
+                .map(Integer::parseInt)
+                .orElse(FlightDayCache.DEFAULT_TTL_MINUTES);
+        DynamoDbClient dynamoDbClient = DynamoDbClient.create();
+        return Optional.of(new RevalidatingCache<>("flight presence",
+                () -> load(dynamoDbClient, tableName, warmupDays), null, Duration.ofMinutes(revalidateMinutes)));
+    }
+
+    public static FlightPresence load(DynamoDbClient dynamoDbClient, String tableName, int warmupDays) {
+        long firstDay = LocalDate.now().minusDays(1).toEpochDay();
+        Map<Direction, BitSet> daysByDirection = new HashMap<>();
+        Set<Direction> incompleteDirections = new HashSet<>();
+        Long trackedSince = null;
+        boolean backfilled = false;
+        Map<String, AttributeValue> exclusiveStartKey = null;
+        do {
+            ScanResponse page = dynamoDbClient.scan(ScanRequest.builder()
+                    .tableName(tableName)
+                    .exclusiveStartKey(exclusiveStartKey)
+                    .build());
+
+            for (Map<String, AttributeValue> item : page.items()) {
+                String key = item.get(DIRECTION).s();
+                if (TRACKING_ITEM.equals(key)) {
+                    trackedSince = Long.parseLong(item.get(TRACKED_SINCE).n());
+                    backfilled = item.containsKey(BACKFILLED_AT);
+                    continue;
+                }
+                int separator = key.indexOf(SEPARATOR);
+                if (separator < 0) continue;
+                Direction direction = new Direction(key.substring(0, separator), key.substring(separator + 1));
+                AttributeValue incompleteUntil = item.get(INCOMPLETE_UNTIL);
+                if (incompleteUntil != null && Long.parseLong(incompleteUntil.n()) >= firstDay) {
+                    incompleteDirections.add(direction);
+                }
+                AttributeValue days = item.get(DAYS);
+                if (days == null) continue;
+
+                BitSet bits = new BitSet();
+                for (String day : days.ns()) {
+                    long offset = Long.parseLong(day) - firstDay;
+                    if (offset >= 0) bits.set((int) offset);
+                }
+                daysByDirection.put(direction, bits);
+            }
+            exclusiveStartKey = page.hasLastEvaluatedKey() ? page.lastEvaluatedKey() : null;
+        } while (exclusiveStartKey != null);
+
+        boolean complete = trackedSince != null
+                && (backfilled || trackedSince + warmupDays <= LocalDate.now().toEpochDay());
+        return new FlightPresence(daysByDirection, incompleteDirections, firstDay, complete);
+    }
+
+    /** False only when no flight of the direction departs on any day between the bounds, same as the direction reads. */
+    public boolean mayHaveFlights(String departure, String destination, String availabilityStart,
+                                  String availabilityEnd) {
+        Direction direction = new Direction(departure, destination);
+        if (!complete || incompleteDirections.contains(direction)) {
+            return true;
+        }
+        long start;
+        long end;
+        try {
+            start = LocalDate.parse(availabilityStart.substring(0, 10)).toEpochDay() - firstDay;
+            end = LocalDate.parse(availabilityEnd.substring(0, 10)).toEpochDay() - firstDay;
+        } catch (DateTimeParseException | IndexOutOfBoundsException e) {
+            return true;
+        }
+        BitSet days = daysByDirection.get(direction);
+        if (days == null || end < 0) {
+            return false;
+        }
+        int next = days.nextSetBit((int) Math.max(0, start));
+        return next >= 0 && next <= end;
+    }
+}
@@ -0,0 +1,260 @@
+package com.aerotrack.lambda.workflow.fetch;
+
+import com.aerotrack.lambda.workflow.fetch.FlightDayCache.FlightReader;
+import com.aerotrack.model.entities.Flight;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.StandardUnit;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a second copy of a direction read that is still running after the p95 of the recent reads, and keeps whichever
+ * answers first, so a single slow DynamoDB call doesn't hold up the whole scan. Every read earns a fraction of a hedge,
+ * which caps the extra reads to {@code budgetPercent} of all of them, bursts included.
+ */
+@Slf4j
+public class HedgedReads {
+    public static final String BUDGET_PERCENT_ENV_VAR = "HEDGED_READS_BUDGET_PERCENT";
+    public static final String METRIC_NAMESPACE = "QueryLambdaMetric";
+    public static final String HEDGED_READS_METRIC = "HedgedReads";
+    public static final String HEDGE_WINS_METRIC = "HedgeWins";
+    // Latencies the threshold is taken from, and how many reads it is recomputed after
+    private static final int WINDOW = 512;
+    private static final int RECOMPUTE_EVERY = 32;
+    // No hedging until the p95 means something
+    private static final int MIN_SAMPLES = 50;
+    private static final double PERCENTILE = 0.95;
+    private static final double MAX_BURST = 10;
+
+    private final double hedgesPerRead;
+    private final CloudWatchClient cloudWatchClient;
+    private final long[] latencies = new long[WINDOW];
+    private int samples;
+    private double budget;
+    private volatile long thresholdNanos = Long.MAX_VALUE;
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong wins = new AtomicLong();
+    private final AtomicLong publishedHedges = new AtomicLong();
+    private final AtomicLong publishedWins = new AtomicLong();
+    // Only the hedges run here, at most the budget of the reads, the first copy runs on the calling thread
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    public HedgedReads(double budgetPercent, CloudWatchClient cloudWatchClient) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.hedgesPerRead = budgetPercent / 100;
+        this.cloudWatchClient = cloudWatchClient;
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "hedged-read-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hedged-read-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Reads are only hedged when the stack gives them a budget. */
+    public static Optional<HedgedReads> fromEnvironment() {
+        return Optional.ofNullable(System.getenv(BUDGET_PERCENT_ENV_VAR))
+                .map(Double::parseDouble)
+                .filter(budgetPercent -> budgetPercent > 0)
+                .map(budgetPercent -> new HedgedReads(budgetPercent, CloudWatchClient.create()));
+    }
+
+    /**
+     * Runs the read on the calling thread, and a copy of it on the hedge pool once the threshold is past and the budget
+     * allows. Whichever answers first is returned and the other one is interrupted. Only the first read is timed, a
+     * hedge answering sooner doesn't make DynamoDB any faster. A failure is only thrown when no copy is left running.
+     */
+    public List<Flight> scanFlightsBetweenDates(FlightReader reader, String departure, String destination,
+                                                String start, String end) {
+        earnBudget();
+        HedgedRead read = new HedgedRead(Thread.currentThread());
+        long threshold = thresholdNanos;
+        ScheduledFuture<?> timer = threshold == Long.MAX_VALUE ? null : scheduler.schedule(
+                () -> sendHedge(read, reader, departure, destination, start, end), threshold, TimeUnit.NANOSECONDS);
+
+        long startedAt = System.nanoTime();
+        List<Flight> flights = null;
+        RuntimeException failure = null;
+        try {
+            flights = reader.scanFlightsBetweenDates(departure, destination, start, end);
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        if (timer != null) {
+            timer.cancel(false);
+        }
+
+        synchronized (read) {
+            read.callerReading = false;
+            if (read.callerInterrupted) {
+                // Sent by the hedge that answered first, it must not outlive this read
+                Thread.interrupted();
+            }
+            // Cut short by the hedge, the read took at least this long
+            if (failure == null || read.callerInterrupted) {
+                recordLatency(System.nanoTime() - startedAt);
+            }
+            if (!read.result.isDone()) {
+                if (failure == null) {
+                    read.result.complete(flights);
+                    if (read.hedge != null) read.hedge.cancel(true);
+                } else if (read.hedge == null || read.hedgeFailed) {
+                    throw failure;
+                } else {
+                    read.callerFailed = true;
+                }
+            }
+        }
+        return join(read.result);
+    }
+
+    // State of a read and its hedge, guarded by the read itself
+    private static final class HedgedRead {
+        private final CompletableFuture<List<Flight>> result = new CompletableFuture<>();
+        private final Thread caller;
+        private boolean callerReading = true;
+        private boolean callerInterrupted;
+        private boolean callerFailed;
+        private Future<?> hedge;
+        private boolean hedgeFailed;
+
+        private HedgedRead(Thread caller) {
+            this.caller = caller;
+        }
+    }
+
+    private void sendHedge(HedgedRead read, FlightReader reader, String departure, String destination, String start,
+                           String end) {
+        synchronized (read) {
+            if (!read.callerReading || !spendBudget()) {
+                return;
+            }
+            hedges.incrementAndGet();
+            read.hedge = executor.submit(() -> hedge(read, reader, departure, destination, start, end));
+        }
+    }
+
+    private void hedge(HedgedRead read, FlightReader reader, String departure, String destination, String start,
+                       String end) {
+        try {
+            List<Flight> flights = reader.scanFlightsBetweenDates(departure, destination, start, end);
+            synchronized (read) {
+                if (!read.result.complete(flights)) {
+                    return;
+                }
+                wins.incrementAndGet();
+                if (read.callerReading) {
+                    read.callerInterrupted = true;
+                    read.caller.interrupt();
+                }
+            }
+        } catch (RuntimeException e) {
+            synchronized (read) {
+                if (read.callerFailed) {
+                    read.result.completeExceptionally(e);
+                } else {
+                    read.hedgeFailed = true;
+                }
+            }
+        }
+    }
+
+    private synchronized void earnBudget() {
+        reads.incrementAndGet();
+        budget = Math.min(MAX_BURST, budget + hedgesPerRead);
+    }
+
+    private synchronized boolean spendBudget() {
+        if (budget < 1) {
+            return false;
+        }
+        budget--;
+        return true;
+    }
+
+    private synchronized void recordLatency(long nanos) {
+        latencies[samples % WINDOW] = nanos;
+        samples++;
+        if (samples >= MIN_SAMPLES && samples % RECOMPUTE_EVERY == 0) {
+            long[] window = Arrays.copyOf(latencies, Math.min(samples, WINDOW));
+            Arrays.sort(window);
+            thresholdNanos = window[(int) (PERCENTILE * (window.length - 1))];
+        }
+    }
+
+    public long thresholdMillis() {
+        long threshold = thresholdNanos;
+        return threshold == Long.MAX_VALUE ? -1 : TimeUnit.NANOSECONDS.toMillis(threshold);
+    }
+
+    public String stats() {
+        return String.format("%d reads, %d hedged, %d hedges won, p95 %d ms", reads.get(), hedges.get(), wins.get(),
+                thresholdMillis());
+    }
+
+    // Only what happened since the last call is published. Metrics are best effort, a failing put never fails the request
+    public void publishMetrics() {
+        long hedgedTotal = hedges.get();
+        long wonTotal = wins.get();
+        long hedged = hedgedTotal - publishedHedges.getAndSet(hedgedTotal);
+        long won = wonTotal - publishedWins.getAndSet(wonTotal);
+        if (hedged == 0 && won == 0) {
+            return;
+        }
+        try {
+            Instant now = Instant.now();
+            cloudWatchClient.putMetricData(PutMetricDataRequest.builder()
+                    .namespace(METRIC_NAMESPACE)
+                    .metricData(
+                            MetricDatum.builder()
+                                    .metricName(HEDGED_READS_METRIC)
+                                    .unit(StandardUnit.COUNT)
+                                    .value((double) hedged)
+                                    .timestamp(now)
+                                    .build(),
+                            MetricDatum.builder()
+                                    .metricName(HEDGE_WINS_METRIC)
+                                    .unit(StandardUnit.COUNT)
+                                    .value((double) won)
+                                    .timestamp(now)
+                                    .build())
+                    .build());
+        } catch (Exception e) {
+            log.warn("Could not record the hedged reads: {}", e.getMessage());
+        }
+    }
+
+    private static List<Flight> join(CompletableFuture<List<Flight>> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    private static RuntimeException unwrap(Throwable cause) {
+        return cause instanceof RuntimeException runtimeException ? runtimeException : new CompletionException(cause);
+    }
+}
@@ -0,0 +1,79 @@
+package com.aerotrack.lambda.workflow.fetch;
+
+import com.aerotrack.model.entities.Flight;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Index of the flights table by departure airport, sorted by departure date time and then destination. Every outbound
+ * flight of an airport in a date range comes from a single paginated range query, instead of one read per destination.
+ */
+public class OriginFlightIndex {
+    public static final String TABLE_ENV_VAR = "FLIGHT_TABLE";
+    public static final String INDEX_ENV_VAR = "FLIGHT_ORIGIN_INDEX";
+    // Written next to every flight by the flights refresh, and added to older flights by the origin index backfill
+    public static final String ORIGIN = "origin";
+    public static final String DATE_DESTINATION = "dateDestination";
+    private static final String SEPARATOR = "#";
+    // Sorts after every destination, so flights departing exactly at the end bound are in the range too
+    private static final String AFTER_ANY_DESTINATION = "\uffff";
+    private static final TableSchema<Flight> FLIGHT_SCHEMA = TableSchema.fromBean(Flight.class);
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
+    private final String indexName;
+
+    public OriginFlightIndex(DynamoDbClient dynamoDbClient, String tableName, String indexName) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.tableName = tableName;
+        this.indexName = indexName;
+    }
+
+    /** The index is only used when the stack tells its name, destinations are read one by one otherwise. */
+    public static Optional<OriginFlightIndex> fromEnvironment() {
+        String tableName = System.getenv(TABLE_ENV_VAR);
+        String indexName = System.getenv(INDEX_ENV_VAR);
+        return tableName == null || indexName == null
+                ? Optional.empty()
+                : Optional.of(new OriginFlightIndex(DynamoDbClient.create(), tableName, indexName));
+    }
+
+    /** Flights departing from the airport between the bounds, same as the direction reads, grouped by destination. */
+    public Map<String, List<Flight>> flightsFrom(String departure, String availabilityStart, String availabilityEnd) {
+        Map<String, List<Flight>> flightsByDestination = new HashMap<>();
+        Map<String, AttributeValue> exclusiveStartKey = null;
+        do {
+            QueryResponse page = dynamoDbClient.query(QueryRequest.builder()
+                    .tableName(tableName)
+                    .indexName(indexName)
+                    .keyConditionExpression("#origin = :origin AND #dateDestination BETWEEN :start AND :end")
+                    .expressionAttributeNames(Map.of("#origin", ORIGIN, "#dateDestination", DATE_DESTINATION))
+                    .expressionAttributeValues(Map.of(
+                            ":origin", AttributeValue.fromS(departure),
+                            ":start", AttributeValue.fromS(availabilityStart),
+                            ":end", AttributeValue.fromS(availabilityEnd + SEPARATOR + AFTER_ANY_DESTINATION)))
+                    .exclusiveStartKey(exclusiveStartKey)
+                    .build());
+
+            for (Map<String, AttributeValue> item : page.items()) {
+                String dateDestination = item.get(DATE_DESTINATION).s();
+                String destination = dateDestination.substring(dateDestination.lastIndexOf(SEPARATOR) + 1);
+                flightsByDestination.computeIfAbsent(destination, key -> new ArrayList<>())
+                        .add(FLIGHT_SCHEMA.mapToItem(item));
+            }
+            exclusiveStartKey = page.hasLastEvaluatedKey() && !page.lastEvaluatedKey().isEmpty()
+                    ? page.lastEvaluatedKey()
+                    : null;
+        } while (exclusiveStartKey != null);
+        return flightsByDestination;
+    }
+}
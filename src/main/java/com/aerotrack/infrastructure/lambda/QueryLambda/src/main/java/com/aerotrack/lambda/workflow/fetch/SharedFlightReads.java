@@ -0,0 +1,77 @@
+package com.aerotrack.lambda.workflow.fetch;
+
+import com.aerotrack.lambda.workflow.fetch.FlightFetchPlan.Direction;
+import com.aerotrack.model.entities.Flight;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Direction reads shared by a batch of scans. Every scan plans the directions it needs first, then each direction is
+ * read once over the union of the date ranges planned for it, and every scan gets the flights of its own range out of
+ * that single read. Directions that weren't planned are read on their own as usual.
+ */
+public class SharedFlightReads implements DirectionReader {
+    private final ConcurrentFlightFetcher flightFetcher;
+    private final Map<Direction, ReadWindow> windows = new HashMap<>();
+    private final Map<Direction, CompletableFuture<List<Flight>>> reads = new HashMap<>();
+
+    // ISO bounds, which compare as strings
+    private record ReadWindow(String start, String end) {
+        ReadWindow union(ReadWindow other) {
+            return new ReadWindow(start.compareTo(other.start) <= 0 ? start : other.start,
+                    end.compareTo(other.end) >= 0 ? end : other.end);
+        }
+
+        // Departure within the bounds compared as strings, like the BETWEEN of a read of its own
+        boolean contains(Flight flight) {
+            String departure = flight.getDepartureDateTime();
+            return departure.compareTo(start) >= 0 && departure.compareTo(end) <= 0;
+        }
+    }
+
+    public SharedFlightReads(ConcurrentFlightFetcher flightFetcher) {
+        this.flightFetcher = flightFetcher;
+    }
+
+    public void plan(Direction direction, String availabilityStart, String availabilityEnd) {
+        if (!reads.isEmpty()) {
+            throw new IllegalStateException("The shared reads have already started");
+        }
+        windows.merge(direction, new ReadWindow(availabilityStart, availabilityEnd), ReadWindow::union);
+    }
+
+    public int plannedReads() {
+        return windows.size();
+    }
+
+    /** Starts every planned read at once, so they are all in flight before the first scan waits on any of them. */
+    public void start() {
+        windows.forEach((direction, window) -> reads.put(direction, flightFetcher.scanFlightsBetweenDates(
+                direction.departure(), direction.destination(), window.start(), window.end(), () -> false)));
+    }
+
+    @Override
+    public CompletableFuture<List<Flight>> scanFlightsBetweenDates(String departure, String destination,
+                                                                   String availabilityStart, String availabilityEnd,
+                                                                   BooleanSupplier skip, Predicate<Flight> keep) {
+        Direction direction = new Direction(departure, destination);
+        CompletableFuture<List<Flight>> read = reads.get(direction);
+        if (read == null) {
+            return flightFetcher.scanFlightsBetweenDates(departure, destination, availabilityStart, availabilityEnd,
+                    skip, keep);
+        }
+
+        // The scans planning the whole window get the read as it is, the others only the flights of their own range
+        ReadWindow requested = new ReadWindow(availabilityStart, availabilityEnd);
+        boolean wholeWindow = requested.equals(windows.get(direction));
+        return read.thenApply(flights -> flights.stream()
+                .filter(flight -> wholeWindow || requested.contains(flight))
+                .filter(flight -> keep == null || keep.test(flight))
+                .toList());
+    }
+}
@@ -0,0 +1,104 @@
+package com.aerotrack.lambda.workflow.graph;
+
+import java.util.stream.IntStream;
+
+/**
+ * Reachability of a route graph, built once per loaded graph: per origin, one bitset per hop count {@code k} of the
+ * airports reachable with at most {@code k} flights, over the ids of the graph. The hubs of a single change are read
+ * from the adjacency matrix itself.
+ */
+public class ReachabilityIndex {
+    // Itineraries with up to two changes
+    public static final int DEFAULT_MAX_HOPS = 3;
+
+    private final RouteGraph routes;
+    private final int maxHops;
+    // Indexed by origin id then hop count minus one
+    private final long[][][] reachable;
+
+    private ReachabilityIndex(RouteGraph routes, int maxHops, long[][][] reachable) {
+        this.routes = routes;
+        this.maxHops = maxHops;
+        this.reachable = reachable;
+    }
+
+    public static ReachabilityIndex of(RouteGraph routes, int maxHops) {
+        int size = routes.airports().size();
+        int words = (size + Long.SIZE - 1) / Long.SIZE;
+        long[][][] reachable = new long[size][maxHops][];
+
+        for (int origin = 0; origin < size; origin++) {
+            long[] within = new long[words];
+            for (int airport = routes.nextConnection(origin, 0); airport >= 0;
+                 airport = routes.nextConnection(origin, airport + 1)) {
+                within[airport >>> 6] |= 1L << airport;
+            }
+            within[origin >>> 6] &= ~(1L << origin);
+            reachable[origin][0] = within;
+
+            // Every hop extends the previous frontier by the connections of all the airports in it
+            for (int hops = 2; hops <= maxHops; hops++) {
+                long[] previous = reachable[origin][hops - 2];
+                long[] next = previous.clone();
+                for (int airport = nextBit(previous, 0); airport >= 0; airport = nextBit(previous, airport + 1)) {
+                    for (int connection = routes.nextConnection(airport, 0); connection >= 0;
+                         connection = routes.nextConnection(airport, connection + 1)) {
+                        next[connection >>> 6] |= 1L << connection;
+                    }
+                }
+                next[origin >>> 6] &= ~(1L << origin);
+                reachable[origin][hops - 1] = next;
+            }
+        }
+
+        return new ReachabilityIndex(routes, maxHops, reachable);
+    }
+
+    /** Whether itineraries of up to {@code flights} flights can be planned from the index alone. */
+    public boolean covers(int flights) {
+        return flights <= maxHops;
+    }
+
+    /** Fewest flights from {@code from} to {@code to}, 0 for the same airport and -1 past the indexed hops. */
+    public int hops(String from, String to) {
+        if (from.equals(to)) {
+            return 0;
+        }
+        int fromId = routes.airports().idOf(from);
+        int toId = routes.airports().idOf(to);
+        if (fromId == AirportRegistry.UNKNOWN || toId == AirportRegistry.UNKNOWN) {
+            return -1;
+        }
+        for (int hops = 1; hops <= maxHops; hops++) {
+            if ((reachable[fromId][hops - 1][toId >>> 6] & (1L << toId)) != 0) {
+                return hops;
+            }
+        }
+        return -1;
+    }
+
+    /** Ids of the airports a single change from {@code originId} to {@code destinationId} can go through. */
+    public int[] hubs(int originId, int destinationId) {
+        return IntStream.iterate(routes.nextConnection(originId, 0), hub -> hub >= 0,
+                        hub -> routes.nextConnection(originId, hub + 1))
+                .filter(hub -> hub != originId && hub != destinationId && routes.isConnected(hub, destinationId))
+                .toArray();
+    }
+
+    private static int nextBit(long[] bits, int from) {
+        int word = from >>> 6;
+        if (word >= bits.length) {
+            return -1;
+        }
+        long current = bits[word] & (-1L << from);
+        while (true) {
+            if (current != 0) {
+                return word * Long.SIZE + Long.numberOfTrailingZeros(current);
+            }
+            if (++word == bits.length) {
+                return -1;
+            }
+            current = bits[word];
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.aerotrack.lambda.workflow.graph;
+
+import com.aerotrack.model.entities.Airport;
+
+import java.util.Collection;
+
+/**
+ * Direct connections between airports as an adjacency bit matrix over the ids of an {@link AirportRegistry}: row
+ * {@code d} holds one bit per destination reachable from {@code d}, so a connection check is a single bit probe.
+ */
+public class RouteGraph {
+    private final AirportRegistry airports;
+    private final int wordsPerRow;
+    private final long[] adjacency;
+
+    private RouteGraph(AirportRegistry airports, int wordsPerRow, long[] adjacency) {
+        this.airports = airports;
+        this.wordsPerRow = wordsPerRow;
+        this.adjacency = adjacency;
+    }
+
+    public static RouteGraph of(Collection<Airport> airportList) {
+        // Connections may point to airports without an entry of their own, they get an id all the same
+        AirportRegistry airports = new AirportRegistry();
+        for (Airport airport : airportList) {
+            airports.register(airport.getAirportCode());
+            airport.getConnections().forEach(airports::register);
+        }
+
+        int wordsPerRow = (airports.size() + Long.SIZE - 1) / Long.SIZE;
+        long[] adjacency = new long[airports.size() * wordsPerRow];
+        for (Airport airport : airportList) {
+            int departure = airports.idOf(airport.getAirportCode());
+            for (String connection : airport.getConnections()) {
+                int destination = airports.idOf(connection);
+                adjacency[departure * wordsPerRow + (destination >>> 6)] |= 1L << destination;
+            }
+        }
+
+        return new RouteGraph(airports, wordsPerRow, adjacency);
+    }
+
+    public AirportRegistry airports() {
+        return airports;
+    }
+
+    public boolean isConnected(int departure, int destination) {
+        return (adjacency[departure * wordsPerRow + (destination >>> 6)] & (1L << destination)) != 0;
+    }
+
+    public boolean isConnected(String departure, String destination) {
+        int departureId = airports.idOf(departure);
+        int destinationId = airports.idOf(destination);
+        return departureId != AirportRegistry.UNKNOWN && destinationId != AirportRegistry.UNKNOWN
+                && isConnected(departureId, destinationId);
+    }
+
+    /** Next destination reachable from {@code departure} with an id of at least {@code fromId}, or -1 if none. */
+    public int nextConnection(int departure, int fromId) {
+        int rowStart = departure * wordsPerRow;
+        int word = fromId >>> 6;
+        if (word >= wordsPerRow) {
+            return -1;
+        }
+
+        long bits = adjacency[rowStart + word] & (-1L << fromId);
+        while (true) {
+            if (bits != 0) {
+                return word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == wordsPerRow) {
+                return -1;
+            }
+            bits = adjacency[rowStart + word];
+        }
+    }
+}
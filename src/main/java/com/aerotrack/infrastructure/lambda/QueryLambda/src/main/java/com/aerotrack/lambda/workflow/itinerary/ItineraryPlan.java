@@ -0,0 +1,187 @@
+package com.aerotrack.lambda.workflow.itinerary;
+
+import com.aerotrack.lambda.workflow.cache.AirportGraph;
+import com.aerotrack.lambda.workflow.fetch.FlightFetchPlan.Direction;
+import com.aerotrack.lambda.workflow.graph.AirportRegistry;
+import com.aerotrack.lambda.workflow.graph.ReachabilityIndex;
+import com.aerotrack.lambda.workflow.graph.RouteGraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Routes of the route graph that can take part in an itinerary from {@code origin} to {@code destination} with at
+ * most {@code maxChanges} changes. A route is kept only if it lies on a path short enough, counting the hops from the
+ * origin to its departure and from its arrival to the destination, so hubs that can't reach the destination in time
+ * are pruned before any flight is read.
+ */
+public class ItineraryPlan {
+    private final RouteGraph routes;
+    private final int origin;
+    private final int destination;
+    private final int maxFlights;
+    private final int[] hopsToDestination;
+    private final List<Direction> directions;
+
+    private ItineraryPlan(RouteGraph routes, int origin, int destination, int maxFlights, int[] hopsToDestination,
+                          List<Direction> directions) {
+        this.routes = routes;
+        this.origin = origin;
+        this.destination = destination;
+        this.maxFlights = maxFlights;
+        this.hopsToDestination = hopsToDestination;
+        this.directions = directions;
+    }
+
+    public static ItineraryPlan of(RouteGraph routes, String origin, String destination, int maxChanges) {
+        AirportRegistry airports = routes.airports();
+        int originId = airports.idOf(origin);
+        int destinationId = airports.idOf(destination);
+        int maxFlights = maxChanges + 1;
+        int[] hopsFromOrigin = new int[airports.size()];
+        int[] hopsToDestination = new int[airports.size()];
+        Arrays.fill(hopsFromOrigin, -1);
+        Arrays.fill(hopsToDestination, -1);
+
+        if (originId == AirportRegistry.UNKNOWN || destinationId == AirportRegistry.UNKNOWN || originId == destinationId) {
+            return new ItineraryPlan(routes, originId, destinationId, maxFlights, hopsToDestination, List.of());
+        }
+
+        // Breadth first from the origin over the outgoing routes
+        hopsFromOrigin[originId] = 0;
+        List<Integer> frontier = List.of(originId);
+        for (int hops = 1; hops <= maxFlights && !frontier.isEmpty(); hops++) {
+            List<Integer> next = new ArrayList<>();
+            for (int airport : frontier) {
+                for (int to = routes.nextConnection(airport, 0); to >= 0; to = routes.nextConnection(airport, to + 1)) {
+                    if (hopsFromOrigin[to] < 0) {
+                        hopsFromOrigin[to] = hops;
+                        next.add(to);
+                    }
+                }
+            }
+            frontier = next;
+        }
+
+        // The graph only has outgoing routes, the hops to the destination are relaxed one level at a time
+        hopsToDestination[destinationId] = 0;
+        for (int hops = 1; hops <= maxFlights; hops++) {
+            for (int airport = 0; airport < airports.size(); airport++) {
+                if (hopsToDestination[airport] >= 0) continue;
+                for (int to = routes.nextConnection(airport, 0); to >= 0; to = routes.nextConnection(airport, to + 1)) {
+                    if (hopsToDestination[to] == hops - 1) {
+                        hopsToDestination[airport] = hops;
+                        break;
+                    }
+                }
+            }
+        }
+
+        return withDirections(routes, originId, destinationId, maxFlights, hopsFromOrigin, hopsToDestination,
+                allAirports(airports.size()));
+    }
+
+    /** Plan on the graph of the airports, from its reachability index when it has one covering the changes. */
+    public static ItineraryPlan of(AirportGraph connections, String origin, String destination, int maxChanges) {
+        ReachabilityIndex index = connections.reachabilityIndex();
+        if (index.covers(maxChanges + 1)) {
+            return of(index, connections.routes(), origin, destination, maxChanges);
+        }
+        return of(connections.routes(), origin, destination, maxChanges);
+    }
+
+    /**
+     * Same plan with the hop counts read from the precomputed index instead of searched, which must have been built
+     * from {@code routes} and cover {@code maxChanges + 1} flights. With a single change only the
+     * origin and the indexed hubs can be departures.
+     */
+    public static ItineraryPlan of(ReachabilityIndex index, RouteGraph routes, String origin, String destination,
+                                   int maxChanges) {
+        AirportRegistry airports = routes.airports();
+        int originId = airports.idOf(origin);
+        int destinationId = airports.idOf(destination);
+        int maxFlights = maxChanges + 1;
+        int[] hopsFromOrigin = new int[airports.size()];
+        int[] hopsToDestination = new int[airports.size()];
+        Arrays.fill(hopsFromOrigin, -1);
+        Arrays.fill(hopsToDestination, -1);
+
+        if (originId == AirportRegistry.UNKNOWN || destinationId == AirportRegistry.UNKNOWN || originId == destinationId) {
+            return new ItineraryPlan(routes, originId, destinationId, maxFlights, hopsToDestination, List.of());
+        }
+
+        for (int airport = 0; airport < airports.size(); airport++) {
+            String code = airports.codeOf(airport);
+            int fromOrigin = index.hops(origin, code);
+            int toDestination = index.hops(code, destination);
+            hopsFromOrigin[airport] = fromOrigin <= maxFlights ? fromOrigin : -1;
+            hopsToDestination[airport] = toDestination <= maxFlights ? toDestination : -1;
+        }
+
+        int[] departures = allAirports(airports.size());
+        if (maxFlights == 2) {
+            departures = index.hubs(originId, destinationId);
+            departures = Arrays.copyOf(departures, departures.length + 1);
+            departures[departures.length - 1] = originId;
+            Arrays.sort(departures);
+        }
+
+        return withDirections(routes, originId, destinationId, maxFlights, hopsFromOrigin, hopsToDestination,
+                departures);
+    }
+
+    private static ItineraryPlan withDirections(RouteGraph routes, int originId, int destinationId, int maxFlights,
+                                                int[] hopsFromOrigin, int[] hopsToDestination, int[] departures) {
+        AirportRegistry airports = routes.airports();
+        List<Direction> directions = new ArrayList<>();
+        for (int from : departures) {
+            // Itineraries neither go through the destination nor come back to the origin
+            if (hopsFromOrigin[from] < 0 || hopsFromOrigin[from] >= maxFlights || from == destinationId) continue;
+            for (int to = routes.nextConnection(from, 0); to >= 0; to = routes.nextConnection(from, to + 1)) {
+                if (to == originId || hopsToDestination[to] < 0) continue;
+                if (hopsFromOrigin[from] + 1 + hopsToDestination[to] <= maxFlights) {
+                    directions.add(new Direction(airports.codeOf(from), airports.codeOf(to)));
+                }
+            }
+        }
+
+        return new ItineraryPlan(routes, originId, destinationId, maxFlights, hopsToDestination, directions);
+    }
+
+    private static int[] allAirports(int size) {
+        int[] airports = new int[size];
+        Arrays.setAll(airports, id -> id);
+        return airports;
+    }
+
+    /** Routes whose flights the search needs, the direct route included when there is one. */
+    public List<Direction> directions() {
+        return directions;
+    }
+
+    public boolean isReachable() {
+        return !directions.isEmpty();
+    }
+
+    public RouteGraph routes() {
+        return routes;
+    }
+
+    public int origin() {
+        return origin;
+    }
+
+    public int destination() {
+        return destination;
+    }
+
+    public int maxFlights() {
+        return maxFlights;
+    }
+
+    /** Fewest flights from the airport to the destination, -1 when it takes more than the plan allows. */
+    public int hopsToDestination(int airport) {
+        return hopsToDestination[airport];
+    }
+}
@@ -0,0 +1,151 @@
+package com.aerotrack.lambda.workflow.itinerary;
+
+import com.aerotrack.lambda.workflow.fetch.FlightFetchPlan.Direction;
+import com.aerotrack.lambda.workflow.fetch.FlightFilter;
+import com.aerotrack.lambda.workflow.graph.AirportRegistry;
+import com.aerotrack.lambda.workflow.pairing.DayBucketedFlights;
+import com.aerotrack.model.entities.Flight;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Time dependent search of the one way itineraries of an {@link ItineraryPlan}, cheapest first. Partial itineraries
+ * are expanded in price order, so once {@code maxItineraries} of them reach the destination nothing cheaper is left:
+ * the price of a partial itinerary is a lower bound of all its completions. A connection is only taken if it leaves
+ * within the layover window after the previous flight lands, and only towards airports that can still reach the
+ * destination with the flights left.
+ */
+public class ItinerarySearch {
+    private final ItineraryPlan plan;
+    private final int minLayoverMinutes;
+    private final int maxLayoverMinutes;
+    private final int lastDepartureDay;
+    private final FlightFilter filter;
+    private final Map<Integer, List<Route>> routesFrom = new HashMap<>();
+
+    private record Route(int to, DayBucketedFlights flights) { }
+
+    // A first flight cursor per route from the origin, only its cheapest not yet expanded flight is in the queue
+    private static final class FirstFlights {
+        private final Route route;
+        private final int[] byPrice;
+        private int next;
+
+        FirstFlights(Route route) {
+            this.route = route;
+            this.byPrice = route.flights().positionsByPrice();
+        }
+    }
+
+    private record Label(Label previous, DayBucketedFlights flights, int position, int airport, int departureMinute,
+                         int arrivalMinute, int priceCents, int legs, FirstFlights firstFlights) {
+
+        boolean visits(int airport) {
+            for (Label label = this; label != null; label = label.previous()) {
+                if (label.airport() == airport) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param routeFlights      flights of every route of the plan, read over the whole availability window plus the
+     *                          time the changes can take
+     * @param lastDepartureDay  last epoch day the itinerary itself can depart on
+     * @param filter            leg price and hour windows the itineraries must satisfy
+     */
+    public ItinerarySearch(ItineraryPlan plan, Map<Direction, DayBucketedFlights> routeFlights, int minLayoverMinutes,
+                           int maxLayoverMinutes, int lastDepartureDay, FlightFilter filter) {
+        this.plan = plan;
+        this.minLayoverMinutes = minLayoverMinutes;
+        this.maxLayoverMinutes = maxLayoverMinutes;
+        this.lastDepartureDay = lastDepartureDay;
+        this.filter = filter;
+
+        AirportRegistry airports = plan.routes().airports();
+        for (Direction direction : plan.directions()) {
+            DayBucketedFlights flights = routeFlights.get(direction);
+            if (flights == null || flights.size() == 0) continue;
+            routesFrom.computeIfAbsent(airports.idOf(direction.departure()), from -> new ArrayList<>())
+                    .add(new Route(airports.idOf(direction.destination()), flights));
+        }
+    }
+
+    /** Adds the {@code maxItineraries} cheapest itineraries to {@code builder}, returning how many were found. */
+    public int addCheapest(DayBucketedFlights.Builder builder, int maxItineraries) {
+        PriorityQueue<Label> queue = new PriorityQueue<>(Comparator.comparingInt(Label::priceCents));
+        for (Route route : routesFrom.getOrDefault(plan.origin(), List.of())) {
+            pushNextFirstFlight(queue, new FirstFlights(route));
+        }
+
+        int found = 0;
+        while (found < maxItineraries && !queue.isEmpty()) {
+            Label label = queue.poll();
+            // Labels come in price order, so every other one is above the leg price as well
+            if (label.priceCents() > filter.maxLegPriceCents()) break;
+            if (label.firstFlights() != null) {
+                pushNextFirstFlight(queue, label.firstFlights());
+            }
+
+            if (label.airport() == plan.destination()) {
+                if (!filter.acceptsArrival(label.arrivalMinute())) continue;
+                builder.addItinerary(flightsOf(label), label.departureMinute(), label.arrivalMinute(),
+                        label.priceCents());
+                found++;
+            } else if (label.legs() < plan.maxFlights()) {
+                expand(queue, label);
+            }
+        }
+        return found;
+    }
+
+    private void pushNextFirstFlight(PriorityQueue<Label> queue, FirstFlights firstFlights) {
+        DayBucketedFlights flights = firstFlights.route.flights();
+        while (firstFlights.next < firstFlights.byPrice.length) {
+            int position = firstFlights.byPrice[firstFlights.next++];
+            // Later flights were only read to be taken as connections
+            if (flights.departureDay(position) > lastDepartureDay) continue;
+            if (!filter.acceptsDeparture(flights.departureMinute(position))) continue;
+
+            queue.add(new Label(null, flights, position, firstFlights.route.to(), flights.departureMinute(position),
+                    flights.arrivalMinute(position), flights.priceCents(position), 1, firstFlights));
+            return;
+        }
+    }
+
+    private void expand(PriorityQueue<Label> queue, Label label) {
+        int earliest = label.arrivalMinute() + minLayoverMinutes;
+        int latest = label.arrivalMinute() + maxLayoverMinutes;
+
+        for (Route route : routesFrom.getOrDefault(label.airport(), List.of())) {
+            int hopsLeft = plan.hopsToDestination(route.to());
+            if (hopsLeft < 0 || label.legs() + 1 + hopsLeft > plan.maxFlights() || label.visits(route.to())) continue;
+
+            DayBucketedFlights flights = route.flights();
+            int end = flights.dayEnd(DayBucketedFlights.toEpochDay(latest));
+            for (int position = flights.dayStart(DayBucketedFlights.toEpochDay(earliest)); position < end; position++) {
+                int departure = flights.departureMinute(position);
+                if (departure < earliest || departure > latest) continue;
+
+                queue.add(new Label(label, flights, position, route.to(), label.departureMinute(),
+                        flights.arrivalMinute(position), label.priceCents() + flights.priceCents(position),
+                        label.legs() + 1, null));
+            }
+        }
+    }
+
+    private static List<Flight> flightsOf(Label last) {
+        List<Flight> flights = new ArrayList<>(last.legs());
+        for (Label label = last; label != null; label = label.previous()) {
+            flights.add(label.flights().flight(label.position()));
+        }
+        Collections.reverse(flights);
+        return flights;
+    }
+}
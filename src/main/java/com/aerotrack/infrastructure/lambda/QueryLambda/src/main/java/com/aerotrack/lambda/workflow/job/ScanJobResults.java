@@ -0,0 +1,106 @@
+package com.aerotrack.lambda.workflow.job;
+
+import com.aerotrack.lambda.workflow.cache.QueryResultCache;
+import com.aerotrack.lambda.workflow.pairing.TripConsumer;
+import com.aerotrack.model.entities.Trip;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Ranked trips of the asynchronous scans, stored in the query results bucket as gzipped chunks of consecutive trips.
+ * Each chunk is one result page, so serving a page reads a single small object.
+ */
+public class ScanJobResults {
+    public static final int DEFAULT_CHUNK_TRIPS = 500;
+    private static final String JOBS_PREFIX = "jobs/";
+
+    private final S3Client s3Client;
+    private final String bucketName;
+    private final ObjectMapper objectMapper;
+    private final int chunkTrips;
+
+    public ScanJobResults(S3Client s3Client, String bucketName, ObjectMapper objectMapper, int chunkTrips) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.objectMapper = objectMapper;
+        this.chunkTrips = chunkTrips;
+    }
+
+    /** Job results share the query results bucket and its lifecycle. */
+    public static Optional<ScanJobResults> fromEnvironment(ObjectMapper objectMapper) {
+        return Optional.ofNullable(System.getenv(QueryResultCache.BUCKET_ENV_VAR))
+                .map(bucketName -> new ScanJobResults(S3Client.create(), bucketName, objectMapper, DEFAULT_CHUNK_TRIPS));
+    }
+
+    public ChunkWriter writer(String jobId) {
+        return new ChunkWriter(jobId);
+    }
+
+    public List<Trip> readChunk(String jobId, int chunk) throws IOException {
+        byte[] compressed = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(chunkKey(jobId, chunk))
+                .build()).asByteArray();
+        return objectMapper.readValue(QueryResultCache.gunzip(compressed), new TypeReference<>() { });
+    }
+
+    private static String chunkKey(String jobId, int chunk) {
+        return JOBS_PREFIX + jobId + "/" + chunk + ".json.gz";
+    }
+
+    /** Buffers the ranked trips and uploads a chunk every time one is full, only one chunk is ever held in memory. */
+    public class ChunkWriter implements TripConsumer {
+        private final String jobId;
+        private final List<Trip> chunk = new ArrayList<>();
+        private int chunkCount;
+        private int tripCount;
+
+        private ChunkWriter(String jobId) {
+            this.jobId = jobId;
+        }
+
+        @Override
+        public void accept(Trip trip) throws IOException {
+            chunk.add(trip);
+            tripCount++;
+            if (chunk.size() == chunkTrips) {
+                flush();
+            }
+        }
+
+        /** Uploads the last partial chunk, an empty result still gets its empty first chunk. */
+        public void finish() throws IOException {
+            if (!chunk.isEmpty() || chunkCount == 0) {
+                flush();
+            }
+        }
+
+        public int chunkCount() {
+            return chunkCount;
+        }
+
+        public int tripCount() {
+            return tripCount;
+        }
+
+        private void flush() throws IOException {
+            s3Client.putObject(PutObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(chunkKey(jobId, chunkCount))
+                    .contentType("application/json")
+                    .contentEncoding("gzip")
+                    .build(), RequestBody.fromBytes(QueryResultCache.gzip(objectMapper.writeValueAsString(chunk))));
+            chunk.clear();
+            chunkCount++;
+        }
+    }
+}
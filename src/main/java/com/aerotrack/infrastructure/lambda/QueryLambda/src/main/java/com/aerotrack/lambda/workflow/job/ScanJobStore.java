@@ -0,0 +1,172 @@
+package com.aerotrack.lambda.workflow.job;
+
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * State of the asynchronous scans, one item per job. Items expire together with the results they point to, so the
+ * table never needs cleaning up.
+ */
+@Slf4j
+public class ScanJobStore {
+    public static final String TABLE_ENV_VAR = "SCAN_JOBS_TABLE";
+    public static final String WORKER_TIMEOUT_SECONDS_ENV_VAR = "SCAN_JOB_TIMEOUT_SECONDS";
+    public static final int DEFAULT_WORKER_TIMEOUT_SECONDS = 900;
+    // Same as the results bucket lifecycle
+    public static final Duration JOB_RETENTION = Duration.ofDays(1);
+    public static final String WORKER_TIMED_OUT_ERROR = "The scan job worker stopped before finishing it";
+
+    private static final String JOB_ID = "jobId";
+    private static final String STATUS = "status";
+    private static final String REQUEST = "request";
+    private static final String CREATED_AT = "createdAt";
+    private static final String UPDATED_AT = "updatedAt";
+    private static final String CHUNK_COUNT = "chunkCount";
+    private static final String TRIP_COUNT = "tripCount";
+    private static final String ERROR = "error";
+    private static final String EXPIRES_AT = "expiresAt";
+
+    private final DynamoDbClient dynamoDbClient;
+    private final String tableName;
+    private final Duration workerTimeout;
+
+    public enum Status { PENDING, RUNNING, SUCCEEDED, FAILED }
+
+    public record ScanJob(String jobId, Status status, String request, Instant createdAt, Instant updatedAt,
+                          int chunkCount, int tripCount, String error) { }
+
+    public ScanJobStore(DynamoDbClient dynamoDbClient, String tableName) {
+        this(dynamoDbClient, tableName, Duration.ofSeconds(DEFAULT_WORKER_TIMEOUT_SECONDS));
+    }
+
+    public ScanJobStore(DynamoDbClient dynamoDbClient, String tableName, Duration workerTimeout) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.tableName = tableName;
+        this.workerTimeout = workerTimeout;
+    }
+
+    public static Optional<ScanJobStore> fromEnvironment() {
+        int workerTimeoutSeconds = Optional.ofNullable(System.getenv(WORKER_TIMEOUT_SECONDS_ENV_VAR))
+                .map(Integer::parseInt)
+                .orElse(DEFAULT_WORKER_TIMEOUT_SECONDS);
+
+        return Optional.ofNullable(System.getenv(TABLE_ENV_VAR))
+                .map(tableName -> new ScanJobStore(DynamoDbClient.create(), tableName,
+                        Duration.ofSeconds(workerTimeoutSeconds)));
+    }
+
+    public void create(String jobId, String request) {
+        Instant now = Instant.now();
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put(JOB_ID, string(jobId));
+        item.put(STATUS, string(Status.PENDING.name()));
+        item.put(REQUEST, string(request));
+        item.put(CREATED_AT, number(now.getEpochSecond()));
+        item.put(UPDATED_AT, number(now.getEpochSecond()));
+        item.put(EXPIRES_AT, number(now.plus(JOB_RETENTION).getEpochSecond()));
+
+        dynamoDbClient.putItem(PutItemRequest.builder()
+                .tableName(tableName)
+                .item(item)
+                .build());
+    }
+
+    /** Claims a pending job, false when another invocation already did. */
+    public boolean markRunning(String jobId) {
+        try {
+            update(jobId, Status.RUNNING, Status.PENDING, "", Map.of());
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            log.warn("Job {} is not pending anymore", jobId);
+            return false;
+        }
+    }
+
+    public void markSucceeded(String jobId, int chunkCount, int tripCount) {
+        update(jobId, Status.SUCCEEDED, Status.RUNNING, ", #chunkCount = :chunkCount, #tripCount = :tripCount", Map.of(
+                CHUNK_COUNT, number(chunkCount),
+                TRIP_COUNT, number(tripCount)));
+    }
+
+    public void markFailed(String jobId, String error) {
+        update(jobId, Status.FAILED, Status.RUNNING, ", #error = :error", Map.of(
+                ERROR, string(String.valueOf(error))));
+    }
+
+    public Optional<ScanJob> get(String jobId) {
+        Map<String, AttributeValue> item = dynamoDbClient.getItem(GetItemRequest.builder()
+                .tableName(tableName)
+                .key(Map.of(JOB_ID, string(jobId)))
+                .consistentRead(true)
+                .build()).item();
+
+        if (item == null || item.isEmpty()) {
+            return Optional.empty();
+        }
+        ScanJob job = new ScanJob(
+                jobId,
+                Status.valueOf(item.get(STATUS).s()),
+                item.get(REQUEST).s(),
+                Instant.ofEpochSecond(Long.parseLong(item.get(CREATED_AT).n())),
+                Instant.ofEpochSecond(Long.parseLong(item.get(UPDATED_AT).n())),
+                item.containsKey(CHUNK_COUNT) ? Integer.parseInt(item.get(CHUNK_COUNT).n()) : 0,
+                item.containsKey(TRIP_COUNT) ? Integer.parseInt(item.get(TRIP_COUNT).n()) : 0,
+                item.containsKey(ERROR) ? item.get(ERROR).s() : null);
+
+        // A worker killed by its timeout or by running out of memory never gets to mark the job failed
+        if (job.status() == Status.RUNNING && job.updatedAt().plus(workerTimeout).isBefore(Instant.now())) {
+            log.warn("Job {} has been running since {}, longer than the worker can run", jobId, job.updatedAt());
+            try {
+                markFailed(jobId, WORKER_TIMED_OUT_ERROR);
+            } catch (ConditionalCheckFailedException e) {
+                // The worker made it after all
+                return get(jobId);
+            }
+            return Optional.of(new ScanJob(jobId, Status.FAILED, job.request(), job.createdAt(), Instant.now(),
+                    job.chunkCount(), job.tripCount(), WORKER_TIMED_OUT_ERROR));
+        }
+        return Optional.of(job);
+    }
+
+    // Status transitions are conditional, so a retried or duplicated worker invocation can't overwrite a final state
+    private void update(String jobId, Status status, Status expectedStatus, String extraUpdates,
+                        Map<String, AttributeValue> extraValues) {
+        Map<String, String> names = new HashMap<>(Map.of("#status", STATUS, "#updatedAt", UPDATED_AT));
+        Map<String, AttributeValue> values = new HashMap<>(Map.of(
+                ":status", string(status.name()),
+                ":expectedStatus", string(expectedStatus.name()),
+                ":updatedAt", number(Instant.now().getEpochSecond())));
+        extraValues.forEach((name, value) -> {
+            names.put("#" + name, name);
+            values.put(":" + name, value);
+        });
+
+        dynamoDbClient.updateItem(UpdateItemRequest.builder()
+                .tableName(tableName)
+                .key(Map.of(JOB_ID, string(jobId)))
+                .updateExpression("SET #status = :status, #updatedAt = :updatedAt" + extraUpdates)
+                .conditionExpression("#status = :expectedStatus")
+                .expressionAttributeNames(names)
+                .expressionAttributeValues(values)
+                .build());
+    }
+
+    private static AttributeValue string(String value) {
+        return AttributeValue.builder().s(value).build();
+    }
+
+    private static AttributeValue number(long value) {
+        return AttributeValue.builder().n(String.valueOf(value)).build();
+    }
+}
@@ -0,0 +1,49 @@
+package com.aerotrack.lambda.workflow.job;
+
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.lambda.LambdaClient;
+import software.amazon.awssdk.services.lambda.model.InvocationType;
+import software.amazon.awssdk.services.lambda.model.InvokeRequest;
+
+import java.util.Optional;
+import java.util.UUID;
+
+/** Records a scan as a pending job and hands it to the worker lambda without waiting for it. */
+@Slf4j
+public class ScanJobSubmitter {
+    public static final String FUNCTION_ENV_VAR = "SCAN_JOB_FUNCTION";
+
+    private final ScanJobStore scanJobStore;
+    private final LambdaClient lambdaClient;
+    private final String functionName;
+
+    public ScanJobSubmitter(ScanJobStore scanJobStore, LambdaClient lambdaClient, String functionName) {
+        this.scanJobStore = scanJobStore;
+        this.lambdaClient = lambdaClient;
+        this.functionName = functionName;
+    }
+
+    public static Optional<ScanJobSubmitter> fromEnvironment(Optional<ScanJobStore> scanJobStore) {
+        String functionName = System.getenv(FUNCTION_ENV_VAR);
+        if (functionName == null || scanJobStore.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(new ScanJobSubmitter(scanJobStore.get(), LambdaClient.create(), functionName));
+    }
+
+    public String submit(String request) {
+        String jobId = UUID.randomUUID().toString();
+        scanJobStore.create(jobId, request);
+
+        // An Event invocation is only queued, the worker runs with its own timeout and concurrency
+        lambdaClient.invoke(InvokeRequest.builder()
+                .functionName(functionName)
+                .invocationType(InvocationType.EVENT)
+                .payload(SdkBytes.fromUtf8String("{\"jobId\":\"" + jobId + "\"}"))
+                .build());
+
+        log.info("Submitted scan job {}", jobId);
+        return jobId;
+    }
+}
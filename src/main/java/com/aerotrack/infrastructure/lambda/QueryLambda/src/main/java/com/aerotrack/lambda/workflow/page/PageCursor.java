@@ -0,0 +1,30 @@
+package com.aerotrack.lambda.workflow.page;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque position in the ranking of a request. The prefix hash fingerprints the trips served before the position, so a
+ * cursor is only honored while the ranking still starts with them, however the next page gets built.
+ */
+public record PageCursor(String requestKey, int offset, long prefixHash) {
+    private static final String CURSOR_VERSION = "v2";
+
+    public String encode() {
+        String cursor = String.join(":", CURSOR_VERSION, requestKey, String.valueOf(offset), String.valueOf(prefixHash));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static PageCursor decode(String cursor) {
+        try {
+            String[] fields = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+            if (fields.length != 4 || !fields[0].equals(CURSOR_VERSION)) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            return new PageCursor(fields[1], Integer.parseInt(fields[2]), Long.parseLong(fields[3]));
+        } catch (IllegalArgumentException e) {
+            // Also covers malformed base64 and numbers
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.aerotrack.lambda.workflow.page;
+
+import com.aerotrack.lambda.workflow.QueryLambdaWorkflow;
+import com.aerotrack.lambda.workflow.cache.QueryResultCache;
+import com.aerotrack.lambda.workflow.cache.QueryResultCache.CachedResult;
+import com.aerotrack.lambda.workflow.fetch.FlightFilter;
+import com.aerotrack.lambda.workflow.pairing.TripRanking;
+import com.aerotrack.model.entities.Trip;
+import com.aerotrack.model.protocol.ScanQueryRequest;
+import com.aerotrack.model.protocol.ScanQueryResponse;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Serves a page of the ranking of a request. Pages are sliced from the cached ranked result when there is one,
+ * otherwise from a ranked prefix kept in the result cache: a page past the end of the prefix ranks at least twice as
+ * deep and replaces it, so paging through a result ranks it a logarithmic number of times rather than once per page.
+ */
+@Slf4j
+public class ScanPager {
+    private static final String PREFIX_KEY_SUFFIX = "-prefix";
+
+    private final QueryLambdaWorkflow queryLambdaWorkflow;
+    private final ObjectMapper objectMapper;
+    private final Optional<QueryResultCache> queryResultCache;
+
+    public record Page(List<Trip> trips, String nextCursor) { }
+
+    // Complete once the ranking ran out of trips before the depth it was asked for
+    private record RankedPrefix(List<Trip> trips, boolean complete) { }
+
+    public ScanPager(QueryLambdaWorkflow queryLambdaWorkflow, ObjectMapper objectMapper,
+                     Optional<QueryResultCache> queryResultCache) {
+        this.queryLambdaWorkflow = queryLambdaWorkflow;
+        this.objectMapper = objectMapper;
+        this.queryResultCache = queryResultCache;
+    }
+
+    public Page page(ScanQueryRequest request, TripRanking ranking, FlightFilter filter, String requestKey,
+                     int pageSize, String cursor, Optional<CachedResult> cachedResult) throws IOException {
+        if (pageSize <= 0 || pageSize > QueryLambdaWorkflow.TRIPS_RETURN_LIMIT) {
+            throw new IllegalArgumentException("pageSize must be between 1 and " + QueryLambdaWorkflow.TRIPS_RETURN_LIMIT);
+        }
+
+        PageCursor pageCursor = cursor == null ? null : PageCursor.decode(cursor);
+        if (pageCursor != null && !pageCursor.requestKey().equals(requestKey)) {
+            throw new IllegalArgumentException("The cursor belongs to a different request");
+        }
+        int offset = pageCursor == null ? 0 : pageCursor.offset();
+
+        RankedPrefix ranked;
+        if (cachedResult.isPresent()) {
+            ranked = new RankedPrefix(objectMapper.readValue(cachedResult.get().body(), ScanQueryResponse.class).getTrips(), true);
+        } else {
+            // One trip past the page tells whether there is a next one
+            int depth = (int) Math.min((long) offset + pageSize + 1, QueryLambdaWorkflow.TRIPS_RETURN_LIMIT);
+            ranked = rankedPrefix(request, ranking, filter, requestKey, depth);
+        }
+
+        List<Trip> trips = ranked.trips();
+        // Whatever the trips were sliced from, the ones already served must not have changed
+        if (pageCursor != null && (offset > trips.size() || prefixHash(trips, offset) != pageCursor.prefixHash())) {
+            throw new IllegalArgumentException("The cursor expired, flights have been refreshed since the first page");
+        }
+
+        int from = Math.min(offset, trips.size());
+        int to = Math.min(offset + pageSize, trips.size());
+        boolean hasNext = to < trips.size() || (!ranked.complete() && to < QueryLambdaWorkflow.TRIPS_RETURN_LIMIT);
+        String nextCursor = hasNext ? new PageCursor(requestKey, to, prefixHash(trips, to)).encode() : null;
+
+        log.info("Serving trips [{}, {}) of request {}", from, to, requestKey);
+        return new Page(trips.subList(from, to), nextCursor);
+    }
+
+    private RankedPrefix rankedPrefix(ScanQueryRequest request, TripRanking ranking, FlightFilter filter,
+                                      String requestKey, int depth) throws IOException {
+        Optional<RankedPrefix> cached = getCachedPrefix(requestKey);
+        if (cached.isPresent() && (cached.get().complete() || cached.get().trips().size() >= depth)) {
+            log.info("Serving request {} from its ranked prefix of {} trips", requestKey, cached.get().trips().size());
+            return cached.get();
+        }
+
+        // Doubling the depth keeps the total ranking work of a walk through all the pages linear in its length
+        int limit = (int) Math.min(Math.max(depth, 2L * cached.map(prefix -> prefix.trips().size()).orElse(0)),
+                QueryLambdaWorkflow.TRIPS_RETURN_LIMIT);
+        List<Trip> trips = new ArrayList<>();
+        queryLambdaWorkflow.queryAndProcessFlights(request, ranking, filter, limit, trips::add);
+
+        RankedPrefix prefix = new RankedPrefix(trips, trips.size() < limit);
+        putCachedPrefix(requestKey, prefix);
+        return prefix;
+    }
+
+    // The prefix only saves ranking work, a failing cache never fails the page
+    private Optional<RankedPrefix> getCachedPrefix(String requestKey) {
+        try {
+            Optional<CachedResult> cached = queryResultCache.flatMap(cache -> cache.get(requestKey + PREFIX_KEY_SUFFIX));
+            return cached.isEmpty() ? Optional.empty() : Optional.of(objectMapper.readValue(cached.get().body(), RankedPrefix.class));
+        } catch (Exception e) {
+            log.warn("Could not read ranked prefix of {}: {}", requestKey, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    private void putCachedPrefix(String requestKey, RankedPrefix prefix) {
+        try {
+            String body = objectMapper.writeValueAsString(prefix);
+            queryResultCache.ifPresent(cache -> cache.put(requestKey + PREFIX_KEY_SUFFIX, body));
+        } catch (Exception e) {
+            log.warn("Could not cache ranked prefix of {}: {}", requestKey, e.getMessage());
+        }
+    }
+
+    private long prefixHash(List<Trip> trips, int length) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Trip trip : trips.subList(0, length)) {
+                digest.update(objectMapper.writeValueAsBytes(trip));
+            }
+            return ByteBuffer.wrap(digest.digest()).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
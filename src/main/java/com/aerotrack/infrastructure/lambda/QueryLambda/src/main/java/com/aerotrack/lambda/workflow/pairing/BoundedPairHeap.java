@@ -0,0 +1,125 @@
+package com.aerotrack.lambda.workflow.pairing;
+
+import java.util.Arrays;
+
+/**
+ * Max-heap on price in cents that keeps only the {@code capacity} cheapest pairs offered to it. Pairs are stored as
+ * packed longs (direction, outbound position, return position) next to their price, so offering a pair allocates
+ * nothing.
+ */
+public class BoundedPairHeap {
+    private static final int POSITION_BITS = 24;
+    private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+    // Positions of a direction have to fit their 24 bits, directions the 16 bits left above them
+    public static final int MAX_POSITIONS = 1 << POSITION_BITS;
+    public static final int MAX_DIRECTIONS = 1 << (Long.SIZE - 2 * POSITION_BITS);
+
+    private final int capacity;
+    private int[] prices;
+    private long[] pairs;
+    private int size;
+
+    public BoundedPairHeap(int capacity) {
+        this.capacity = capacity;
+        int initialCapacity = Math.min(capacity, 1024);
+        this.prices = new int[initialCapacity];
+        this.pairs = new long[initialCapacity];
+    }
+
+    public static long pack(int direction, int outbound, int ret) {
+        return ((long) direction << (2 * POSITION_BITS)) | ((long) outbound << POSITION_BITS) | ret;
+    }
+
+    public static int direction(long pair) {
+        return (int) (pair >>> (2 * POSITION_BITS));
+    }
+
+    public static int outbound(long pair) {
+        return (int) ((pair >>> POSITION_BITS) & POSITION_MASK);
+    }
+
+    public static int ret(long pair) {
+        return (int) (pair & POSITION_MASK);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /** Price a pair has to beat to get in, only meaningful once the heap is full. */
+    public int worstPriceCents() {
+        return size == 0 ? Integer.MAX_VALUE : prices[0];
+    }
+
+    public void offer(int priceCents, long pair) {
+        if (size < capacity) {
+            if (size == prices.length) {
+                int grown = (int) Math.min(capacity, 2L * prices.length);
+                prices = Arrays.copyOf(prices, grown);
+                pairs = Arrays.copyOf(pairs, grown);
+            }
+            prices[size] = priceCents;
+            pairs[size] = pair;
+            siftUp(size++);
+        } else if (capacity > 0 && priceCents < prices[0]) {
+            prices[0] = priceCents;
+            pairs[0] = pair;
+            siftDown(0);
+        }
+    }
+
+    public void addAll(BoundedPairHeap other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.prices[i], other.pairs[i]);
+        }
+    }
+
+    /** Drains the heap, returning its pairs cheapest first. */
+    public long[] drainSorted() {
+        long[] sorted = new long[size];
+        for (int i = size - 1; i >= 0; i--) {
+            sorted[i] = pairs[0];
+            size--;
+            prices[0] = prices[size];
+            pairs[0] = pairs[size];
+            siftDown(0);
+        }
+        return sorted;
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (prices[parent] >= prices[index]) break;
+            swap(parent, index);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int largest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && prices[left] > prices[largest]) largest = left;
+            if (right < size && prices[right] > prices[largest]) largest = right;
+            if (largest == index) break;
+            swap(index, largest);
+            index = largest;
+        }
+    }
+
+    private void swap(int first, int second) {
+        int price = prices[first];
+        prices[first] = prices[second];
+        prices[second] = price;
+
+        long pair = pairs[first];
+        pairs[first] = pairs[second];
+        pairs[second] = pair;
+    }
+}
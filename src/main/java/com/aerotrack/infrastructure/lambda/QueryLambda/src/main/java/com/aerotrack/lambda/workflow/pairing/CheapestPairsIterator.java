@@ -0,0 +1,155 @@
+package com.aerotrack.lambda.workflow.pairing;
+
+import com.aerotrack.model.entities.Trip;
+
+import java.util.Arrays;
+
+/**
+ * Enumerates the valid (outbound, return) pairs of one direction pair in ascending total price without materializing
+ * them. Outbound flights are visited cheapest first, and an outbound flight is only expanded into its return day
+ * buckets once its lower bound (its own price plus the cheapest return) reaches the head of the frontier, so the work
+ * done is proportional to the number of pairs consumed rather than to outbound x return.
+ */
+public class CheapestPairsIterator {
+    // Position of the not yet expanded row of an outbound flight, priced at its lower bound
+    private static final int ROW_SEED = -1;
+
+    private final DayBucketedFlights outboundFlights;
+    private final DayBucketedFlights returnFlights;
+    private final int minDays;
+    private final int maxDays;
+    private final int[] outboundByPrice;
+    private final int cheapestReturn;
+    private final Frontier frontier = new Frontier();
+
+    private int currentOutbound = -1;
+    private int currentReturn = -1;
+    private int currentPriceCents;
+
+    CheapestPairsIterator(DayBucketedFlights outboundFlights, DayBucketedFlights returnFlights, int minDays, int maxDays) {
+        this.outboundFlights = outboundFlights;
+        this.returnFlights = returnFlights;
+        this.minDays = minDays;
+        this.maxDays = maxDays;
+        this.outboundByPrice = outboundFlights.positionsByPrice();
+        this.cheapestReturn = returnFlights.cheapestPriceCents();
+
+        if (outboundFlights.size() > 0 && returnFlights.size() > 0 && minDays <= maxDays) {
+            pushRowSeed(0);
+        }
+    }
+
+    /** Moves to the next cheapest valid pair, returning false once all of them have been enumerated. */
+    public boolean advance() {
+        while (frontier.size > 0) {
+            int priceCents = frontier.peekPrice();
+            long candidate = frontier.poll();
+            int row = (int) (candidate >>> 32);
+            int position = (int) candidate;
+
+            if (position == ROW_SEED) {
+                expandRow(row);
+                continue;
+            }
+
+            // Day buckets are price-sorted runs, so the next candidate of this bucket is the following position
+            int outbound = outboundByPrice[row];
+            int next = position + 1;
+            if (next < returnFlights.dayEnd(returnFlights.departureDay(position))) {
+                frontier.push(pairPrice(outbound, next), row, next);
+            }
+
+            // Same day trips are only valid if the return leaves after the outbound has landed
+            if (returnFlights.departureMinute(position) < outboundFlights.arrivalMinute(outbound)) continue;
+
+            currentOutbound = outbound;
+            currentReturn = position;
+            currentPriceCents = priceCents;
+            return true;
+        }
+        return false;
+    }
+
+    public int currentPriceCents() {
+        return currentPriceCents;
+    }
+
+    public Trip currentTrip() {
+        return RoundTripPairingEngine.toTrip(outboundFlights, currentOutbound, returnFlights, currentReturn);
+    }
+
+    private void expandRow(int row) {
+        // The next outbound flight can't produce anything cheaper than this one's lower bound, so it is seeded lazily
+        if (row + 1 < outboundByPrice.length) {
+            pushRowSeed(row + 1);
+        }
+
+        int outbound = outboundByPrice[row];
+        int arrivalDay = outboundFlights.arrivalDay(outbound);
+        for (int day = arrivalDay + minDays; day <= arrivalDay + maxDays; day++) {
+            int bucketStart = returnFlights.dayStart(day);
+            if (bucketStart < returnFlights.dayEnd(day)) {
+                frontier.push(pairPrice(outbound, bucketStart), row, bucketStart);
+            }
+        }
+    }
+
+    private void pushRowSeed(int row) {
+        frontier.push(outboundFlights.priceCents(outboundByPrice[row]) + cheapestReturn, row, ROW_SEED);
+    }
+
+    private int pairPrice(int outbound, int ret) {
+        return outboundFlights.priceCents(outbound) + returnFlights.priceCents(ret);
+    }
+
+    // Binary min-heap on price of (row, position) candidates packed in a long, to keep the frontier allocation free
+    private static final class Frontier {
+        private int[] prices = new int[64];
+        private long[] candidates = new long[64];
+        private int size;
+
+        void push(int priceCents, int row, int position) {
+            if (size == prices.length) {
+                prices = Arrays.copyOf(prices, 2 * size);
+                candidates = Arrays.copyOf(candidates, 2 * size);
+            }
+
+            int index = size++;
+            long candidate = ((long) row << 32) | (position & 0xFFFFFFFFL);
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (prices[parent] <= priceCents) break;
+                prices[index] = prices[parent];
+                candidates[index] = candidates[parent];
+                index = parent;
+            }
+            prices[index] = priceCents;
+            candidates[index] = candidate;
+        }
+
+        int peekPrice() {
+            return prices[0];
+        }
+
+        long poll() {
+            long head = candidates[0];
+            size--;
+            int price = prices[size];
+            long candidate = candidates[size];
+
+            int index = 0;
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size) break;
+                if (child + 1 < size && prices[child + 1] < prices[child]) child++;
+                if (prices[child] >= price) break;
+                prices[index] = prices[child];
+                candidates[index] = candidates[child];
+                index = child;
+            }
+            prices[index] = price;
+            candidates[index] = candidate;
+            return head;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.aerotrack.lambda.workflow.pairing;
+
+import com.aerotrack.model.entities.Flight;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Columnar store of the flights of a direction: date times are parsed once into epoch minutes, prices into cents, and
+ * the {@link Flight} beans are only referenced by index so that pairing never touches them. Flights are bucketed by
+ * departure day and ordered by price inside each bucket: flights departing on day {@code d} are at positions
+ * {@code [dayStart(d), dayEnd(d))}. An entry can also be a connecting itinerary, timed from the departure of its first
+ * flight to the arrival of its last one and priced as the sum of its flights.
+ */
+public class DayBucketedFlights {
+    public static final int MINUTES_PER_DAY = 24 * 60;
+    private static final long LOW_INT_MASK = 0xFFFFFFFFL;
+
+    private final List<Flight> source;
+    // Only set when some entry is a connecting itinerary, every direct flight is then a one flight itinerary
+    private final List<List<Flight>> itineraries;
+    private final int[] flightIndices;
+    private final int[] departureMinutes;
+    private final int[] arrivalMinutes;
+    private final int[] priceCents;
+    private final int firstDay;
+    private final int[] dayOffsets;
+    private final int cheapestPriceCents;
+    private final int fewestChanges;
+
+    private DayBucketedFlights(Builder builder, int[] order, int firstDay, int[] dayOffsets) {
+        int size = order.length;
+        this.source = builder.flights;
+        this.itineraries = builder.itineraries;
+        this.flightIndices = order;
+        this.departureMinutes = new int[size];
+        this.arrivalMinutes = new int[size];
+        this.priceCents = new int[size];
+        this.firstDay = firstDay;
+        this.dayOffsets = dayOffsets;
+
+        int cheapest = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            int original = order[i];
+            departureMinutes[i] = builder.departureMinutes[original];
+            arrivalMinutes[i] = builder.arrivalMinutes[original];
+            priceCents[i] = builder.priceCents[original];
+            cheapest = Math.min(cheapest, priceCents[i]);
+        }
+        this.cheapestPriceCents = cheapest;
+
+        int fewest = 0;
+        if (itineraries != null) {
+            fewest = Integer.MAX_VALUE;
+            for (List<Flight> itinerary : itineraries) {
+                fewest = Math.min(fewest, itinerary.size() - 1);
+            }
+        }
+        this.fewestChanges = fewest;
+    }
+
+    public static DayBucketedFlights of(List<Flight> flights) {
+        return builder().add(flights).build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int size() {
+        return flightIndices.length;
+    }
+
+    /** Only meant to build the final results, pairing works on positions. */
+    public Flight flight(int index) {
+        return source.get(flightIndices[index]);
+    }
+
+    /** Flights of the entry in travel order, a single one for a direct flight. */
+    public List<Flight> flights(int index) {
+        return itineraries == null ? List.of(flight(index)) : itineraries.get(flightIndices[index]);
+    }
+
+    public int changes(int index) {
+        return itineraries == null ? 0 : itineraries.get(flightIndices[index]).size() - 1;
+    }
+
+    public int departureMinute(int index) {
+        return departureMinutes[index];
+    }
+
+    public int arrivalMinute(int index) {
+        return arrivalMinutes[index];
+    }
+
+    public int priceCents(int index) {
+        return priceCents[index];
+    }
+
+    public int departureDay(int index) {
+        return toEpochDay(departureMinutes[index]);
+    }
+
+    public int arrivalDay(int index) {
+        return toEpochDay(arrivalMinutes[index]);
+    }
+
+    /** Positions of all the flights, cheapest first. */
+    public int[] positionsByPrice() {
+        return sortedByPrice(priceCents);
+    }
+
+    public int cheapestPriceCents() {
+        return cheapestPriceCents;
+    }
+
+    public int fewestChanges() {
+        return fewestChanges;
+    }
+
+    /** First position of the flights departing on or after {@code day}. */
+    public int dayStart(int day) {
+        int bucket = Math.max(0, Math.min(day - firstDay, dayOffsets.length - 1));
+        return dayOffsets[bucket];
+    }
+
+    /** Position right after the last flight departing on or before {@code day}. */
+    public int dayEnd(int day) {
+        return dayStart(day + 1);
+    }
+
+    public static int toEpochMinute(String isoDateTime) {
+        LocalDateTime dateTime = LocalDateTime.parse(isoDateTime, DateTimeFormatter.ISO_DATE_TIME);
+        return (int) (dateTime.toEpochSecond(ZoneOffset.UTC) / 60);
+    }
+
+    public static int toEpochDay(int epochMinute) {
+        return Math.floorDiv(epochMinute, MINUTES_PER_DAY);
+    }
+
+    public static int toCents(double price) {
+        return (int) Math.round(price * 100);
+    }
+
+    // Price in the high bits and position in the low bits, so sorting the keys sorts the positions by price
+    private static int[] sortedByPrice(int[] prices) {
+        long[] keys = new long[prices.length];
+        for (int i = 0; i < prices.length; i++) {
+            keys[i] = ((long) prices[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] positions = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            positions[i] = (int) (keys[i] & LOW_INT_MASK);
+        }
+        return positions;
+    }
+
+    /** Collects the flights of one or more directions, parsing each of them exactly once. */
+    public static class Builder {
+        private final List<Flight> flights = new ArrayList<>();
+        private List<List<Flight>> itineraries;
+        private int[] departureMinutes = new int[16];
+        private int[] arrivalMinutes = new int[16];
+        private int[] priceCents = new int[16];
+
+        public Builder add(List<Flight> directionFlights) {
+            ensureCapacity(flights.size() + directionFlights.size());
+
+            for (Flight flight : directionFlights) {
+                int index = flights.size();
+                departureMinutes[index] = toEpochMinute(flight.getDepartureDateTime());
+                arrivalMinutes[index] = toEpochMinute(flight.getArrivalDateTime());
+                priceCents[index] = toCents(flight.getPrice());
+                flights.add(flight);
+                if (itineraries != null) {
+                    itineraries.add(List.of(flight));
+                }
+            }
+            return this;
+        }
+
+        /** Adds a connecting itinerary whose timings and price are already known, as computed by the search. */
+        public Builder addItinerary(List<Flight> itinerary, int departureMinute, int arrivalMinute, int priceCents) {
+            if (itineraries == null) {
+                itineraries = new ArrayList<>(flights.size() + 16);
+                flights.forEach(flight -> itineraries.add(List.of(flight)));
+            }
+            ensureCapacity(flights.size() + 1);
+
+            int index = flights.size();
+            departureMinutes[index] = departureMinute;
+            arrivalMinutes[index] = arrivalMinute;
+            this.priceCents[index] = priceCents;
+            flights.add(itinerary.get(0));
+            itineraries.add(itinerary);
+            return this;
+        }
+
+        private void ensureCapacity(int size) {
+            if (size > departureMinutes.length) {
+                int capacity = Math.max(size, 2 * departureMinutes.length);
+                departureMinutes = Arrays.copyOf(departureMinutes, capacity);
+                arrivalMinutes = Arrays.copyOf(arrivalMinutes, capacity);
+                priceCents = Arrays.copyOf(priceCents, capacity);
+            }
+        }
+
+        public DayBucketedFlights build() {
+            int size = flights.size();
+            if (size > BoundedPairHeap.MAX_POSITIONS) {
+                throw new IllegalArgumentException(String.format("%d flights in a direction, pairs can only address %d",
+                        size, BoundedPairHeap.MAX_POSITIONS));
+            }
+            if (size == 0) {
+                return new DayBucketedFlights(this, new int[0], 0, new int[] {0});
+            }
+
+            int firstDay = Integer.MAX_VALUE;
+            int lastDay = Integer.MIN_VALUE;
+            for (int i = 0; i < size; i++) {
+                int day = toEpochDay(departureMinutes[i]);
+                firstDay = Math.min(firstDay, day);
+                lastDay = Math.max(lastDay, day);
+            }
+
+            // Counting sort by departure day over the price-sorted positions keeps every day bucket sorted by price
+            int[] dayOffsets = new int[lastDay - firstDay + 2];
+            for (int i = 0; i < size; i++) {
+                dayOffsets[toEpochDay(departureMinutes[i]) - firstDay + 1]++;
+            }
+            for (int bucket = 1; bucket < dayOffsets.length; bucket++) {
+                dayOffsets[bucket] += dayOffsets[bucket - 1];
+            }
+
+            int[] next = Arrays.copyOf(dayOffsets, dayOffsets.length);
+            int[] order = new int[size];
+            for (int original : sortedByPrice(Arrays.copyOf(priceCents, size))) {
+                order[next[toEpochDay(departureMinutes[original]) - firstDay]++] = original;
+            }
+
+            return new DayBucketedFlights(this, order, firstDay, dayOffsets);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.aerotrack.lambda.workflow.pairing;
+
+/** Outbound flights of a (departure, destination) direction together with the return flights they can pair with. */
+public record DirectionPair(DayBucketedFlights outboundFlights, DayBucketedFlights returnFlights) {
+
+    /** Upper bound of the candidate pairs a full scan of this direction pair would look at. */
+    public long candidatePairs() {
+        return (long) outboundFlights.size() * returnFlights.size();
+    }
+}
@@ -0,0 +1,63 @@
+package com.aerotrack.lambda.workflow.pairing;
+
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Scans a range of outbound flights of one direction pair into its own bounded heap. Ranges bigger than
+ * {@code SHARD_CANDIDATE_PAIRS} are split in halves and the two heaps merged when they join, so no state is shared
+ * between the workers.
+ */
+class PairingShardTask extends RecursiveTask<BoundedPairHeap> {
+    private static final long SHARD_CANDIDATE_PAIRS = 250_000;
+
+    private final RoundTripPairingEngine engine;
+    private final List<DirectionPair> directionPairs;
+    private final int direction;
+    private final int from;
+    private final int to;
+    private final int limit;
+
+    PairingShardTask(RoundTripPairingEngine engine, List<DirectionPair> directionPairs, int direction, int from, int to,
+                     int limit) {
+        this.engine = engine;
+        this.directionPairs = directionPairs;
+        this.direction = direction;
+        this.from = from;
+        this.to = to;
+        this.limit = limit;
+    }
+
+    @Override
+    protected BoundedPairHeap compute() {
+        DirectionPair directionPair = directionPairs.get(direction);
+        long candidatePairs = (long) (to - from) * directionPair.returnFlights().size();
+
+        if (candidatePairs <= SHARD_CANDIDATE_PAIRS || to - from < 2) {
+            return scan(directionPair);
+        }
+
+        int middle = (from + to) >>> 1;
+        PairingShardTask right = new PairingShardTask(engine, directionPairs, direction, middle, to, limit);
+        right.fork();
+        BoundedPairHeap heap = new PairingShardTask(engine, directionPairs, direction, from, middle, limit).compute();
+        heap.addAll(right.join());
+        return heap;
+    }
+
+    private BoundedPairHeap scan(DirectionPair directionPair) {
+        DayBucketedFlights outboundFlights = directionPair.outboundFlights();
+        DayBucketedFlights returnFlights = directionPair.returnFlights();
+        int cheapestReturn = returnFlights.cheapestPriceCents();
+        BoundedPairHeap heap = new BoundedPairHeap(limit);
+
+        engine.forEachPair(outboundFlights, returnFlights, from, to, (outbound, ret) -> {
+            int priceCents = outboundFlights.priceCents(outbound) + returnFlights.priceCents(ret);
+            if (!heap.isFull() || priceCents < heap.worstPriceCents()) {
+                heap.offer(priceCents, BoundedPairHeap.pack(direction, outbound, ret));
+            }
+        }, outbound -> heap.isFull()
+                && outboundFlights.priceCents(outbound) + cheapestReturn >= heap.worstPriceCents());
+        return heap;
+    }
+}
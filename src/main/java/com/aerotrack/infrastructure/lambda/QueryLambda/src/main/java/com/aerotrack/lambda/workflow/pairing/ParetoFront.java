@@ -0,0 +1,97 @@
+package com.aerotrack.lambda.workflow.pairing;
+
+import java.util.Arrays;
+
+/**
+ * Pairs no other pair offered so far is at least as good as on every criterion: price, trip length, distance from
+ * the preferred departure hour and changes, lower being better. Like {@link BoundedPairHeap} the pairs are packed
+ * longs with their criteria in a flat array, so offering a dominated pair allocates nothing. The members are kept in
+ * the order of their criteria, price first: only cheaper pairs can dominate an offered one and only pricier ones can
+ * be dominated by it, so both checks stop at the offered price and the front is sorted already when it is read.
+ */
+public class ParetoFront {
+    public static final int CRITERIA = 4;
+
+    private int[] criteria = new int[64 * CRITERIA];
+    private long[] pairs = new long[64];
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    /** Whether some pair of the front is at least as good as the given criteria on every one of them. */
+    public boolean dominates(int priceCents, int tripMinutes, int departureOffsetMinutes, int changes) {
+        for (int member = 0; member < size && criteria[member * CRITERIA] <= priceCents; member++) {
+            int base = member * CRITERIA;
+            if (criteria[base + 1] <= tripMinutes && criteria[base + 2] <= departureOffsetMinutes
+                    && criteria[base + 3] <= changes) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Adds the pair unless the front already dominates it, dropping the pairs it dominates in turn. */
+    public boolean offer(long pair, int priceCents, int tripMinutes, int departureOffsetMinutes, int changes) {
+        if (dominates(priceCents, tripMinutes, departureOffsetMinutes, changes)) {
+            return false;
+        }
+
+        // The members before the position come first in the order, so none of them is dominated by the new pair
+        int position = position(priceCents, tripMinutes, departureOffsetMinutes, changes);
+        int kept = position;
+        for (int member = position; member < size; member++) {
+            int base = member * CRITERIA;
+            boolean dominated = tripMinutes <= criteria[base + 1] && departureOffsetMinutes <= criteria[base + 2]
+                    && changes <= criteria[base + 3];
+            if (!dominated) {
+                System.arraycopy(criteria, base, criteria, kept * CRITERIA, CRITERIA);
+                pairs[kept++] = pairs[member];
+            }
+        }
+        size = kept;
+
+        if (size == pairs.length) {
+            pairs = Arrays.copyOf(pairs, 2 * size);
+            criteria = Arrays.copyOf(criteria, 2 * size * CRITERIA);
+        }
+        System.arraycopy(criteria, position * CRITERIA, criteria, (position + 1) * CRITERIA,
+                (size - position) * CRITERIA);
+        System.arraycopy(pairs, position, pairs, position + 1, size - position);
+        int base = position * CRITERIA;
+        criteria[base] = priceCents;
+        criteria[base + 1] = tripMinutes;
+        criteria[base + 2] = departureOffsetMinutes;
+        criteria[base + 3] = changes;
+        pairs[position] = pair;
+        size++;
+        return true;
+    }
+
+    /** The first {@code limit} pairs of the front in the order of their criteria, the first one being the price. */
+    public long[] sorted(int limit) {
+        return Arrays.copyOf(pairs, Math.min(limit, size));
+    }
+
+    // Binary search for the first member coming after the given criteria in their order
+    private int position(int priceCents, int tripMinutes, int departureOffsetMinutes, int changes) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int base = middle * CRITERIA;
+            int comparison = criteria[base] != priceCents ? Integer.compare(criteria[base], priceCents)
+                    : criteria[base + 1] != tripMinutes ? Integer.compare(criteria[base + 1], tripMinutes)
+                    : criteria[base + 2] != departureOffsetMinutes
+                            ? Integer.compare(criteria[base + 2], departureOffsetMinutes)
+                    : Integer.compare(criteria[base + 3], changes);
+            if (comparison <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
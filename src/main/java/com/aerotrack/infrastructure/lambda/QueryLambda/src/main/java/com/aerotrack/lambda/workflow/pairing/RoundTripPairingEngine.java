@@ -0,0 +1,269 @@
+package com.aerotrack.lambda.workflow.pairing;
+
+import com.aerotrack.model.entities.Trip;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntPredicate;
+
+/**
+ * Pairs outbound flights with return flights whose stay, counted in days between the outbound arrival and the return
+ * departure, is within {@code [minDays, maxDays]}. Only the return day buckets inside that window are visited, so the
+ * cost is proportional to the number of valid pairs instead of outbound x return.
+ */
+@Slf4j
+public class RoundTripPairingEngine {
+    // Below this many candidate pairs the lazy single-threaded enumeration wins over splitting the scan
+    public static final long DEFAULT_PARALLEL_THRESHOLD = 2_000_000;
+    private static final ForkJoinPool PAIRING_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final int minDays;
+    private final int maxDays;
+    private final long parallelThreshold;
+    private final int maxPriceCents;
+
+    public RoundTripPairingEngine(int minDays, int maxDays) {
+        this(minDays, maxDays, DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    public RoundTripPairingEngine(int minDays, int maxDays, long parallelThreshold) {
+        this(minDays, maxDays, parallelThreshold, Integer.MAX_VALUE);
+    }
+
+    /** {@code maxPriceCents} bounds the price of the trips, pairs above it are never offered to any ranking. */
+    public RoundTripPairingEngine(int minDays, int maxDays, long parallelThreshold, int maxPriceCents) {
+        this.minDays = minDays;
+        this.maxDays = maxDays;
+        this.parallelThreshold = parallelThreshold;
+        this.maxPriceCents = maxPriceCents;
+    }
+
+    @FunctionalInterface
+    public interface PairConsumer {
+        void accept(int outboundIndex, int returnIndex);
+    }
+
+    /** Visits the pairs of the outbound flights in {@code [from, to)}, except for the outbound flights to skip. */
+    public void forEachPair(DayBucketedFlights outboundFlights, DayBucketedFlights returnFlights, int from, int to,
+                            PairConsumer consumer, IntPredicate skip) {
+        if (minDays > maxDays || returnFlights.size() == 0) {
+            return;
+        }
+
+        int cheapestReturn = returnFlights.cheapestPriceCents();
+        for (int outbound = from; outbound < to; outbound++) {
+            int outboundPrice = outboundFlights.priceCents(outbound);
+            if (outboundPrice > maxPriceCents - cheapestReturn || skip.test(outbound)) continue;
+
+            int arrivalDay = outboundFlights.arrivalDay(outbound);
+            int arrivalMinute = outboundFlights.arrivalMinute(outbound);
+
+            int windowEnd = returnFlights.dayEnd(arrivalDay + maxDays);
+            for (int ret = returnFlights.dayStart(arrivalDay + minDays); ret < windowEnd; ret++) {
+                // Same day trips are only valid if the return leaves after the outbound has landed
+                if (returnFlights.departureMinute(ret) < arrivalMinute) continue;
+                if (outboundPrice > maxPriceCents - returnFlights.priceCents(ret)) continue;
+
+                consumer.accept(outbound, ret);
+            }
+        }
+    }
+
+    private CheapestPairsIterator cheapestPairs(DayBucketedFlights outboundFlights, DayBucketedFlights returnFlights) {
+        return new CheapestPairsIterator(outboundFlights, returnFlights, minDays, maxDays);
+    }
+
+    /**
+     * Returns the {@code limit} cheapest trips over all the direction pairs. Small requests are enumerated lazily on the
+     * calling thread, bigger ones are scanned on all the cores with one bounded heap per shard.
+     */
+    public List<Trip> cheapestTrips(List<DirectionPair> directionPairs, int limit) {
+        List<Trip> trips = new ArrayList<>();
+        try {
+            forEachCheapestTrip(directionPairs, limit, trips::add);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Adding to a list doesn't throw
+        }
+        return trips;
+    }
+
+    /** Hands the {@code limit} cheapest trips to {@code consumer} in ascending price, building each one on demand. */
+    public void forEachCheapestTrip(List<DirectionPair> directionPairs, int limit, TripConsumer consumer)
+            throws IOException {
+        long candidatePairs = directionPairs.stream().mapToLong(DirectionPair::candidatePairs).sum();
+
+        if (candidatePairs < parallelThreshold) {
+            forEachCheapestTripSequential(directionPairs, limit, consumer);
+            return;
+        }
+
+        log.info("Pairing {} candidate pairs on {} threads", candidatePairs, PAIRING_POOL.getParallelism());
+        checkPackable(directionPairs);
+        forEachCheapestTripParallel(directionPairs, limit, consumer);
+    }
+
+    /**
+     * K-way merge of the per-direction enumerations: only the head of each direction is compared, and nothing past the
+     * {@code limit} cheapest trips is ever built.
+     */
+    private void forEachCheapestTripSequential(List<DirectionPair> directionPairs, int limit, TripConsumer consumer)
+            throws IOException {
+        PriorityQueue<CheapestPairsIterator> heads = new PriorityQueue<>(
+                Comparator.comparingInt(CheapestPairsIterator::currentPriceCents));
+        for (DirectionPair directionPair : directionPairs) {
+            CheapestPairsIterator direction = cheapestPairs(directionPair.outboundFlights(), directionPair.returnFlights());
+            if (direction.advance()) {
+                heads.add(direction);
+            }
+        }
+
+        for (int trips = 0; trips < limit && !heads.isEmpty(); trips++) {
+            CheapestPairsIterator cheapest = heads.poll();
+            // Heads come in price order, nothing after the first one above the maximum price is cheap enough
+            if (cheapest.currentPriceCents() > maxPriceCents) break;
+            consumer.accept(cheapest.currentTrip());
+            if (cheapest.advance()) {
+                heads.add(cheapest);
+            }
+        }
+    }
+
+    /**
+     * Hands the {@code limit} best trips of the ranking to {@code consumer} in ranking order. The price ranking is
+     * {@link #forEachCheapestTrip}, the other ones scan every candidate pair, skipping the outbound flights whose best
+     * possible trip is already beaten: dominated by the front, or scoring no better than the worst trip kept.
+     */
+    public void forEachRankedTrip(List<DirectionPair> directionPairs, int limit, TripRanking ranking,
+                                  TripConsumer consumer) throws IOException {
+        checkPackable(directionPairs);
+        switch (ranking.mode()) {
+            case PRICE -> forEachCheapestTrip(directionPairs, limit, consumer);
+            case PARETO -> forEachParetoTrip(directionPairs, limit, ranking, consumer);
+            case WEIGHTED -> forEachBestScoredTrip(directionPairs, limit, ranking, consumer);
+        }
+    }
+
+    private void forEachParetoTrip(List<DirectionPair> directionPairs, int limit, TripRanking ranking,
+                                   TripConsumer consumer) throws IOException {
+        ParetoFront front = new ParetoFront();
+        for (int direction = 0; direction < directionPairs.size(); direction++) {
+            int packedDirection = direction;
+            DayBucketedFlights outboundFlights = directionPairs.get(direction).outboundFlights();
+            DayBucketedFlights returnFlights = directionPairs.get(direction).returnFlights();
+
+            forEachPair(outboundFlights, returnFlights, 0, outboundFlights.size(), (outbound, ret) -> front.offer(
+                    BoundedPairHeap.pack(packedDirection, outbound, ret),
+                    outboundFlights.priceCents(outbound) + returnFlights.priceCents(ret),
+                    returnFlights.arrivalMinute(ret) - outboundFlights.departureMinute(outbound),
+                    ranking.departureOffsetMinutes(outboundFlights.departureMinute(outbound)),
+                    outboundFlights.changes(outbound) + returnFlights.changes(ret)),
+                    outbound -> front.dominates(
+                            outboundFlights.priceCents(outbound) + returnFlights.cheapestPriceCents(),
+                            shortestTripMinutes(outboundFlights, outbound),
+                            ranking.departureOffsetMinutes(outboundFlights.departureMinute(outbound)),
+                            outboundFlights.changes(outbound) + returnFlights.fewestChanges()));
+        }
+
+        log.info("Pareto front of {} trips", front.size());
+        for (long pair : front.sorted(limit)) {
+            consumer.accept(toTrip(directionPairs, pair));
+        }
+    }
+
+    private void forEachBestScoredTrip(List<DirectionPair> directionPairs, int limit, TripRanking ranking,
+                                       TripConsumer consumer) throws IOException {
+        BoundedPairHeap best = new BoundedPairHeap(limit);
+        for (int direction = 0; direction < directionPairs.size(); direction++) {
+            int packedDirection = direction;
+            DayBucketedFlights outboundFlights = directionPairs.get(direction).outboundFlights();
+            DayBucketedFlights returnFlights = directionPairs.get(direction).returnFlights();
+
+            forEachPair(outboundFlights, returnFlights, 0, outboundFlights.size(), (outbound, ret) -> {
+                int scoreCents = ranking.scoreCents(
+                        outboundFlights.priceCents(outbound) + returnFlights.priceCents(ret),
+                        returnFlights.arrivalMinute(ret) - outboundFlights.departureMinute(outbound),
+                        ranking.departureOffsetMinutes(outboundFlights.departureMinute(outbound)),
+                        outboundFlights.changes(outbound) + returnFlights.changes(ret));
+                best.offer(scoreCents, BoundedPairHeap.pack(packedDirection, outbound, ret));
+            }, outbound -> best.isFull() && ranking.scoreCents(
+                    outboundFlights.priceCents(outbound) + returnFlights.cheapestPriceCents(),
+                    shortestTripMinutes(outboundFlights, outbound),
+                    ranking.departureOffsetMinutes(outboundFlights.departureMinute(outbound)),
+                    outboundFlights.changes(outbound) + returnFlights.fewestChanges()) >= best.worstPriceCents());
+        }
+
+        for (long pair : best.drainSorted()) {
+            consumer.accept(toTrip(directionPairs, pair));
+        }
+    }
+
+    // The return can't land before the outbound does, nor before the first day of the stay window
+    private int shortestTripMinutes(DayBucketedFlights outboundFlights, int outbound) {
+        int earliestReturnArrival = Math.max(outboundFlights.arrivalMinute(outbound),
+                (outboundFlights.arrivalDay(outbound) + minDays) * DayBucketedFlights.MINUTES_PER_DAY);
+        return earliestReturnArrival - outboundFlights.departureMinute(outbound);
+    }
+
+    private void forEachCheapestTripParallel(List<DirectionPair> directionPairs, int limit, TripConsumer consumer)
+            throws IOException {
+        BoundedPairHeap cheapest = PAIRING_POOL.invoke(new DirectionsTask(directionPairs, limit));
+
+        // Trip and Flight lists are only built here, for the pairs that made it into the final heap
+        for (long pair : cheapest.drainSorted()) {
+            consumer.accept(toTrip(directionPairs, pair));
+        }
+    }
+
+    // Positions are bounded when each direction is built, the direction count only once they are paired
+    private static void checkPackable(List<DirectionPair> directionPairs) {
+        if (directionPairs.size() > BoundedPairHeap.MAX_DIRECTIONS) {
+            throw new IllegalArgumentException(String.format("%d direction pairs, pairs can only address %d",
+                    directionPairs.size(), BoundedPairHeap.MAX_DIRECTIONS));
+        }
+    }
+
+    private static Trip toTrip(List<DirectionPair> directionPairs, long pair) {
+        DirectionPair directionPair = directionPairs.get(BoundedPairHeap.direction(pair));
+        return toTrip(directionPair.outboundFlights(), BoundedPairHeap.outbound(pair), directionPair.returnFlights(),
+                BoundedPairHeap.ret(pair));
+    }
+
+    static Trip toTrip(DayBucketedFlights outboundFlights, int outbound, DayBucketedFlights returnFlights, int ret) {
+        int totalPrice = (outboundFlights.priceCents(outbound) + returnFlights.priceCents(ret)) / 100;
+        return new Trip(outboundFlights.flights(outbound), returnFlights.flights(ret), totalPrice);
+    }
+
+    // Forks one shard task per direction pair and merges their heaps once they are all done
+    private class DirectionsTask extends RecursiveTask<BoundedPairHeap> {
+        private final List<DirectionPair> directionPairs;
+        private final int limit;
+
+        DirectionsTask(List<DirectionPair> directionPairs, int limit) {
+            this.directionPairs = directionPairs;
+            this.limit = limit;
+        }
+
+        @Override
+        protected BoundedPairHeap compute() {
+            List<PairingShardTask> shards = new ArrayList<>();
+            for (int direction = 0; direction < directionPairs.size(); direction++) {
+                int outboundFlights = directionPairs.get(direction).outboundFlights().size();
+                shards.add(new PairingShardTask(RoundTripPairingEngine.this, directionPairs, direction, 0,
+                        outboundFlights, limit));
+            }
+
+            BoundedPairHeap merged = new BoundedPairHeap(limit);
+            for (PairingShardTask shard : invokeAll(shards)) {
+                merged.addAll(shard.join());
+            }
+            return merged;
+        }
+    }
+}
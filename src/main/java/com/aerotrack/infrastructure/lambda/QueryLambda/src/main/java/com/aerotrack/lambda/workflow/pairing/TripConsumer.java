@@ -0,0 +1,11 @@
+package com.aerotrack.lambda.workflow.pairing;
+
+import com.aerotrack.model.entities.Trip;
+
+import java.io.IOException;
+
+/** Receives the ranked trips one at a time, cheapest first, for instance to write them out as they are produced. */
+@FunctionalInterface
+public interface TripConsumer {
+    void accept(Trip trip) throws IOException;
+}
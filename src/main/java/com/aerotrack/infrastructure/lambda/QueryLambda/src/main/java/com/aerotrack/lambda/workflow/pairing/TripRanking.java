@@ -0,0 +1,76 @@
+package com.aerotrack.lambda.workflow.pairing;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Locale;
+
+/**
+ * How the trips of a scan are ranked. Besides the price, a trip is measured on its length, from the outbound departure
+ * to the return arrival, on how far the outbound departure is from the preferred hour of the day, and on its number of
+ * changes, all of them lower is better.
+ * <ul>
+ *     <li>{@code PRICE}: cheapest first, the default.</li>
+ *     <li>{@code PARETO}: only the trips no other trip beats on every criterion, cheapest first.</li>
+ *     <li>{@code WEIGHTED}: lowest score first, the price plus every other criterion at its weight in euros per unit:
+ *     per hour of trip, per hour away from the preferred departure and per change.</li>
+ * </ul>
+ */
+public record TripRanking(Mode mode, double tripHoursWeight, double departureHourWeight, double changesWeight,
+                          int preferredDepartureHour) {
+    public static final int DEFAULT_PREFERRED_DEPARTURE_HOUR = 9;
+    public static final TripRanking PRICE = new TripRanking(Mode.PRICE, 0, 0, 0, DEFAULT_PREFERRED_DEPARTURE_HOUR);
+
+    public enum Mode { PRICE, PARETO, WEIGHTED }
+
+    public TripRanking {
+        if (tripHoursWeight < 0 || departureHourWeight < 0 || changesWeight < 0) {
+            throw new IllegalArgumentException("Ranking weights can't be negative");
+        }
+        if (preferredDepartureHour < 0 || preferredDepartureHour > 23) {
+            throw new IllegalArgumentException("preferredDepartureHour must be between 0 and 23");
+        }
+    }
+
+    /** Reads the {@code ranking} field of a scan request, the price ranking when it is missing. */
+    public static TripRanking fromJson(JsonNode ranking) {
+        if (ranking == null || ranking.isNull()) {
+            return PRICE;
+        }
+
+        Mode mode;
+        try {
+            mode = Mode.valueOf(ranking.path("mode").asText("price").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown ranking mode " + ranking.path("mode").asText());
+        }
+        JsonNode weights = ranking.path("weights");
+        return new TripRanking(mode,
+                weights.path("tripHours").asDouble(0),
+                weights.path("departureHour").asDouble(0),
+                weights.path("changes").asDouble(0),
+                ranking.path("preferredDepartureHour").asInt(DEFAULT_PREFERRED_DEPARTURE_HOUR));
+    }
+
+    /** Part of the result cache key, empty for the price ranking so its keys are unchanged. */
+    public String key() {
+        return mode == Mode.PRICE ? "" : String.join(",", mode.name(), String.valueOf(tripHoursWeight),
+                String.valueOf(departureHourWeight), String.valueOf(changesWeight),
+                String.valueOf(preferredDepartureHour));
+    }
+
+    /** Minutes between the time of day of {@code departureMinute} and the preferred hour, around midnight too. */
+    public int departureOffsetMinutes(int departureMinute) {
+        int offset = Math.abs(Math.floorMod(departureMinute, DayBucketedFlights.MINUTES_PER_DAY)
+                - preferredDepartureHour * 60);
+        return Math.min(offset, DayBucketedFlights.MINUTES_PER_DAY - offset);
+    }
+
+    /** Weighted score in cents, saturating instead of overflowing. */
+    public int scoreCents(int priceCents, int tripMinutes, int departureOffsetMinutes, int changes) {
+        double score = priceCents
+                + 100 * (tripHoursWeight * tripMinutes / 60.0
+                + departureHourWeight * departureOffsetMinutes / 60.0
+                + changesWeight * changes);
+        return (int) Math.min(Math.round(score), Integer.MAX_VALUE - 1);
+    }
+}
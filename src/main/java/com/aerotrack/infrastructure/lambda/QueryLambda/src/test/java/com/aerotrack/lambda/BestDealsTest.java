@@ -0,0 +1,59 @@
+package com.aerotrack.lambda;
+
+import com.aerotrack.lambda.workflow.deals.BestDeals;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BestDealsTest {
+
+    @Test
+    void bestDeals_OneItemPerOrigin_CheapestFutureDealPerDestination() {
+        DynamoDbClient dealsClient = mock(DynamoDbClient.class);
+        LocalDate today = LocalDate.now();
+        when(dealsClient.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder().item(Map.of(
+                BestDeals.ORIGIN, AttributeValue.fromS("TSF"),
+                BestDeals.DEALS, AttributeValue.fromM(Map.of(
+                        // The cheapest date already left, the next one stands in
+                        "VIE", AttributeValue.fromM(Map.of("WEEKEND", AttributeValue.fromL(List.of(
+                                deal(today.minusDays(1), 30), deal(today.plusDays(3), 60))))),
+                        "BGY", AttributeValue.fromM(Map.of("WEEKEND", AttributeValue.fromL(List.of(
+                                deal(today.plusDays(5), 45))))),
+                        // Every date already left, dropped even if it's the cheapest
+                        "STN", AttributeValue.fromM(Map.of("WEEKEND", AttributeValue.fromL(List.of(
+                                deal(today.minusDays(2), 20), deal(today.minusDays(1), 25)))))))))
+                .build());
+
+        Map<String, List<BestDeals.Deal>> deals = new BestDeals(dealsClient, "deals").from("TSF", 10);
+
+        verify(dealsClient, times(1)).getItem(any(GetItemRequest.class));
+        List<BestDeals.Deal> weekend = deals.get("WEEKEND");
+        assertEquals(List.of("BGY", "VIE"), weekend.stream().map(BestDeals.Deal::destination).toList());
+        assertEquals(today.plusDays(3).toString(), weekend.get(1).outboundDate());
+        assertEquals(1, new BestDeals(dealsClient, "deals").from("TSF", 1).get("WEEKEND").size());
+        assertThrows(IllegalArgumentException.class, () -> new BestDeals(dealsClient, "deals").from("TSF", 0));
+    }
+
+    private static AttributeValue deal(LocalDate outboundDate, double price) {
+        return AttributeValue.fromM(Map.of(
+                BestDeals.PRICE, AttributeValue.fromN(String.valueOf(price)),
+                BestDeals.OUTBOUND_DATE, AttributeValue.fromS(outboundDate.toString()),
+                BestDeals.RETURN_DATE, AttributeValue.fromS(outboundDate.plusDays(2).toString()),
+                BestDeals.MIN_DAYS, AttributeValue.fromN("1"),
+                BestDeals.MAX_DAYS, AttributeValue.fromN("3")));
+    }
+}
@@ -0,0 +1,66 @@
+package com.aerotrack.lambda;
+
+import com.aerotrack.lambda.workflow.fetch.HedgedReads;
+import com.aerotrack.model.entities.Flight;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class HedgedReadsTest {
+    private static final List<Flight> FLIGHTS = List.of(
+            new Flight("TSF", "VIE", "2021-01-03T09:48:17.000", "2021-01-03T10:48:17.000", "RY123", 112),
+            new Flight("TSF", "VIE", "2021-01-08T04:58:02.000", "2021-01-08T05:58:02.000", "RY123", 115));
+
+    @Test
+    void scanFlightsBetweenDates_SlowRead_HedgeAnswersFirst() {
+        CloudWatchClient cloudWatchClient = mock(CloudWatchClient.class);
+        HedgedReads hedgedReads = new HedgedReads(100, cloudWatchClient);
+        for (int i = 0; i < 64; i++) {
+            hedgedReads.scanFlightsBetweenDates((departure, destination, start, end) -> List.of(),
+                    "TSF", "VIE", "2021-01-01", "2021-01-10");
+        }
+        assertTrue(hedgedReads.thresholdMillis() >= 0);
+
+        // The first copy runs on the calling thread and stalls until the hedge sent after the p95 answers and
+        // interrupts it. The p95 of the warm-up reads is close to zero, so the hedge may even call the reader first
+        Thread testThread = Thread.currentThread();
+        AtomicInteger calls = new AtomicInteger();
+        AtomicBoolean firstInterrupted = new AtomicBoolean();
+        CountDownLatch stall = new CountDownLatch(1);
+        List<Flight> flights = hedgedReads.scanFlightsBetweenDates((departure, destination, start, end) -> {
+            calls.incrementAndGet();
+            if (Thread.currentThread() == testThread) {
+                try {
+                    stall.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    firstInterrupted.set(true);
+                    throw new CompletionException(e);
+                }
+                return List.of();
+            }
+            return FLIGHTS;
+        }, "TSF", "VIE", "2021-01-01", "2021-01-10");
+
+        assertEquals(FLIGHTS, flights);
+        assertEquals(2, calls.get());
+        assertTrue(firstInterrupted.get());
+        assertFalse(Thread.currentThread().isInterrupted());
+        hedgedReads.publishMetrics();
+        verify(cloudWatchClient, times(1)).putMetricData(any(PutMetricDataRequest.class));
+    }
+}
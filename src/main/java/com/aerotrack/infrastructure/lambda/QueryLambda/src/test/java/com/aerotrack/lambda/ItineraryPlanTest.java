@@ -0,0 +1,38 @@
+package com.aerotrack.lambda;
+
+import com.aerotrack.lambda.workflow.cache.AirportGraph;
+import com.aerotrack.lambda.workflow.itinerary.ItineraryPlan;
+import com.aerotrack.model.entities.Airport;
+import com.aerotrack.model.entities.AirportsJsonFile;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ItineraryPlanTest {
+
+    @Test
+    void itineraryPlan_ReachabilityIndex_SameRoutesAsSearch() {
+        // A chain with a shortcut and a dead end, built from the merged airports the queries use
+        AirportsJsonFile airportsFile = new AirportsJsonFile(Set.of(
+                new Airport("TSF", "Venice (Treviso)", "IT", List.of("BGY", "CIA"), "2021-01-03T10:48:17.000"),
+                new Airport("BGY", "Milan (Bergamo)", "IT", List.of("TSF", "VIE", "CIA"), "2021-01-03T10:48:17.000"),
+                new Airport("CIA", "Rome (Ciampino)", "IT", List.of("BGY", "BUD"), "2021-01-03T10:48:17.000"),
+                new Airport("BUD", "Budapest", "HU", List.of("VIE", "CIA"), "2021-01-03T10:48:17.000"),
+                new Airport("VIE", "Vienna", "AT", List.of("BGY", "BUD", "OPO"), "2021-01-03T10:48:17.000")));
+
+        AirportGraph indexed = AirportGraph.of(airportsFile);
+        assertEquals(2, indexed.reachabilityIndex().hops("TSF", "VIE"));
+        assertEquals(-1, indexed.reachabilityIndex().hops("OPO", "TSF"));
+        for (int maxChanges = 0; maxChanges <= 2; maxChanges++) {
+            for (String[] direction : List.of(new String[] {"TSF", "VIE"}, new String[] {"VIE", "TSF"},
+                    new String[] {"CIA", "VIE"}, new String[] {"TSF", "OPO"})) {
+                assertEquals(ItineraryPlan.of(indexed.routes(), direction[0], direction[1], maxChanges).directions(),
+                        ItineraryPlan.of(indexed.reachabilityIndex(), indexed.routes(), direction[0], direction[1],
+                                maxChanges).directions());
+            }
+        }
+    }
+}
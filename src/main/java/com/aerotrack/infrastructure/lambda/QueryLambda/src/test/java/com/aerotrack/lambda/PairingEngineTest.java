@@ -0,0 +1,217 @@
+package com.aerotrack.lambda;
+
+import com.aerotrack.lambda.workflow.pairing.BoundedPairHeap;
+import com.aerotrack.lambda.workflow.pairing.DayBucketedFlights;
+import com.aerotrack.lambda.workflow.pairing.DirectionPair;
+import com.aerotrack.lambda.workflow.pairing.ParetoFront;
+import com.aerotrack.lambda.workflow.pairing.RoundTripPairingEngine;
+import com.aerotrack.lambda.workflow.pairing.TripRanking;
+import com.aerotrack.model.entities.Flight;
+import com.aerotrack.model.entities.Trip;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PairingEngineTest {
+
+    private final Random random = new Random(7);
+
+    private List<Flight> getRandomFlights(int count) {
+        List<Flight> flights = new ArrayList<>();
+        LocalDateTime start = LocalDateTime.of(2024, 3, 1, 0, 0);
+        for (int i = 0; i < count; i++) {
+            LocalDateTime departure = start.plusMinutes(random.nextInt(60 * 24 * 90));
+            flights.add(new Flight("BGY", "VLC", departure.format(DateTimeFormatter.ISO_DATE_TIME),
+                    departure.plusHours(2).format(DateTimeFormatter.ISO_DATE_TIME), "FR123", 15 + random.nextInt(300)));
+        }
+        return flights;
+    }
+
+    private List<DirectionPair> getRandomDirectionPairs(int directions, int flightsPerDirection) {
+        List<DirectionPair> directionPairs = new ArrayList<>();
+        for (int i = 0; i < directions; i++) {
+            directionPairs.add(new DirectionPair(DayBucketedFlights.of(getRandomFlights(flightsPerDirection)),
+                    DayBucketedFlights.of(getRandomFlights(flightsPerDirection))));
+        }
+        return directionPairs;
+    }
+
+    private List<Integer> getPrices(List<Trip> trips) {
+        return trips.stream()
+                .map(Trip::getTotalPrice)
+                .toList();
+    }
+
+    @Test
+    void cheapestTrips_ParallelScan_SameTripsAsSequential() {
+        List<DirectionPair> directionPairs = getRandomDirectionPairs(6, 1500);
+
+        List<Trip> sequential = new RoundTripPairingEngine(2, 10, Long.MAX_VALUE).cheapestTrips(directionPairs, 5000);
+        List<Trip> parallel = new RoundTripPairingEngine(2, 10, 0).cheapestTrips(directionPairs, 5000);
+
+        assertEquals(5000, sequential.size());
+        assertEquals(getPrices(sequential), getPrices(parallel));
+    }
+
+    @Test
+    void cheapestTrips_LimitAboveValidPairs_ReturnsAllOfThem() {
+        List<DirectionPair> directionPairs = getRandomDirectionPairs(2, 40);
+
+        List<Trip> sequential = new RoundTripPairingEngine(0, 3, Long.MAX_VALUE).cheapestTrips(directionPairs, 100_000);
+        List<Trip> parallel = new RoundTripPairingEngine(0, 3, 0).cheapestTrips(directionPairs, 100_000);
+
+        assertTrue(sequential.size() < 100_000);
+        assertEquals(getPrices(sequential), getPrices(parallel));
+    }
+
+    @Test
+    void dayBucketedFlights_RandomFlights_PriceSortedDayBuckets() {
+        List<Flight> flights = getRandomFlights(2000);
+        DayBucketedFlights bucketed = DayBucketedFlights.of(flights);
+
+        assertEquals(flights.size(), bucketed.size());
+        int firstDay = bucketed.departureDay(0);
+        int lastDay = bucketed.departureDay(bucketed.size() - 1);
+        assertEquals(0, bucketed.dayStart(firstDay));
+        assertEquals(bucketed.size(), bucketed.dayEnd(lastDay));
+        for (int day = firstDay; day <= lastDay; day++) {
+            for (int position = bucketed.dayStart(day); position < bucketed.dayEnd(day); position++) {
+                assertEquals(day, bucketed.departureDay(position));
+                assertEquals(DayBucketedFlights.toCents(bucketed.flight(position).getPrice()), bucketed.priceCents(position));
+                if (position > bucketed.dayStart(day)) {
+                    assertTrue(bucketed.priceCents(position - 1) <= bucketed.priceCents(position));
+                }
+            }
+        }
+    }
+
+    @Test
+    void pack_LargestPositionsAndDirection_RoundTrips() {
+        int direction = BoundedPairHeap.MAX_DIRECTIONS - 1;
+        int position = BoundedPairHeap.MAX_POSITIONS - 1;
+
+        long pair = BoundedPairHeap.pack(direction, position, position - 1);
+
+        assertEquals(direction, BoundedPairHeap.direction(pair));
+        assertEquals(position, BoundedPairHeap.outbound(pair));
+        assertEquals(position - 1, BoundedPairHeap.ret(pair));
+    }
+
+    @Test
+    void cheapestTrips_LazyFrontier_MatchesExhaustivePairing() {
+        List<DirectionPair> directionPairs = getRandomDirectionPairs(3, 300);
+        RoundTripPairingEngine engine = new RoundTripPairingEngine(1, 5, Long.MAX_VALUE);
+
+        List<Integer> allPrices = new ArrayList<>();
+        for (DirectionPair directionPair : directionPairs) {
+            DayBucketedFlights outboundFlights = directionPair.outboundFlights();
+            DayBucketedFlights returnFlights = directionPair.returnFlights();
+            engine.forEachPair(outboundFlights, returnFlights, 0, outboundFlights.size(), (outbound, ret) ->
+                    allPrices.add((outboundFlights.priceCents(outbound) + returnFlights.priceCents(ret)) / 100),
+                    outbound -> false);
+        }
+
+        List<Trip> cheapest = engine.cheapestTrips(directionPairs, 2000);
+        assertEquals(allPrices.stream().sorted().limit(2000).toList(), getPrices(cheapest));
+    }
+
+    @Test
+    void rankedTrips_ParetoAndWeighted_MatchExhaustiveRanking() throws IOException {
+        List<DirectionPair> directionPairs = getRandomDirectionPairs(2, 150);
+        RoundTripPairingEngine engine = new RoundTripPairingEngine(2, 6);
+        TripRanking pareto = new TripRanking(TripRanking.Mode.PARETO, 0, 0, 0, 9);
+        TripRanking weighted = new TripRanking(TripRanking.Mode.WEIGHTED, 3, 10, 0, 9);
+
+        // Criteria of every valid pair: price, trip length, departure offset and changes
+        List<int[]> allCriteria = new ArrayList<>();
+        for (DirectionPair directionPair : directionPairs) {
+            DayBucketedFlights outboundFlights = directionPair.outboundFlights();
+            DayBucketedFlights returnFlights = directionPair.returnFlights();
+            engine.forEachPair(outboundFlights, returnFlights, 0, outboundFlights.size(), (outbound, ret) ->
+                    allCriteria.add(new int[] {
+                            outboundFlights.priceCents(outbound) + returnFlights.priceCents(ret),
+                            returnFlights.arrivalMinute(ret) - outboundFlights.departureMinute(outbound),
+                            pareto.departureOffsetMinutes(outboundFlights.departureMinute(outbound)), 0}),
+                    outbound -> false);
+        }
+
+        List<int[]> front = new ArrayList<>();
+        engine.forEachRankedTrip(directionPairs, 100_000, pareto, trip -> front.add(criteriaOf(trip, pareto)));
+        long nonDominated = allCriteria.stream()
+                .filter(criteria -> allCriteria.stream().noneMatch(other -> dominates(other, criteria)))
+                .map(Arrays::toString)
+                .distinct()
+                .count();
+        assertEquals(nonDominated, front.size());
+        for (int[] criteria : front) {
+            assertTrue(front.stream().noneMatch(other -> dominates(other, criteria)));
+        }
+
+        List<Integer> scores = new ArrayList<>();
+        engine.forEachRankedTrip(directionPairs, 50, weighted, trip -> {
+            int[] criteria = criteriaOf(trip, weighted);
+            scores.add(weighted.scoreCents(criteria[0], criteria[1], criteria[2], criteria[3]));
+        });
+        assertEquals(allCriteria.stream()
+                .map(criteria -> weighted.scoreCents(criteria[0], criteria[1], criteria[2], criteria[3]))
+                .sorted()
+                .limit(50)
+                .toList(), scores);
+    }
+
+    @Test
+    void paretoFront_RandomOffers_NonDominatedPairsInCriteriaOrder() {
+        // Narrow ranges, so equal prices and equal criteria come up often
+        List<int[]> offered = new ArrayList<>();
+        ParetoFront front = new ParetoFront();
+        for (int pair = 0; pair < 5000; pair++) {
+            int[] criteria = {random.nextInt(200), random.nextInt(50), random.nextInt(20), random.nextInt(3)};
+            offered.add(criteria);
+            front.offer(pair, criteria[0], criteria[1], criteria[2], criteria[3]);
+        }
+
+        List<String> expected = offered.stream()
+                .filter(criteria -> offered.stream().noneMatch(other -> dominates(other, criteria)))
+                .sorted(Arrays::compare)
+                .map(Arrays::toString)
+                .distinct()
+                .toList();
+        List<String> sorted = Arrays.stream(front.sorted(Integer.MAX_VALUE))
+                .mapToObj(pair -> Arrays.toString(offered.get((int) pair)))
+                .toList();
+        assertEquals(expected, sorted);
+        assertEquals(expected.subList(0, 3), Arrays.stream(front.sorted(3))
+                .mapToObj(pair -> Arrays.toString(offered.get((int) pair)))
+                .toList());
+    }
+
+    private static int[] criteriaOf(Trip trip, TripRanking ranking) {
+        List<Flight> flights = new ArrayList<>(trip.getOutboundFlights());
+        flights.addAll(trip.getReturnFlights());
+        int departureMinute = DayBucketedFlights.toEpochMinute(flights.get(0).getDepartureDateTime());
+        return new int[] {
+                flights.stream().mapToInt(flight -> DayBucketedFlights.toCents(flight.getPrice())).sum(),
+                DayBucketedFlights.toEpochMinute(flights.get(flights.size() - 1).getArrivalDateTime()) - departureMinute,
+                ranking.departureOffsetMinutes(departureMinute),
+                flights.size() - 2};
+    }
+
+    // Lower is better on every criterion, equal criteria don't dominate each other
+    private static boolean dominates(int[] first, int[] second) {
+        boolean better = false;
+        for (int criterion = 0; criterion < first.length; criterion++) {
+            if (first[criterion] > second[criterion]) return false;
+            better |= first[criterion] < second[criterion];
+        }
+        return better;
+    }
+}
@@ -0,0 +1,56 @@
+package com.aerotrack.lambda;
+
+import com.aerotrack.lambda.workflow.calendar.PriceCalendar;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PriceCalendarTest {
+
+    @Test
+    void priceCalendar_SixMonths_SingleRangeQuery() {
+        DynamoDbClient calendarClient = mock(DynamoDbClient.class);
+        when(calendarClient.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().items(
+                Map.of(PriceCalendar.PERIOD, AttributeValue.fromS("D#2024-05-03"),
+                        PriceCalendar.MIN_PRICE, AttributeValue.fromN("19.99"),
+                        PriceCalendar.DEPARTURE_DATE_TIME, AttributeValue.fromS("2024-05-03T06:00:00.000"),
+                        PriceCalendar.FLIGHT_NUMBER, AttributeValue.fromS("FR1")),
+                Map.of(PriceCalendar.PERIOD, AttributeValue.fromS("D#2024-07-21"),
+                        PriceCalendar.MIN_PRICE, AttributeValue.fromN("45.5"),
+                        PriceCalendar.DEPARTURE_DATE_TIME, AttributeValue.fromS("2024-07-21T18:30:00.000")))
+                .build());
+        PriceCalendar calendar = new PriceCalendar(calendarClient, "calendar");
+
+        List<PriceCalendar.CalendarEntry> days = calendar.days("TSF", "VIE", LocalDate.parse("2024-05-01"),
+                LocalDate.parse("2024-10-31"));
+
+        ArgumentCaptor<QueryRequest> query = ArgumentCaptor.forClass(QueryRequest.class);
+        verify(calendarClient, times(1)).query(query.capture());
+        assertEquals("TSF#VIE", query.getValue().expressionAttributeValues().get(":direction").s());
+        assertEquals("D#2024-05-01", query.getValue().expressionAttributeValues().get(":start").s());
+        assertEquals("D#2024-10-31", query.getValue().expressionAttributeValues().get(":end").s());
+        assertEquals(2, days.size());
+        assertEquals("2024-05-03", days.get(0).period());
+        assertEquals(19.99, days.get(0).minPrice());
+        assertNull(days.get(1).flightNumber());
+        assertThrows(IllegalArgumentException.class, () -> calendar.months("TSF", "VIE", YearMonth.parse("2024-05"),
+                YearMonth.parse("2025-07")));
+    }
+}
@@ -5,30 +5,75 @@ import com.aerotrack.model.entities.AirportsJsonFile;
 import com.aerotrack.model.entities.Flight;
 import com.aerotrack.model.entities.Trip;
 import com.aerotrack.model.protocol.ScanQueryRequest;
+import com.aerotrack.lambda.cache.RevalidatingCache;
 import com.aerotrack.lambda.workflow.QueryLambdaWorkflow;
+import com.aerotrack.lambda.workflow.admission.ScanAdmission;
+import com.aerotrack.lambda.workflow.batch.BatchScan;
+import com.aerotrack.lambda.workflow.admission.ScanCostEstimator.ScanCost;
+import com.aerotrack.lambda.workflow.cache.QueryResultCache;
+import com.aerotrack.lambda.workflow.fetch.ConcurrentFlightFetcher;
+import com.aerotrack.lambda.workflow.fetch.FlightDayCache;
+import com.aerotrack.lambda.workflow.fetch.FlightFilter;
+import com.aerotrack.lambda.workflow.fetch.FlightPresence;
+import com.aerotrack.lambda.workflow.fetch.OriginFlightIndex;
+import com.aerotrack.lambda.workflow.page.PageCursor;
+import com.aerotrack.lambda.workflow.page.ScanPager;
+import com.aerotrack.lambda.workflow.pairing.TripRanking;
 import com.aerotrack.model.protocol.ScanQueryResponse;
 import com.aerotrack.utils.clients.dynamodb.AerotrackDynamoDbClient;
 import com.aerotrack.utils.clients.s3.AerotrackS3Client;
-import org.json.JSONObject;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class QueryLambdaTest {
@@ -80,11 +125,15 @@ class QueryLambdaTest {
                 new Flight("VIE", "TSF", "2021-01-09T18:46:33.000", "2021-01-09T19:46:33.000", "RY123",73));
     }
 
+    // Directions are read concurrently, so the stubs match on the direction rather than on the call order
+    private void mockDirections(List<Flight> outboundFlights, List<Flight> returnFlights) {
+        when(mockDynamoDbClient.scanFlightsBetweenDates(eq("TSF"), eq("VIE"), any(), any())).thenReturn(outboundFlights);
+        when(mockDynamoDbClient.scanFlightsBetweenDates(eq("VIE"), eq("TSF"), any(), any())).thenReturn(returnFlights);
+    }
+
     @Test
     void queryAndProcessFlights_SuccessfulQuery_CorrectProcessing() throws IOException {
-        when(mockDynamoDbClient.scanFlightsBetweenDates(any(), any(), any(), any()))
-                .thenReturn(getGenericFirstFlights())
-                .thenReturn(getGenericSecondFlights());
+        mockDirections(getGenericFirstFlights(), getGenericSecondFlights());
 
         ScanQueryResponse results = queryLambdaWorkflow.queryAndProcessFlights(2, 6, startDateString, endDateString,
                 List.of("TSF"), List.of("VIE"), 0, Optional.empty(),
@@ -96,6 +145,42 @@ class QueryLambdaTest {
         assertEquals(4, pairs.size());
     }
 
+    @Test
+    void queryAndProcessFlights_FlightFilter_OnlyMatchingTrips() throws IOException {
+        mockDirections(getGenericFirstFlights(), getGenericSecondFlights());
+        ObjectMapper objectMapper = new ObjectMapper();
+
+        FlightFilter priceFilter = FlightFilter.fromJson(objectMapper.readTree("{\"maxTotalPrice\": 202, \"maxPrice\": 120}"));
+        List<Integer> prices = queryLambdaWorkflow.queryAndProcessFlights(2, 6, startDateString, endDateString,
+                List.of("TSF"), List.of("VIE"), 0, Optional.empty(), Optional.empty(), true, TripRanking.PRICE,
+                priceFilter).getTrips().stream().map(Trip::getTotalPrice).toList();
+        assertEquals(List.of(185, 201), prices);
+
+        // The 06:20 departure is outside the window, the return legs all leave after 10
+        FlightFilter hourFilter = FlightFilter.fromJson(objectMapper.readTree(
+                "{\"departureHours\": {\"from\": 9, \"to\": 23}, \"airlines\": [\"ry\"]}"));
+        assertEquals(2, queryLambdaWorkflow.queryAndProcessFlights(2, 6, startDateString, endDateString,
+                List.of("TSF"), List.of("VIE"), 0, Optional.empty(), Optional.empty(), true, TripRanking.PRICE,
+                hourFilter).getTrips().size());
+
+        FlightFilter airlineFilter = FlightFilter.fromJson(objectMapper.readTree("{\"airlines\": [\"FR\", \"W6\"]}"));
+        assertTrue(queryLambdaWorkflow.queryAndProcessFlights(2, 6, startDateString, endDateString,
+                List.of("TSF"), List.of("VIE"), 0, Optional.empty(), Optional.empty(), true, TripRanking.PRICE,
+                airlineFilter).getTrips().isEmpty());
+    }
+
+    @Test
+    void flightFilter_PriceOverflowingCents_Rejected() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+
+        assertThrows(IllegalArgumentException.class,
+                () -> FlightFilter.fromJson(objectMapper.readTree("{\"maxTotalPrice\": 30000000}")));
+        assertThrows(IllegalArgumentException.class,
+                () -> FlightFilter.fromJson(objectMapper.readTree("{\"maxPrice\": 4294967396}")));
+        assertThrows(IllegalArgumentException.class, () -> new FlightFilter(null, FlightFilter.MAX_PRICE + 1, null, null, null));
+        assertEquals(FlightFilter.MAX_PRICE * 100, new FlightFilter(FlightFilter.MAX_PRICE, null, null, null, null).maxTotalPriceCents());
+    }
+
     @Test
     void queryAndProcessFlights_NoMatchingFlights_ReturnsEmptyList() throws IOException {
 
@@ -121,9 +206,7 @@ class QueryLambdaTest {
 
     @Test
     void queryAndProcessFlights_HighPriceVariations_CorrectSorting() throws IOException {
-        when(mockDynamoDbClient.scanFlightsBetweenDates(any(), any(), any(), any()))
-                .thenReturn(getGenericFirstFlights())
-                .thenReturn(getGenericSecondFlights());
+        mockDirections(getGenericFirstFlights(), getGenericSecondFlights());
 
         ScanQueryRequest request = ScanQueryRequest.builder()
                 .minDays(2)
@@ -154,9 +237,7 @@ class QueryLambdaTest {
 
     @Test
     void queryAndProcessFlights_OneDayTrip() throws IOException {
-        when(mockDynamoDbClient.scanFlightsBetweenDates(any(), any(), any(), any()))
-                .thenReturn(getGenericFirstFlights())
-                .thenReturn(getGenericSecondFlights());
+        mockDirections(getGenericFirstFlights(), getGenericSecondFlights());
 
         ScanQueryRequest request = ScanQueryRequest.builder()
                 .minDays(1)
@@ -183,4 +264,572 @@ class QueryLambdaTest {
 
     }
 
+    @Test
+    void queryAndProcessFlights_StayLongerThanAMonth_CorrectDuration() throws IOException {
+        mockDirections(
+                List.of(
+                        new Flight("TSF", "VIE", "2021-01-01T06:20:43.000", "2021-01-01T07:20:43.000", "RY123", 125)),
+                List.of(
+                        new Flight("VIE", "TSF", "2021-02-05T10:16:07.000", "2021-02-05T11:16:07.000", "RY123", 89),
+                        new Flight("VIE", "TSF", "2021-01-05T18:46:33.000", "2021-01-05T19:46:33.000", "RY123", 73)));
+
+        ScanQueryResponse results = queryLambdaWorkflow.queryAndProcessFlights(30, 40, startDateString, endDateString,
+                List.of("TSF"), List.of("VIE"), 0, Optional.empty(),
+                Optional.empty(), true);
+        List<Trip> pairs = results.getTrips();
+
+        assertEquals(1, pairs.size());
+        assertEquals("2021-02-05T10:16:07.000", pairs.get(0).getReturnFlights().get(0).getDepartureDateTime());
+    }
+
+    @Test
+    void queryAndProcessFlights_ManyFlights_SameTripsAsExhaustivePairing() throws IOException {
+        Random random = new Random(42);
+        List<Flight> outboundFlights = getRandomFlights(random, "TSF", "VIE", 200);
+        List<Flight> returnFlights = getRandomFlights(random, "VIE", "TSF", 200);
+
+        mockDirections(outboundFlights, returnFlights);
+
+        ScanQueryResponse results = queryLambdaWorkflow.queryAndProcessFlights(3, 9, startDateString, endDateString,
+                List.of("TSF"), List.of("VIE"), 0, Optional.empty(),
+                Optional.empty(), true);
+
+        List<Integer> expectedPrices = new ArrayList<>();
+        for (Flight outboundFlight : outboundFlights) {
+            for (Flight returnFlight : returnFlights) {
+                long days = ChronoUnit.DAYS.between(
+                        LocalDate.parse(outboundFlight.getArrivalDateTime(), DateTimeFormatter.ISO_DATE_TIME),
+                        LocalDate.parse(returnFlight.getDepartureDateTime(), DateTimeFormatter.ISO_DATE_TIME));
+                if (days >= 3 && days <= 9) {
+                    expectedPrices.add((int) (outboundFlight.getPrice() + returnFlight.getPrice()));
+                }
+            }
+        }
+        Collections.sort(expectedPrices);
+        assertFalse(expectedPrices.isEmpty());
+
+        List<Integer> prices = results.getTrips().stream()
+                .map(Trip::getTotalPrice)
+                .toList();
+
+        assertEquals(expectedPrices, prices);
+    }
+
+    @Test
+    void queryAndProcessFlights_DirectionInBothLegs_ReadOnce() throws IOException {
+        mockDirections(getGenericFirstFlights(), getGenericSecondFlights());
+
+        ScanQueryResponse results = queryLambdaWorkflow.queryAndProcessFlights(2, 6, startDateString, endDateString,
+                List.of("TSF", "VIE"), List.of("VIE", "TSF"), 0, Optional.empty(),
+                Optional.empty(), false);
+
+        // TSF-VIE and VIE-TSF are both outbound and return legs, each of them is only read once
+        verify(mockDynamoDbClient, times(1)).scanFlightsBetweenDates(eq("TSF"), eq("VIE"), any(), any());
+        verify(mockDynamoDbClient, times(1)).scanFlightsBetweenDates(eq("VIE"), eq("TSF"), any(), any());
+        assertEquals(6, results.getTrips().size());
+    }
+
+    @Test
+    void queryAndProcessFlights_AnyDestination_OneRangeQueryPerOrigin() throws IOException {
+        DynamoDbClient indexClient = mock(DynamoDbClient.class);
+        List<Map<String, AttributeValue>> items = getGenericFirstFlights().stream()
+                .map(flight -> originIndexItem(flight, "TSF", "VIE"))
+                .toList();
+        when(indexClient.query(any(QueryRequest.class))).thenReturn(
+                QueryResponse.builder()
+                        .items(items.subList(0, 2))
+                        .lastEvaluatedKey(Map.of(OriginFlightIndex.ORIGIN, AttributeValue.fromS("TSF")))
+                        .build(),
+                QueryResponse.builder().items(items.subList(2, 3)).build());
+        when(mockDynamoDbClient.scanFlightsBetweenDates(eq("VIE"), eq("TSF"), any(), any()))
+                .thenReturn(getGenericSecondFlights());
+        QueryLambdaWorkflow indexedWorkflow = new QueryLambdaWorkflow(
+                ConcurrentFlightFetcher.builder(mockDynamoDbClient, 4)
+                        .originIndex(new OriginFlightIndex(indexClient, "flights", "flights-by-origin"))
+                        .build(),
+                QueryLambdaWorkflow.airportGraphCache(mockS3Client, null));
+
+        ScanQueryResponse results = indexedWorkflow.queryAndProcessFlights(2, 6, startDateString, endDateString,
+                List.of("TSF"), List.of(), 0, Optional.empty(), Optional.empty(), true);
+
+        // The outbound legs are the two pages of a single range query, only the return direction is read
+        verify(indexClient, times(2)).query(any(QueryRequest.class));
+        verify(mockDynamoDbClient, never()).scanFlightsBetweenDates(eq("TSF"), any(), any(), any());
+        assertEquals(4, results.getTrips().size());
+
+        // Without the index the destinations are the connections in the airports graph
+        mockDirections(getGenericFirstFlights(), getGenericSecondFlights());
+        ScanQueryResponse graphResults = queryLambdaWorkflow.queryAndProcessFlights(2, 6, startDateString,
+                endDateString, List.of("TSF"), List.of(), 0, Optional.empty(), Optional.empty(), true);
+        assertEquals(4, graphResults.getTrips().size());
+    }
+
+    private static Map<String, AttributeValue> originIndexItem(Flight flight, String departure, String destination) {
+        Map<String, AttributeValue> item = new HashMap<>(TableSchema.fromBean(Flight.class).itemToMap(flight, true));
+        item.put(OriginFlightIndex.ORIGIN, AttributeValue.fromS(departure));
+        item.put(OriginFlightIndex.DATE_DESTINATION,
+                AttributeValue.fromS(flight.getDepartureDateTime() + "#" + destination));
+        return item;
+    }
+
+    @Test
+    void queryAndProcessFlights_FlightPresence_SkipsDirectionsWithoutFlights() throws IOException {
+        long todayEpochDay = LocalDate.now().toEpochDay();
+        DynamoDbClient presenceClient = mock(DynamoDbClient.class);
+        when(presenceClient.scan(any(ScanRequest.class))).thenReturn(ScanResponse.builder().items(
+                Map.of(FlightPresence.DIRECTION, AttributeValue.fromS(FlightPresence.TRACKING_ITEM),
+                        FlightPresence.TRACKED_SINCE, AttributeValue.fromN(String.valueOf(todayEpochDay - 30))),
+                Map.of(FlightPresence.DIRECTION, AttributeValue.fromS("TSF#VIE"),
+                        FlightPresence.DAYS, AttributeValue.fromNs(List.of(String.valueOf(todayEpochDay + 3)))))
+                .build());
+        mockDirections(getGenericFirstFlights(), getGenericSecondFlights());
+        QueryLambdaWorkflow presenceWorkflow = new QueryLambdaWorkflow(
+                ConcurrentFlightFetcher.builder(mockDynamoDbClient, 4)
+                        .presence(new RevalidatingCache<>("flight presence",
+                                () -> FlightPresence.load(presenceClient, "presence", 7), null, Duration.ofMinutes(15)))
+                        .build(),
+                QueryLambdaWorkflow.airportGraphCache(mockS3Client, null));
+
+        ScanQueryResponse results = presenceWorkflow.queryAndProcessFlights(2, 6, startDateString, endDateString,
+                List.of("TSF"), List.of("VIE"), 0, Optional.empty(), Optional.empty(), true);
+
+        // No return flight is stored, so only the outbound direction goes to DynamoDB
+        verify(mockDynamoDbClient, times(1)).scanFlightsBetweenDates(eq("TSF"), eq("VIE"), any(), any());
+        verify(mockDynamoDbClient, never()).scanFlightsBetweenDates(eq("VIE"), eq("TSF"), any(), any());
+        assertTrue(results.getTrips().isEmpty());
+
+        // Until it has been kept longer than the flights live, the index can't tell a direction is empty
+        when(presenceClient.scan(any(ScanRequest.class))).thenReturn(ScanResponse.builder().items(
+                Map.of(FlightPresence.DIRECTION, AttributeValue.fromS(FlightPresence.TRACKING_ITEM),
+                        FlightPresence.TRACKED_SINCE, AttributeValue.fromN(String.valueOf(todayEpochDay))))
+                .build());
+        FlightPresence warmingUp = FlightPresence.load(presenceClient, "presence", 7);
+        assertTrue(warmingUp.mayHaveFlights("VIE", "TSF", startDateString, endDateString));
+
+        // Once the older flights have been backfilled it can, except for the directions whose days went unrecorded
+        when(presenceClient.scan(any(ScanRequest.class))).thenReturn(ScanResponse.builder().items(
+                Map.of(FlightPresence.DIRECTION, AttributeValue.fromS(FlightPresence.TRACKING_ITEM),
+                        FlightPresence.TRACKED_SINCE, AttributeValue.fromN(String.valueOf(todayEpochDay)),
+                        FlightPresence.BACKFILLED_AT, AttributeValue.fromN(String.valueOf(todayEpochDay))),
+                Map.of(FlightPresence.DIRECTION, AttributeValue.fromS("VIE#TSF"),
+                        FlightPresence.INCOMPLETE_UNTIL, AttributeValue.fromN(String.valueOf(todayEpochDay + 5))),
+                Map.of(FlightPresence.DIRECTION, AttributeValue.fromS("TSF#BGY"),
+                        FlightPresence.INCOMPLETE_UNTIL, AttributeValue.fromN(String.valueOf(todayEpochDay - 5))))
+                .build());
+        FlightPresence backfilled = FlightPresence.load(presenceClient, "presence", FlightPresence.DEFAULT_WARMUP_DAYS);
+        assertFalse(backfilled.mayHaveFlights("TSF", "VIE", startDateString, endDateString));
+        assertTrue(backfilled.mayHaveFlights("VIE", "TSF", startDateString, endDateString));
+        assertFalse(backfilled.mayHaveFlights("TSF", "BGY", startDateString, endDateString));
+    }
+
+    @Test
+    void queryAndProcessFlights_UnknownDestination_NotPaired() throws IOException {
+        mockDirections(getGenericFirstFlights(), getGenericSecondFlights());
+        when(mockDynamoDbClient.scanFlightsBetweenDates(eq("TSF"), eq("BGY"), any(), any()))
+                .thenReturn(getGenericFirstFlights());
+
+        ScanQueryResponse results = queryLambdaWorkflow.queryAndProcessFlights(2, 6, startDateString, endDateString,
+                List.of("TSF"), List.of("VIE", "BGY"), 0, Optional.empty(),
+                Optional.empty(), true);
+
+        // BGY is not in the airports graph, so nothing is paired for it even if the read went out before the graph
+        assertEquals(4, results.getTrips().size());
+    }
+
+    @Test
+    void queryAndProcessFlights_OneChange_LayoverWindowHonored() throws IOException {
+        AerotrackS3Client hubS3Client = mock(AerotrackS3Client.class);
+        when(hubS3Client.getMergedAirports()).thenReturn(new AirportsJsonFile(Set.of(
+                new Airport("TSF", "Venice (Treviso)", "IT", List.of("BGY"), "2021-01-03T10:48:17.000"),
+                new Airport("BGY", "Milan (Bergamo)", "IT", List.of("TSF", "VIE"), "2021-01-03T10:48:17.000"),
+                new Airport("VIE", "Vienna", "AT", List.of("BGY"), "2021-01-03T10:48:17.000"))));
+        QueryLambdaWorkflow hubWorkflow = new QueryLambdaWorkflow(mockDynamoDbClient, hubS3Client);
+
+        when(mockDynamoDbClient.scanFlightsBetweenDates(eq("TSF"), eq("BGY"), any(), any())).thenReturn(List.of(
+                new Flight("TSF", "BGY", "2021-01-03T08:00:00.000", "2021-01-03T09:00:00.000", "RY1", 20)));
+        when(mockDynamoDbClient.scanFlightsBetweenDates(eq("BGY"), eq("VIE"), any(), any())).thenReturn(List.of(
+                // Too short and too long layovers, only the flight in between connects
+                new Flight("BGY", "VIE", "2021-01-03T09:30:00.000", "2021-01-03T11:00:00.000", "RY2", 5),
+                new Flight("BGY", "VIE", "2021-01-03T12:00:00.000", "2021-01-03T13:30:00.000", "RY3", 30),
+                new Flight("BGY", "VIE", "2021-01-04T12:00:00.000", "2021-01-04T13:30:00.000", "RY4", 10)));
+        when(mockDynamoDbClient.scanFlightsBetweenDates(eq("VIE"), eq("BGY"), any(), any())).thenReturn(List.of(
+                new Flight("VIE", "BGY", "2021-01-06T10:00:00.000", "2021-01-06T11:30:00.000", "RY5", 25)));
+        when(mockDynamoDbClient.scanFlightsBetweenDates(eq("BGY"), eq("TSF"), any(), any())).thenReturn(List.of(
+                new Flight("BGY", "TSF", "2021-01-06T15:00:00.000", "2021-01-06T16:00:00.000", "RY6", 15)));
+
+        assertTrue(hubWorkflow.queryAndProcessFlights(2, 6, startDateString, endDateString, List.of("TSF"),
+                List.of("VIE"), 0, Optional.empty(), Optional.empty(), true).getTrips().isEmpty());
+
+        List<Trip> trips = hubWorkflow.queryAndProcessFlights(2, 6, startDateString, endDateString, List.of("TSF"),
+                List.of("VIE"), 1, Optional.empty(), Optional.empty(), true).getTrips();
+
+        assertEquals(1, trips.size());
+        assertEquals(90, trips.get(0).getTotalPrice());
+        assertEquals(List.of("2021-01-03T08:00:00.000", "2021-01-03T12:00:00.000"), trips.get(0).getOutboundFlights()
+                .stream().map(Flight::getDepartureDateTime).toList());
+        assertEquals(2, trips.get(0).getReturnFlights().size());
+
+        // A longer allowed layover also takes the next day connection, which is cheaper
+        List<Trip> overnightTrips = hubWorkflow.queryAndProcessFlights(2, 6, startDateString, endDateString,
+                List.of("TSF"), List.of("VIE"), 1, Optional.of(2), Optional.of(30), true).getTrips();
+        assertEquals(2, overnightTrips.size());
+        assertEquals(70, overnightTrips.get(0).getTotalPrice());
+    }
+
+    @Test
+    void estimateCost_ReadFlights_StatisticsRefineTheEstimate() throws IOException {
+        mockDirections(getGenericFirstFlights(), getGenericSecondFlights());
+        ScanQueryRequest request = ScanQueryRequest.builder()
+                .minDays(2)
+                .maxDays(6)
+                .availabilityStart(startDateString)
+                .availabilityEnd(endDateString)
+                .departureAirports(List.of("TSF"))
+                .destinationAirports(List.of("VIE", "BGY"))
+                .build();
+
+        // BGY is not in the airports graph, only TSF-VIE and VIE-TSF would be read, with the default flights per day
+        ScanCost unknownCost = queryLambdaWorkflow.estimateCost(request);
+        assertEquals(2, unknownCost.directionReads());
+        assertEquals(2 * 11 * 3, unknownCost.expectedFlights());
+
+        queryLambdaWorkflow.queryAndProcessFlights(2, 6, startDateString, endDateString,
+                List.of("TSF"), List.of("VIE"), 0, Optional.empty(), Optional.empty(), true);
+
+        // Both directions returned 3 flights over the 11 days read
+        ScanCost learnedCost = queryLambdaWorkflow.estimateCost(request);
+        assertEquals(2, learnedCost.directionReads());
+        assertEquals(6, learnedCost.expectedFlights());
+        assertTrue(learnedCost.candidatePairs() < unknownCost.candidatePairs());
+
+        assertTrue(new ScanAdmission(2, null).admits(learnedCost));
+        assertFalse(new ScanAdmission(1, null).admits(learnedCost));
+        assertEquals("none", ScanAdmission.apiKeyDimension(null));
+        assertEquals(12, ScanAdmission.apiKeyDimension("secret-api-key").length());
+        assertFalse(ScanAdmission.apiKeyDimension("secret-api-key").contains("secret"));
+    }
+
+    @Test
+    void queryAndProcessBatch_SharedReads_SameTripsAsSingleScans() throws IOException {
+        mockDirections(getGenericFirstFlights(), getGenericSecondFlights());
+        ScanQueryRequest outboundRequest = ScanQueryRequest.builder()
+                .minDays(2)
+                .maxDays(6)
+                .availabilityStart(startDateString)
+                .availabilityEnd(endDateString)
+                .departureAirports(List.of("TSF"))
+                .destinationAirports(List.of("VIE"))
+                .build();
+        ScanQueryRequest returnRequest = ScanQueryRequest.builder()
+                .minDays(1)
+                .maxDays(4)
+                .availabilityStart(startDateString)
+                .availabilityEnd(endDateString)
+                .departureAirports(List.of("VIE"))
+                .destinationAirports(List.of("TSF", "BGY"))
+                .build();
+        FlightFilter filter = new FlightFilter(null, 120, null, null, null);
+
+        List<ScanQueryResponse> responses = queryLambdaWorkflow.queryAndProcessBatch(List.of(
+                new BatchScan(outboundRequest, TripRanking.PRICE, FlightFilter.NONE),
+                new BatchScan(returnRequest, TripRanking.PRICE, filter)));
+
+        // Both scans need TSF-VIE and VIE-TSF, each of them is read once for the whole batch
+        verify(mockDynamoDbClient, times(1)).scanFlightsBetweenDates(eq("TSF"), eq("VIE"), any(), any());
+        verify(mockDynamoDbClient, times(1)).scanFlightsBetweenDates(eq("VIE"), eq("TSF"), any(), any());
+
+        List<Integer> outboundPrices = new ArrayList<>();
+        queryLambdaWorkflow.queryAndProcessFlights(outboundRequest, TripRanking.PRICE, FlightFilter.NONE,
+                QueryLambdaWorkflow.TRIPS_RETURN_LIMIT, trip -> outboundPrices.add(trip.getTotalPrice()));
+        List<Integer> returnPrices = new ArrayList<>();
+        queryLambdaWorkflow.queryAndProcessFlights(returnRequest, TripRanking.PRICE, filter,
+                QueryLambdaWorkflow.TRIPS_RETURN_LIMIT, trip -> returnPrices.add(trip.getTotalPrice()));
+
+        assertEquals(2, responses.size());
+        assertFalse(outboundPrices.isEmpty());
+        assertFalse(returnPrices.isEmpty());
+        assertEquals(outboundPrices, responses.get(0).getTrips().stream().map(Trip::getTotalPrice).toList());
+        assertEquals(returnPrices, responses.get(1).getTrips().stream().map(Trip::getTotalPrice).toList());
+    }
+
+    @Test
+    void queryAndProcessBatch_UnequalWindowsWithTimes_SameTripsAsSingleScans() throws IOException {
+        // Reads of their own return the flights between the bounds compared as strings
+        Map<String, List<Flight>> flightsByDirection = Map.of(
+                "TSF-VIE", getGenericFirstFlights(),
+                "VIE-TSF", getGenericSecondFlights());
+        flightsByDirection.forEach((direction, flights) -> when(mockDynamoDbClient.scanFlightsBetweenDates(
+                eq(direction.substring(0, 3)), eq(direction.substring(4)), any(), any()))
+                .thenAnswer(invocation -> flights.stream()
+                        .filter(flight -> flight.getDepartureDateTime().compareTo(invocation.getArgument(2)) >= 0
+                                && flight.getDepartureDateTime().compareTo(invocation.getArgument(3)) <= 0)
+                        .toList()));
+        ScanQueryRequest wideRequest = ScanQueryRequest.builder()
+                .minDays(1)
+                .maxDays(8)
+                .availabilityStart("2021-01-01")
+                .availabilityEnd("2021-01-10")
+                .departureAirports(List.of("TSF"))
+                .destinationAirports(List.of("VIE"))
+                .build();
+        // Cuts the 09:48 departure of its first day and the 18:46 one of its last day
+        ScanQueryRequest narrowRequest = ScanQueryRequest.builder()
+                .minDays(1)
+                .maxDays(8)
+                .availabilityStart("2021-01-03T12:00:00.000")
+                .availabilityEnd("2021-01-09T12:00:00.000")
+                .departureAirports(List.of("TSF"))
+                .destinationAirports(List.of("VIE"))
+                .build();
+
+        List<ScanQueryResponse> responses = queryLambdaWorkflow.queryAndProcessBatch(List.of(
+                new BatchScan(wideRequest, TripRanking.PRICE, FlightFilter.NONE),
+                new BatchScan(narrowRequest, TripRanking.PRICE, FlightFilter.NONE)));
+
+        List<List<Integer>> singlePrices = new ArrayList<>();
+        for (ScanQueryRequest request : List.of(wideRequest, narrowRequest)) {
+            List<Integer> prices = new ArrayList<>();
+            queryLambdaWorkflow.queryAndProcessFlights(request, TripRanking.PRICE, FlightFilter.NONE,
+                    QueryLambdaWorkflow.TRIPS_RETURN_LIMIT, trip -> prices.add(trip.getTotalPrice()));
+            singlePrices.add(prices);
+        }
+
+        assertNotEquals(singlePrices.get(0), singlePrices.get(1));
+        assertEquals(singlePrices.get(0), responses.get(0).getTrips().stream().map(Trip::getTotalPrice).toList());
+        assertEquals(singlePrices.get(1), responses.get(1).getTrips().stream().map(Trip::getTotalPrice).toList());
+    }
+
+    @Test
+    void queryAndProcessFlights_WarmContainer_AirportsLoadedOnce() throws IOException {
+        mockDirections(getGenericFirstFlights(), getGenericSecondFlights());
+
+        for (int i = 0; i < 3; i++) {
+            ScanQueryResponse results = queryLambdaWorkflow.queryAndProcessFlights(2, 6, startDateString,
+                    endDateString, List.of("TSF"), List.of("VIE"), 0, Optional.empty(), Optional.empty(), true);
+            assertEquals(4, results.getTrips().size());
+        }
+
+        verify(mockS3Client, times(1)).getMergedAirports();
+    }
+
+    @Test
+    void queryAndProcessFlights_TripConsumer_SameTripsInPriceOrder() throws IOException {
+        mockDirections(getGenericFirstFlights(), getGenericSecondFlights());
+
+        ScanQueryRequest request = ScanQueryRequest.builder()
+                .minDays(2)
+                .maxDays(6)
+                .availabilityStart(startDateString)
+                .availabilityEnd(endDateString)
+                .departureAirports(List.of("TSF"))
+                .destinationAirports(List.of("VIE"))
+                .build();
+
+        List<Integer> streamedPrices = new ArrayList<>();
+        queryLambdaWorkflow.queryAndProcessFlights(request, QueryLambdaWorkflow.TRIPS_RETURN_LIMIT,
+                trip -> streamedPrices.add(trip.getTotalPrice()));
+
+        List<Integer> prices = queryLambdaWorkflow.queryAndProcessFlights(2, 6, startDateString, endDateString,
+                List.of("TSF"), List.of("VIE"), 0, Optional.empty(), Optional.empty(), true)
+                .getTrips().stream()
+                .map(Trip::getTotalPrice)
+                .toList();
+
+        assertEquals(prices, streamedPrices);
+    }
+
+    @Test
+    void scanPager_NextCursor_ContinuesTheRanking() throws IOException {
+        mockDirections(getGenericFirstFlights(), getGenericSecondFlights());
+
+        ScanQueryRequest request = ScanQueryRequest.builder()
+                .minDays(2)
+                .maxDays(6)
+                .availabilityStart(startDateString)
+                .availabilityEnd(endDateString)
+                .departureAirports(List.of("TSF"))
+                .destinationAirports(List.of("VIE"))
+                .build();
+        String requestKey = QueryResultCache.keyOf(request);
+        ScanPager scanPager = new ScanPager(queryLambdaWorkflow, new ObjectMapper(), Optional.empty());
+
+        List<Integer> prices = queryLambdaWorkflow.queryAndProcessFlights(2, 6, startDateString, endDateString,
+                List.of("TSF"), List.of("VIE"), 0, Optional.empty(), Optional.empty(), true)
+                .getTrips().stream()
+                .map(Trip::getTotalPrice)
+                .toList();
+        assertTrue(prices.size() > 2);
+
+        List<Integer> pagedPrices = new ArrayList<>();
+        String cursor = null;
+        do {
+            ScanPager.Page page = scanPager.page(request, TripRanking.PRICE, FlightFilter.NONE, requestKey, 2, cursor, Optional.empty());
+            page.trips().forEach(trip -> pagedPrices.add(trip.getTotalPrice()));
+            cursor = page.nextCursor();
+        } while (cursor != null);
+
+        assertEquals(prices, pagedPrices);
+
+        String otherRequestCursor = new PageCursor("other", 2, 0).encode();
+        assertThrows(IllegalArgumentException.class,
+                () -> scanPager.page(request, TripRanking.PRICE, FlightFilter.NONE, requestKey, 2, otherRequestCursor, Optional.empty()));
+    }
+
+    private List<Flight> getDailyFlights(String departure, String destination, int days, int hour) {
+        List<Flight> flights = new ArrayList<>();
+        for (int day = 0; day < days; day++) {
+            LocalDateTime departureTime = today.plusDays(day).atTime(hour, 0);
+            flights.add(new Flight(departure, destination, departureTime.format(DateTimeFormatter.ISO_DATE_TIME),
+                    departureTime.plusHours(1).format(DateTimeFormatter.ISO_DATE_TIME), "RY" + day, 20 + 7 * day % 31));
+        }
+        return flights;
+    }
+
+    // Result cache over an in-memory bucket
+    private QueryResultCache getInMemoryResultCache() {
+        Map<String, byte[]> objects = new HashMap<>();
+        S3Client s3Client = mock(S3Client.class);
+        when(s3Client.putObject(any(PutObjectRequest.class), any(RequestBody.class))).thenAnswer(invocation -> {
+            RequestBody requestBody = invocation.getArgument(1);
+            try (InputStream content = requestBody.contentStreamProvider().newStream()) {
+                objects.put(invocation.<PutObjectRequest>getArgument(0).key(), content.readAllBytes());
+            }
+            return PutObjectResponse.builder().build();
+        });
+        when(s3Client.getObjectAsBytes(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            byte[] object = objects.get(invocation.<GetObjectRequest>getArgument(0).key());
+            if (object == null) {
+                throw NoSuchKeyException.builder().build();
+            }
+            return ResponseBytes.fromByteArray(GetObjectResponse.builder().lastModified(Instant.now()).build(), object);
+        });
+        return new QueryResultCache(s3Client, "results", Duration.ofMinutes(15));
+    }
+
+    @Test
+    void scanPager_CachedRankedPrefix_RanksLogarithmicallyOften() throws IOException {
+        mockDirections(getDailyFlights("TSF", "VIE", 10, 8), getDailyFlights("VIE", "TSF", 16, 18));
+
+        ScanQueryRequest request = ScanQueryRequest.builder()
+                .minDays(2)
+                .maxDays(6)
+                .availabilityStart(startDateString)
+                .availabilityEnd(today.plusDays(16).format(formatter))
+                .departureAirports(List.of("TSF"))
+                .destinationAirports(List.of("VIE"))
+                .build();
+        String requestKey = QueryResultCache.keyOf(request);
+        List<Integer> prices = new ArrayList<>();
+        queryLambdaWorkflow.queryAndProcessFlights(request, QueryLambdaWorkflow.TRIPS_RETURN_LIMIT,
+                trip -> prices.add(trip.getTotalPrice()));
+        assertEquals(50, prices.size());
+
+        ScanPager scanPager = new ScanPager(queryLambdaWorkflow, new ObjectMapper(), Optional.of(getInMemoryResultCache()));
+        List<Integer> pagedPrices = new ArrayList<>();
+        String cursor = null;
+        do {
+            ScanPager.Page page = scanPager.page(request, TripRanking.PRICE, FlightFilter.NONE, requestKey, 1, cursor, Optional.empty());
+            page.trips().forEach(trip -> pagedPrices.add(trip.getTotalPrice()));
+            cursor = page.nextCursor();
+        } while (cursor != null);
+
+        assertEquals(prices, pagedPrices);
+        // One full ranking, then prefixes of 2, 4, 8, 16, 32 and 64 trips for the 50 pages
+        verify(mockDynamoDbClient, times(7)).scanFlightsBetweenDates(eq("TSF"), eq("VIE"), any(), any());
+    }
+
+    @Test
+    void scanPager_RankingChangedSinceFirstPage_CursorExpired() throws IOException {
+        mockDirections(getGenericFirstFlights(), getGenericSecondFlights());
+
+        ScanQueryRequest request = ScanQueryRequest.builder()
+                .minDays(2)
+                .maxDays(6)
+                .availabilityStart(startDateString)
+                .availabilityEnd(endDateString)
+                .departureAirports(List.of("TSF"))
+                .destinationAirports(List.of("VIE"))
+                .build();
+        String requestKey = QueryResultCache.keyOf(request);
+        ScanPager scanPager = new ScanPager(queryLambdaWorkflow, new ObjectMapper(), Optional.empty());
+
+        String cursor = scanPager.page(request, TripRanking.PRICE, FlightFilter.NONE, requestKey, 2, null, Optional.empty())
+                .nextCursor();
+        assertNotNull(cursor);
+        // Same data, however late the next page is asked for
+        assertNotNull(scanPager.page(request, TripRanking.PRICE, FlightFilter.NONE, requestKey, 1, cursor, Optional.empty()));
+
+        List<Flight> repricedFlights = getGenericFirstFlights().stream()
+                .map(flight -> new Flight("TSF", "VIE", flight.getDepartureDateTime(), flight.getArrivalDateTime(),
+                        flight.getFlightNumber(), 1))
+                .toList();
+        mockDirections(repricedFlights, getGenericSecondFlights());
+        assertThrows(IllegalArgumentException.class,
+                () -> scanPager.page(request, TripRanking.PRICE, FlightFilter.NONE, requestKey, 2, cursor, Optional.empty()));
+    }
+
+    @Test
+    void queryAndProcessFlights_FlightDayCache_RepeatedQueryServedFromCache() throws IOException {
+        LocalDateTime outboundDeparture = today.plusDays(1).atTime(8, 0);
+        LocalDateTime returnDeparture = today.plusDays(4).atTime(18, 0);
+        mockDirections(
+                List.of(new Flight("TSF", "VIE", outboundDeparture.format(DateTimeFormatter.ISO_DATE_TIME),
+                        outboundDeparture.plusHours(1).format(DateTimeFormatter.ISO_DATE_TIME), "RY123", 50)),
+                List.of(new Flight("VIE", "TSF", returnDeparture.format(DateTimeFormatter.ISO_DATE_TIME),
+                        returnDeparture.plusHours(1).format(DateTimeFormatter.ISO_DATE_TIME), "RY123", 40)));
+
+        QueryLambdaWorkflow cachedWorkflow = new QueryLambdaWorkflow(
+                ConcurrentFlightFetcher.builder(mockDynamoDbClient, 4)
+                        .flightDayCache(new FlightDayCache(1 << 20, Duration.ofMinutes(15)))
+                        .build(),
+                QueryLambdaWorkflow.airportGraphCache(mockS3Client, null));
+
+        for (int i = 0; i < 2; i++) {
+            ScanQueryResponse results = cachedWorkflow.queryAndProcessFlights(2, 6, startDateString, endDateString,
+                    List.of("TSF"), List.of("VIE"), 0, Optional.empty(), Optional.empty(), true);
+            assertEquals(1, results.getTrips().size());
+            assertEquals(90, results.getTrips().get(0).getTotalPrice());
+        }
+
+        // The second query finds every day of both directions in the cache
+        verify(mockDynamoDbClient, times(1)).scanFlightsBetweenDates(eq("TSF"), eq("VIE"), any(), any());
+        verify(mockDynamoDbClient, times(1)).scanFlightsBetweenDates(eq("VIE"), eq("TSF"), any(), any());
+    }
+
+    @Test
+    void scanFlightsBetweenDates_FlightDayCacheBoundsWithTime_SameFlightsAsUncached() {
+        List<Flight> stored = List.of(
+                new Flight("TSF", "VIE", "2024-03-01T06:00:00", "2024-03-01T07:00:00", "RY1", 10),
+                new Flight("TSF", "VIE", "2024-03-01T12:00:00", "2024-03-01T13:00:00", "RY2", 20),
+                new Flight("TSF", "VIE", "2024-03-02T09:00:00", "2024-03-02T10:00:00", "RY3", 30),
+                new Flight("TSF", "VIE", "2024-03-03T06:00:00", "2024-03-03T07:00:00", "RY4", 40),
+                new Flight("TSF", "VIE", "2024-03-03T18:00:00", "2024-03-03T19:00:00", "RY5", 50));
+        // Inclusive string bounds, like the BETWEEN of the flights table
+        FlightDayCache.FlightReader reader = (departure, destination, start, end) -> stored.stream()
+                .filter(flight -> flight.getDepartureDateTime().compareTo(start) >= 0
+                        && flight.getDepartureDateTime().compareTo(end) <= 0)
+                .toList();
+        FlightDayCache cache = new FlightDayCache(1 << 20, Duration.ofMinutes(15));
+
+        for (String[] bounds : List.of(
+                new String[] {"2024-03-01T10:00:00", "2024-03-03T12:00:00"},
+                new String[] {"2024-03-01T06:00:00", "2024-03-03T18:00:00"},
+                new String[] {"2024-03-01", "2024-03-03"},
+                new String[] {"2024-03-02T09:00:01", "2024-03-02T23:59:59"})) {
+            assertEquals(reader.scanFlightsBetweenDates("TSF", "VIE", bounds[0], bounds[1]),
+                    cache.scanFlightsBetweenDates("TSF", "VIE", bounds[0], bounds[1], reader));
+        }
+    }
+
+    private List<Flight> getRandomFlights(Random random, String from, String to, int count) {
+        List<Flight> flights = new ArrayList<>();
+        LocalDateTime start = LocalDateTime.of(2021, 1, 1, 0, 0);
+        for (int i = 0; i < count; i++) {
+            LocalDateTime departure = start.plusMinutes(random.nextInt(60 * 24 * 60));
+            flights.add(new Flight(from, to, departure.format(DateTimeFormatter.ISO_DATE_TIME),
+                    departure.plusHours(2).format(DateTimeFormatter.ISO_DATE_TIME), "RY123", 10 + random.nextInt(200)));
+        }
+        return flights;
+    }
+
 }
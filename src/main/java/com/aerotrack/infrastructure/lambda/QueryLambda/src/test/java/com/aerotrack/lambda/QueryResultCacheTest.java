@@ -0,0 +1,63 @@
+package com.aerotrack.lambda;
+
+import com.aerotrack.lambda.workflow.cache.QueryResultCache;
+import com.aerotrack.lambda.workflow.fetch.FlightFilter;
+import com.aerotrack.lambda.workflow.pairing.TripRanking;
+import com.aerotrack.model.protocol.ScanQueryRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class QueryResultCacheTest {
+
+    @Test
+    void keyOf_EquivalentRequests_SameKey() {
+        ScanQueryRequest request = ScanQueryRequest.builder()
+                .minDays(2)
+                .maxDays(6)
+                .availabilityStart("2021-01-01")
+                .availabilityEnd("2021-01-10")
+                .departureAirports(List.of("TSF", "VIE"))
+                .destinationAirports(List.of("BGY"))
+                .build();
+        ScanQueryRequest equivalentRequest = ScanQueryRequest.builder()
+                .minDays(2)
+                .maxDays(6)
+                .availabilityStart("2021-01-01")
+                .availabilityEnd("2021-01-10")
+                .departureAirports(List.of("VIE", "TSF", "VIE"))
+                .destinationAirports(List.of("BGY"))
+                .maxChanges(0)
+                .returnToSameAirport(true)
+                .build();
+        ScanQueryRequest otherRequest = ScanQueryRequest.builder()
+                .minDays(2)
+                .maxDays(6)
+                .availabilityStart("2021-01-01")
+                .availabilityEnd("2021-01-10")
+                .departureAirports(List.of("TSF", "VIE"))
+                .destinationAirports(List.of("BGY"))
+                .returnToSameAirport(false)
+                .build();
+
+        assertEquals(QueryResultCache.keyOf(request), QueryResultCache.keyOf(equivalentRequest));
+        assertNotEquals(QueryResultCache.keyOf(request), QueryResultCache.keyOf(otherRequest));
+    }
+
+    @Test
+    void keyOf_FilteredRequest_OwnKey() throws IOException {
+        ScanQueryRequest request = ScanQueryRequest.builder().build();
+        FlightFilter airlineFilter = FlightFilter.fromJson(new ObjectMapper().readTree("{\"airlines\": [\"FR\", \"W6\"]}"));
+
+        // The defaults keep the key of a plain request
+        assertEquals(QueryResultCache.keyOf(request),
+                QueryResultCache.keyOf(request, TripRanking.PRICE, FlightFilter.NONE));
+        assertNotEquals(QueryResultCache.keyOf(request),
+                QueryResultCache.keyOf(request, TripRanking.PRICE, airlineFilter));
+    }
+}
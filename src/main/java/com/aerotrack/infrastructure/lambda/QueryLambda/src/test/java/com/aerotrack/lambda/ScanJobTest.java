@@ -0,0 +1,97 @@
+package com.aerotrack.lambda;
+
+import com.aerotrack.lambda.workflow.job.ScanJobResults;
+import com.aerotrack.lambda.workflow.job.ScanJobStore;
+import com.aerotrack.model.entities.Trip;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ScanJobTest {
+
+    @Test
+    void scanJobStore_RunningPastWorkerTimeout_ReportedFailed() {
+        DynamoDbClient mockJobsDynamoDbClient = mock(DynamoDbClient.class);
+        ScanJobStore scanJobStore = new ScanJobStore(mockJobsDynamoDbClient, "jobs", Duration.ofMinutes(15));
+        Instant now = Instant.now();
+        Map<String, Map<String, AttributeValue>> items = Map.of(
+                "fresh", jobItem("fresh", now.minus(Duration.ofMinutes(10))),
+                "stale", jobItem("stale", now.minus(Duration.ofMinutes(20))));
+        when(mockJobsDynamoDbClient.getItem(any(GetItemRequest.class))).thenAnswer(invocation -> GetItemResponse.builder()
+                .item(items.get(invocation.<GetItemRequest>getArgument(0).key().get("jobId").s()))
+                .build());
+
+        assertEquals(ScanJobStore.Status.RUNNING, scanJobStore.get("fresh").orElseThrow().status());
+        verify(mockJobsDynamoDbClient, never()).updateItem(any(UpdateItemRequest.class));
+
+        ScanJobStore.ScanJob stale = scanJobStore.get("stale").orElseThrow();
+        assertEquals(ScanJobStore.Status.FAILED, stale.status());
+        assertEquals(ScanJobStore.WORKER_TIMED_OUT_ERROR, stale.error());
+        ArgumentCaptor<UpdateItemRequest> update = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        verify(mockJobsDynamoDbClient).updateItem(update.capture());
+        assertEquals("stale", update.getValue().key().get("jobId").s());
+        assertEquals("FAILED", update.getValue().expressionAttributeValues().get(":status").s());
+        assertEquals("RUNNING", update.getValue().expressionAttributeValues().get(":expectedStatus").s());
+    }
+
+    private static Map<String, AttributeValue> jobItem(String jobId, Instant updatedAt) {
+        return Map.of(
+                "jobId", AttributeValue.builder().s(jobId).build(),
+                "status", AttributeValue.builder().s("RUNNING").build(),
+                "request", AttributeValue.builder().s("{}").build(),
+                "createdAt", AttributeValue.builder().n(String.valueOf(updatedAt.getEpochSecond() - 5)).build(),
+                "updatedAt", AttributeValue.builder().n(String.valueOf(updatedAt.getEpochSecond())).build());
+    }
+
+    @Test
+    void scanJobResults_ChunkWriter_OneObjectPerChunk() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        S3Client mockJobsS3Client = mock(S3Client.class);
+        ScanJobResults scanJobResults = new ScanJobResults(mockJobsS3Client, "results", objectMapper, 2);
+        Trip trip = objectMapper.readValue("{}", Trip.class);
+
+        ScanJobResults.ChunkWriter writer = scanJobResults.writer("job");
+        for (int i = 0; i < 5; i++) {
+            writer.accept(trip);
+        }
+        writer.finish();
+
+        // Two full chunks and the partial last one
+        assertEquals(5, writer.tripCount());
+        assertEquals(3, writer.chunkCount());
+        verify(mockJobsS3Client, times(3)).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+        verify(mockJobsS3Client).putObject(eq(PutObjectRequest.builder()
+                .bucket("results")
+                .key("jobs/job/0.json.gz")
+                .contentType("application/json")
+                .contentEncoding("gzip")
+                .build()), any(RequestBody.class));
+
+        // An empty ranking still gets its first chunk
+        ScanJobResults.ChunkWriter empty = scanJobResults.writer("empty");
+        empty.finish();
+        assertEquals(1, empty.chunkCount());
+    }
+}
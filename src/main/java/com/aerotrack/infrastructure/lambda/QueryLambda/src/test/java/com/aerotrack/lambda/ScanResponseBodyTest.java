@@ -0,0 +1,65 @@
+package com.aerotrack.lambda;
+
+import com.aerotrack.lambda.workflow.cache.QueryResultCache.CachedResult;
+import com.aerotrack.lambda.workflow.cache.ScanResponseBody;
+import com.aerotrack.lambda.workflow.cache.ScanResponseBody.TripSource;
+import com.aerotrack.model.entities.Trip;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ScanResponseBodyTest {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ScanResponseBody scanResponseBody = new ScanResponseBody(objectMapper);
+
+    @Test
+    void write_StreamedTrips_FieldsBeforeTrips() throws IOException {
+        Trip trip = objectMapper.readValue("{}", Trip.class);
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("nextCursor", null);
+        fields.put(ScanResponseBody.CACHE_HIT, false);
+        fields.put(ScanResponseBody.CACHE_AGE_SECONDS, 0L);
+
+        String body = scanResponseBody.write(fields, TripSource.of(List.of(trip, trip, trip)));
+
+        JsonNode response = objectMapper.readTree(body);
+        List<String> names = new ArrayList<>();
+        response.fieldNames().forEachRemaining(names::add);
+        assertEquals(List.of("nextCursor", ScanResponseBody.CACHE_HIT, ScanResponseBody.CACHE_AGE_SECONDS,
+                ScanResponseBody.TRIPS), names);
+        assertTrue(response.get("nextCursor").isNull());
+        assertEquals(3, response.get(ScanResponseBody.TRIPS).size());
+    }
+
+    @Test
+    void fromCache_StoredBody_CacheFieldsReplaced() throws IOException {
+        Trip trip = objectMapper.readValue("{}", Trip.class);
+        String stored = scanResponseBody.write(Map.of(ScanResponseBody.CACHE_HIT, false,
+                ScanResponseBody.CACHE_AGE_SECONDS, 0L), TripSource.of(List.of(trip, trip)));
+
+        JsonNode served = objectMapper.readTree(scanResponseBody.fromCache(
+                new CachedResult(stored, Instant.now().minusSeconds(42), 42)));
+
+        assertTrue(served.get(ScanResponseBody.CACHE_HIT).asBoolean());
+        assertEquals(42, served.get(ScanResponseBody.CACHE_AGE_SECONDS).asLong());
+        assertEquals(3, served.size());
+        assertEquals(objectMapper.readTree(stored).get(ScanResponseBody.TRIPS), served.get(ScanResponseBody.TRIPS));
+
+        // Bodies cached without the fields get them as well
+        JsonNode plain = objectMapper.readTree(scanResponseBody.fromCache(
+                new CachedResult("{\"trips\":[]}", Instant.now(), 0)));
+        assertTrue(plain.get(ScanResponseBody.CACHE_HIT).asBoolean());
+        assertFalse(plain.get(ScanResponseBody.TRIPS).elements().hasNext());
+    }
+}